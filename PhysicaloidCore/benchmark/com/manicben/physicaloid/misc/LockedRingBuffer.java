@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+/**
+ * The monitor based ring buffer RingBuffer used to be, kept only as the
+ * baseline for RingBufferBenchmark. Debug logging removed.
+ */
+public class LockedRingBuffer {
+
+        private int mRingBufSize;
+        private byte[] mRingBuf;
+        private int mAddIndex;     // top of data index
+        private int mGetIndex;     // tail of data index
+
+        public LockedRingBuffer(int bufferSize) {
+                mRingBufSize = bufferSize + 1;
+                mRingBuf = new byte[mRingBufSize];
+                mAddIndex = 0;
+                mGetIndex = 0;
+        }
+
+        public int getBufferdLength() {
+                if(mAddIndex >= mGetIndex) {
+                        return mAddIndex - mGetIndex;
+                } else {
+                        return mAddIndex + (mRingBufSize - mGetIndex);
+                }
+        }
+
+        public synchronized int add(byte[] buf, int length) {
+                int addLen = length;
+                if(buf == null) {
+                        return 0;
+                }
+                if(mAddIndex > mGetIndex) {
+                        if((mAddIndex + length) >= mRingBufSize) {
+                                if((mRingBufSize - mAddIndex) + (mGetIndex - 1) < length) {
+                                        addLen = (mRingBufSize - mAddIndex) + (mGetIndex - 1);
+                                }
+                        }
+                } else if(mAddIndex < mGetIndex) {
+                        if((mGetIndex - 1) - mAddIndex < length) {
+                                addLen = (mGetIndex - 1) - mAddIndex;
+                        }
+                }
+
+                if(buf.length < addLen) {
+                        addLen = buf.length;
+                }
+
+                if((mAddIndex + addLen) >= mRingBufSize) {
+                        int remain = mAddIndex + addLen - mRingBufSize;
+                        int copyLen = addLen - remain;
+                        if(copyLen != 0) {
+                                System.arraycopy(buf, 0, mRingBuf, mAddIndex, copyLen);
+                        }
+                        mAddIndex = 0;
+                        if(remain != 0) {
+                                System.arraycopy(buf, copyLen, mRingBuf, mAddIndex, remain);
+                                mAddIndex = remain;
+                        }
+                        return addLen;
+                } else {
+                        System.arraycopy(buf, 0, mRingBuf, mAddIndex, addLen);
+                        mAddIndex += addLen;
+                        return addLen;
+                }
+        }
+
+        public synchronized int get(byte[] buf, int length) {
+                if(buf == null) {
+                        return 0;
+                }
+                int getLen = length;
+                if(mAddIndex == mGetIndex) {
+                        return 0;
+                } else if(mGetIndex < mAddIndex) {
+                        if(mAddIndex - mGetIndex < length) {
+                                getLen = mAddIndex - mGetIndex;
+                        }
+                } else {
+                        if(mAddIndex + (mRingBufSize - mGetIndex) < length) {
+                                getLen = mAddIndex + (mRingBufSize - mGetIndex);
+                        }
+                }
+
+                if(buf.length < getLen) {
+                        getLen = buf.length;
+                }
+
+                if((mGetIndex + getLen) >= mRingBufSize) {
+                        int remain = mGetIndex + getLen - mRingBufSize;
+                        int copyLen = getLen - remain;
+                        if(copyLen != 0) {
+                                System.arraycopy(mRingBuf, mGetIndex, buf, 0, copyLen);
+                        }
+                        mGetIndex = 0;
+                        if(remain != 0) {
+                                System.arraycopy(mRingBuf, mGetIndex, buf, copyLen, remain);
+                                mGetIndex = remain;
+                        }
+                        return getLen;
+                } else {
+                        System.arraycopy(mRingBuf, mGetIndex, buf, 0, getLen);
+                        mGetIndex += getLen;
+                        return getLen;
+                }
+        }
+
+        public synchronized void clear() {
+                mAddIndex = 0;
+                mGetIndex = 0;
+        }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+/**
+ * Producer/consumer throughput of RingBuffer against LockedRingBuffer on a
+ * plain JVM. The producer pushes USB sized packets the way the driver read
+ * loops do, the consumer drains into a 256 byte array the way
+ * Physicaloid.read() callers do, and every byte is checked on the way out.
+ *
+ * Run from the project root :
+ *   ./gradlew :PhysicaloidCore:benchmark -PbenchmarkArgs="[MBytes] [packetSize] [bufferSize]"
+ */
+public class RingBufferBenchmark {
+
+        private static final int ROUNDS = 5;
+
+        interface Ring {
+                int add(byte[] buf, int length);
+
+                int get(byte[] buf, int length);
+        }
+
+        public static void main(String[] args) throws InterruptedException {
+                long total = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+                int packetSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+                int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+                System.out.println("bytes=" + total + " packet=" + packetSize + " buffer=" + bufferSize);
+                for(int i = 0; i < ROUNDS; i++) {
+                        final LockedRingBuffer locked = new LockedRingBuffer(bufferSize);
+                        report("LockedRingBuffer", total, run(new Ring() {
+                                @Override
+                                public int add(byte[] buf, int length) {
+                                        return locked.add(buf, length);
+                                }
+
+                                @Override
+                                public int get(byte[] buf, int length) {
+                                        return locked.get(buf, length);
+                                }
+                        }, total, packetSize));
+
+                        final RingBuffer ring = new RingBuffer(bufferSize);
+                        report("RingBuffer      ", total, run(new Ring() {
+                                @Override
+                                public int add(byte[] buf, int length) {
+                                        return ring.add(buf, length);
+                                }
+
+                                @Override
+                                public int get(byte[] buf, int length) {
+                                        return ring.get(buf, length);
+                                }
+                        }, total, packetSize));
+                }
+        }
+
+        private static void report(String name, long total, long nanos) {
+                double mbps = (total / (1024.0 * 1024.0)) / (nanos / 1e9);
+                System.out.println(String.format("%s : %8.1f ms %8.1f MB/s", name, nanos / 1e6, mbps));
+        }
+
+        private static long run(final Ring ring, final long total, final int packetSize) throws InterruptedException {
+                final Thread producer = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                byte[] packet = new byte[packetSize];
+                                long sent = 0;
+                                byte seq = 0;
+                                while(sent < total) {
+                                        int len = (int) Math.min(packetSize, total - sent);
+                                        for(int i = 0; i < len; i++) {
+                                                packet[i] = seq++;
+                                        }
+                                        int off = 0;
+                                        while(off < len) {
+                                                // the drivers never retry, but dropping bytes would make the check meaningless
+                                                int n = ring.add(shift(packet, off, len), len - off);
+                                                if(n == 0) {
+                                                        Thread.yield();
+                                                }
+                                                off += n;
+                                        }
+                                        sent += len;
+                                }
+                        }
+                });
+
+                final long[] errors = new long[1];
+                Thread consumer = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                byte[] buf = new byte[256];
+                                long received = 0;
+                                byte seq = 0;
+                                while(received < total) {
+                                        int n = ring.get(buf, buf.length);
+                                        if(n == 0) {
+                                                Thread.yield();
+                                                continue;
+                                        }
+                                        for(int i = 0; i < n; i++) {
+                                                if(buf[i] != seq++) {
+                                                        errors[0]++;
+                                                }
+                                        }
+                                        received += n;
+                                }
+                        }
+                });
+
+                long start = System.nanoTime();
+                producer.start();
+                consumer.start();
+                producer.join();
+                consumer.join();
+                long elapsed = System.nanoTime() - start;
+                if(errors[0] != 0) {
+                        throw new IllegalStateException("corrupted bytes : " + errors[0]);
+                }
+                return elapsed;
+        }
+
+        private static byte[] mShifted;
+
+        // add() has no offset in the legacy API, so a partial add is retried from a shifted copy
+        private static byte[] shift(byte[] packet, int off, int len) {
+                if(off == 0) {
+                        return packet;
+                }
+                if(mShifted == null || mShifted.length < packet.length) {
+                        mShifted = new byte[packet.length];
+                }
+                System.arraycopy(packet, off, mShifted, 0, len - off);
+                return mShifted;
+        }
+}
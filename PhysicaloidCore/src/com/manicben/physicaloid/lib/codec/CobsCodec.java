@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Consistent Overhead Byte Stuffing, frames delimited by 0x00. Decoding
+ * undoes the stuffing byte by byte as the data arrives.
+ */
+public class CobsCodec extends FrameCodec {
+
+        private static final int MAX_BLOCK = 0xFF;
+
+        private int mRemaining;         // data bytes left in the current block
+        private boolean mPendingZero;   // the block ended with a zero that is payload unless the frame ends
+
+        /**
+         * @param maxFrameSize longest decoded payload
+         */
+        public CobsCodec(int maxFrameSize) {
+                super(maxFrameSize);
+        }
+
+        @Override
+        public void decode(ByteBuffer in) {
+                while(in.hasRemaining()) {
+                        int b = in.get() & 0xff;
+                        if(b == 0) {
+                                if(mRemaining != 0) {
+                                        dropFrame(); // cut short
+                                } else if(isFrameStarted() || mPendingZero) {
+                                        endFrame();
+                                }
+                                mRemaining = 0;
+                                mPendingZero = false;
+                        } else if(mRemaining == 0) {
+                                // code byte
+                                if(mPendingZero) {
+                                        append((byte) 0);
+                                }
+                                mRemaining = b - 1;
+                                mPendingZero = (b != MAX_BLOCK);
+                        } else {
+                                append((byte) b);
+                                mRemaining--;
+                        }
+                }
+        }
+
+        @Override
+        public int maxEncodedLength(int length) {
+                return length + length / (MAX_BLOCK - 1) + 2;
+        }
+
+        @Override
+        public int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+                int codePos = dstOff;
+                int pos = dstOff + 1;
+                int code = 1;
+                for(int i = off; i < off + len; i++) {
+                        byte b = src[i];
+                        if(b != 0) {
+                                dst[pos++] = b;
+                                code++;
+                        }
+                        if(b == 0 || (code == MAX_BLOCK && i + 1 < off + len)) {
+                                dst[codePos] = (byte) code;
+                                codePos = pos++;
+                                code = 1;
+                        }
+                }
+                dst[codePos] = (byte) code;
+                dst[pos++] = 0;
+                return pos - dstOff;
+        }
+
+        @Override
+        public void reset() {
+                super.reset();
+                mRemaining = 0;
+                mPendingZero = false;
+        }
+}
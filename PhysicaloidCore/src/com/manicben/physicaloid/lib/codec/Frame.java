@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One decoded frame in a pooled array. Call release() once done with it,
+ * from any thread; a frame never released is simply garbage collected.
+ */
+public final class Frame {
+
+        private final FramePool mPool;
+        private final byte[] mArray;
+        private final ByteBuffer mBuffer;
+        int length;
+
+        Frame(FramePool pool, int capacity) {
+                mPool = pool;
+                mArray = new byte[capacity];
+                mBuffer = ByteBuffer.wrap(mArray);
+        }
+
+        /**
+         * Gets the payload array, valid from 0 to length()
+         *
+         * @return pooled array, do not keep it after release()
+         */
+        public byte[] array() {
+                return mArray;
+        }
+
+        /**
+         * Gets the payload length
+         *
+         * @return length in bytes
+         */
+        public int length() {
+                return length;
+        }
+
+        /**
+         * Gets the payload as a ByteBuffer, position 0 and limit length()
+         *
+         * @return the frame's own buffer, do not keep it after release()
+         */
+        public ByteBuffer buffer() {
+                mBuffer.limit(length);
+                mBuffer.position(0);
+                return mBuffer;
+        }
+
+        /**
+         * Gives the frame back to its pool
+         */
+        public void release() {
+                length = 0;
+                mPool.release(this);
+        }
+
+        int capacity() {
+                return mArray.length;
+        }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of a byte stream, both ways.
+ *
+ * decode() is fed received bytes as they come and keeps its state between
+ * calls, appending the payload straight into a pooled Frame and handing
+ * complete frames to the listener. encode() frames one outgoing message into
+ * a caller's array. Neither allocates once the pool is warm. A codec holds
+ * the decoding state of one stream, use one instance per device.
+ */
+public abstract class FrameCodec {
+
+        protected final int mMaxFrameSize;
+        private final FramePool mPool;
+        private FrameListener mListener;
+        private Frame mFrame;           // being decoded
+        private boolean mOverflow;      // the current frame outgrew mMaxFrameSize, dropped at its end
+        private long mDroppedFrames;
+
+        /**
+         * @param maxFrameSize longest payload, longer frames are dropped
+         */
+        protected FrameCodec(int maxFrameSize) {
+                mMaxFrameSize = Math.max(1, maxFrameSize);
+                mPool = new FramePool(mMaxFrameSize, FramePool.DEFAULT_POOLED_FRAMES);
+        }
+
+        /**
+         * Sets where decoded frames go
+         *
+         * @param listener FrameListener, null : decoded frames are released at once
+         */
+        public void setFrameListener(FrameListener listener) {
+                mListener = listener;
+        }
+
+        /**
+         * Gets the longest payload
+         *
+         * @return max frame size in bytes
+         */
+        public int getMaxFrameSize() {
+                return mMaxFrameSize;
+        }
+
+        /**
+         * Gets frames dropped for being too long or malformed
+         *
+         * @return dropped frame count
+         */
+        public long getDroppedFrames() {
+                return mDroppedFrames;
+        }
+
+        /**
+         * Consumes received bytes, calling the listener for every frame they complete
+         *
+         * @param in bytes between position and limit, all consumed
+         */
+        public abstract void decode(ByteBuffer in);
+
+        /**
+         * Gets the most bytes encode() writes for a payload
+         *
+         * @param length payload length
+         * @return encoded length bound
+         */
+        public abstract int maxEncodedLength(int length);
+
+        /**
+         * Frames a payload
+         *
+         * @param src    payload
+         * @param off    offset in src
+         * @param len    payload length
+         * @param dst    receives the framed bytes, at least maxEncodedLength(len) from dstOff
+         * @param dstOff offset in dst
+         * @return encoded length, -1 : the payload cannot be framed, e.g. too long for a length header
+         */
+        public abstract int encode(byte[] src, int off, int len, byte[] dst, int dstOff);
+
+        /**
+         * Forgets a partly decoded frame, e.g. after reopening the device
+         */
+        public void reset() {
+                if(mFrame != null) {
+                        mFrame.length = 0;
+                }
+                mOverflow = false;
+        }
+
+        /**
+         * Adds a payload byte to the frame being decoded
+         *
+         * @param b payload byte
+         */
+        protected final void append(byte b) {
+                if(mOverflow) {
+                        return;
+                }
+                Frame frame = mFrame;
+                if(frame == null) {
+                        frame = mFrame = mPool.take();
+                }
+                if(frame.length == frame.capacity()) {
+                        mOverflow = true;
+                        return;
+                }
+                frame.array()[frame.length++] = b;
+        }
+
+        /**
+         * Checks a frame has been started since the last end
+         *
+         * @return true : payload bytes were appended
+         */
+        protected final boolean isFrameStarted() {
+                return mOverflow || (mFrame != null && mFrame.length > 0);
+        }
+
+        /**
+         * Ends the frame being decoded, handing it to the listener unless it was too long
+         */
+        protected final void endFrame() {
+                if(mOverflow) {
+                        dropFrame();
+                        return;
+                }
+                Frame frame = mFrame;
+                if(frame == null) {
+                        frame = mPool.take(); // empty frame, e.g. a blank line
+                }
+                mFrame = null;
+                FrameListener listener = mListener;
+                if(listener != null) {
+                        listener.onFrame(frame);
+                } else {
+                        frame.release();
+                }
+        }
+
+        /**
+         * Throws away the frame being decoded and counts it as dropped
+         */
+        protected final void dropFrame() {
+                mDroppedFrames++;
+                reset();
+        }
+}
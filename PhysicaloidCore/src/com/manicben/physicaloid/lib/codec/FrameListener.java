@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+public interface FrameListener {
+    /**
+     * Called with each complete frame, on the thread that decoded it
+     * (the read thread with OpenOptions.DISPATCH_INLINE).
+     *
+     * @param frame decoded payload, call frame.release() when done with it
+     */
+    void onFrame(Frame frame);
+}
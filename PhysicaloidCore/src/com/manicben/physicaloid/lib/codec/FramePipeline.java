@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.misc.ReceiveBuffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Joins a FrameCodec to a device: received bytes are decoded on the read
+ * thread straight from the read buffer, and send() frames outgoing messages
+ * with the same codec.
+ *
+ * While attached the pipeline is the read buffer's consumer: decoded bytes
+ * are skipped right away, so the buffer never fills up behind it and read()
+ * gets nothing. See SerialCommunicator.setReceiveConsumer().
+ */
+public class FramePipeline implements ReceiveBuffer.SegmentVisitor {
+
+        private final SerialCommunicator mSerial;
+        private final FrameCodec mCodec;
+        private byte[] mEncoded = new byte[0];  // guarded by this
+
+        /**
+         * Creates a pipeline, attach() starts it
+         *
+         * @param serial   device
+         * @param codec    framing, not shared with other pipelines
+         * @param listener gets decoded frames
+         */
+        public FramePipeline(SerialCommunicator serial, FrameCodec codec, FrameListener listener) {
+                mSerial = serial;
+                mCodec = codec;
+                mCodec.setFrameListener(listener);
+        }
+
+        /**
+         * Starts decoding received bytes
+         */
+        public void attach() {
+                mCodec.reset();
+                mSerial.setReceiveConsumer(this);
+        }
+
+        /**
+         * Stops decoding, a partly received frame is forgotten
+         */
+        public void detach() {
+                mSerial.setReceiveConsumer(null);
+        }
+
+        /**
+         * Gets the codec
+         *
+         * @return FrameCodec
+         */
+        public FrameCodec getCodec() {
+                return mCodec;
+        }
+
+        @Override
+        public boolean onSegment(ByteBuffer segment) {
+                mCodec.decode(segment);
+                return true;
+        }
+
+        /**
+         * Frames a message and writes it
+         *
+         * @param buf  payload
+         * @param off  offset in buf
+         * @param size payload length
+         * @return size : sent, -1 : the codec cannot frame it or the write failed
+         */
+        public synchronized int send(byte[] buf, int off, int size) {
+                int max = mCodec.maxEncodedLength(size);
+                if(mEncoded.length < max) {
+                        mEncoded = new byte[max];
+                }
+                int len = mCodec.encode(buf, off, size, mEncoded, 0);
+                if(len < 0) {
+                        return -1;
+                }
+                int total = 0;
+                while(total < len) {
+                        int written = mSerial.write(mEncoded, total, len - total);
+                        if(written <= 0) {
+                                return -1;
+                        }
+                        total += written;
+                }
+                return size;
+        }
+}
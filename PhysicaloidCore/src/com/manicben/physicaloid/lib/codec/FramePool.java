@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Frames of one size kept for reuse. take() only allocates while fewer
+ * frames than were ever released are waiting.
+ */
+public class FramePool {
+
+        public static final int DEFAULT_POOLED_FRAMES = 16;
+
+        private final int mFrameSize;
+        private final ArrayBlockingQueue<Frame> mFree;
+
+        /**
+         * Creates a pool
+         *
+         * @param frameSize   capacity of each frame
+         * @param maxPooled   most released frames kept
+         */
+        public FramePool(int frameSize, int maxPooled) {
+                mFrameSize = Math.max(1, frameSize);
+                mFree = new ArrayBlockingQueue<Frame>(Math.max(1, maxPooled));
+        }
+
+        /**
+         * Gets an empty frame
+         *
+         * @return pooled or new frame
+         */
+        public Frame take() {
+                Frame frame = mFree.poll();
+                return (frame != null) ? frame : new Frame(this, mFrameSize);
+        }
+
+        void release(Frame frame) {
+                mFree.offer(frame); // dropped when the pool is full
+        }
+
+        /**
+         * Gets the capacity of each frame
+         *
+         * @return frame size in bytes
+         */
+        public int getFrameSize() {
+                return mFrameSize;
+        }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Frames preceded by their payload length in a 1, 2 or 4 byte header.
+ * Frames announcing more than maxFrameSize are skipped.
+ */
+public class LengthPrefixCodec extends FrameCodec {
+
+        private final int mHeaderSize;
+        private final boolean mBigEndian;
+
+        private int mHeaderRead;
+        private int mLength;            // from the header
+        private int mRemaining;         // payload bytes still to come
+        private boolean mSkipping;      // payload of a frame that is too long
+
+        /**
+         * @param headerSize   1, 2 or 4
+         * @param order        byte order of the header
+         * @param maxFrameSize longest payload
+         */
+        public LengthPrefixCodec(int headerSize, ByteOrder order, int maxFrameSize) {
+                super(maxFrameSize);
+                if(headerSize != 1 && headerSize != 2 && headerSize != 4) {
+                        throw new IllegalArgumentException("header size " + headerSize + ", must be 1, 2 or 4");
+                }
+                mHeaderSize = headerSize;
+                mBigEndian = (order == ByteOrder.BIG_ENDIAN);
+        }
+
+        @Override
+        public void decode(ByteBuffer in) {
+                while(in.hasRemaining()) {
+                        if(mHeaderRead < mHeaderSize) {
+                                int b = in.get() & 0xff;
+                                mLength = mBigEndian ? (mLength << 8) | b : mLength | (b << (8 * mHeaderRead));
+                                if(++mHeaderRead == mHeaderSize) {
+                                        startPayload();
+                                }
+                                continue;
+                        }
+                        int n = Math.min(mRemaining, in.remaining());
+                        if(mSkipping) {
+                                in.position(in.position() + n);
+                        } else {
+                                for(int i = 0; i < n; i++) {
+                                        append(in.get());
+                                }
+                        }
+                        mRemaining -= n;
+                        if(mRemaining == 0) {
+                                finishPayload();
+                        }
+                }
+        }
+
+        private void startPayload() {
+                if(mLength < 0) {
+                        // over 2 GB, the stream is out of step: start over at the next byte
+                        dropFrame();
+                        mHeaderRead = 0;
+                        mLength = 0;
+                        return;
+                }
+                mRemaining = mLength;
+                mSkipping = (mLength > mMaxFrameSize);
+                if(mRemaining == 0) {
+                        finishPayload();
+                }
+        }
+
+        private void finishPayload() {
+                if(mSkipping) {
+                        dropFrame();
+                } else {
+                        endFrame();
+                }
+                mHeaderRead = 0;
+                mLength = 0;
+                mSkipping = false;
+        }
+
+        @Override
+        public int maxEncodedLength(int length) {
+                return mHeaderSize + length;
+        }
+
+        @Override
+        public int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+                if(mHeaderSize < 4 && len >= (1 << (8 * mHeaderSize))) {
+                        return -1;
+                }
+                for(int i = 0; i < mHeaderSize; i++) {
+                        int shift = mBigEndian ? 8 * (mHeaderSize - 1 - i) : 8 * i;
+                        dst[dstOff + i] = (byte) (len >>> shift);
+                }
+                System.arraycopy(src, off, dst, dstOff + mHeaderSize, len);
+                return mHeaderSize + len;
+        }
+
+        @Override
+        public void reset() {
+                super.reset();
+                mHeaderRead = 0;
+                mLength = 0;
+                mRemaining = 0;
+                mSkipping = false;
+        }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Newline delimited frames. A '\r' right before the '\n' is not part of the
+ * payload. encode() appends "\n".
+ */
+public class LineCodec extends FrameCodec {
+
+        private static final byte CR = '\r';
+        private static final byte LF = '\n';
+
+        private boolean mPendingCr;     // a '\r' that is payload only if no '\n' follows
+
+        /**
+         * @param maxFrameSize longest line without its end
+         */
+        public LineCodec(int maxFrameSize) {
+                super(maxFrameSize);
+        }
+
+        @Override
+        public void decode(ByteBuffer in) {
+                while(in.hasRemaining()) {
+                        byte b = in.get();
+                        if(b == LF) {
+                                mPendingCr = false;
+                                endFrame();
+                                continue;
+                        }
+                        if(mPendingCr) {
+                                append(CR);
+                        }
+                        mPendingCr = (b == CR);
+                        if(!mPendingCr) {
+                                append(b);
+                        }
+                }
+        }
+
+        @Override
+        public int maxEncodedLength(int length) {
+                return length + 1;
+        }
+
+        @Override
+        public int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+                System.arraycopy(src, off, dst, dstOff, len);
+                dst[dstOff + len] = LF;
+                return len + 1;
+        }
+
+        @Override
+        public void reset() {
+                super.reset();
+                mPendingCr = false;
+        }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SLIP framing (RFC 1055). encode() puts END on both sides of the frame, so
+ * line noise before it ends up in an empty frame the decoder skips.
+ */
+public class SlipCodec extends FrameCodec {
+
+        public static final byte END = (byte) 0xC0;
+        public static final byte ESC = (byte) 0xDB;
+        public static final byte ESC_END = (byte) 0xDC;
+        public static final byte ESC_ESC = (byte) 0xDD;
+
+        private boolean mEscaped;
+
+        /**
+         * @param maxFrameSize longest unescaped payload
+         */
+        public SlipCodec(int maxFrameSize) {
+                super(maxFrameSize);
+        }
+
+        @Override
+        public void decode(ByteBuffer in) {
+                while(in.hasRemaining()) {
+                        byte b = in.get();
+                        if(b == END) {
+                                if(mEscaped) {
+                                        mEscaped = false;
+                                        dropFrame(); // ESC END is a protocol violation
+                                } else if(isFrameStarted()) {
+                                        endFrame();
+                                }
+                        } else if(mEscaped) {
+                                mEscaped = false;
+                                if(b == ESC_END) {
+                                        append(END);
+                                } else if(b == ESC_ESC) {
+                                        append(ESC);
+                                } else {
+                                        append(b); // RFC 1055 leaves it in
+                                }
+                        } else if(b == ESC) {
+                                mEscaped = true;
+                        } else {
+                                append(b);
+                        }
+                }
+        }
+
+        @Override
+        public int maxEncodedLength(int length) {
+                return 2 * length + 2;
+        }
+
+        @Override
+        public int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+                int pos = dstOff;
+                dst[pos++] = END;
+                for(int i = off; i < off + len; i++) {
+                        byte b = src[i];
+                        if(b == END) {
+                                dst[pos++] = ESC;
+                                dst[pos++] = ESC_END;
+                        } else if(b == ESC) {
+                                dst[pos++] = ESC;
+                                dst[pos++] = ESC_ESC;
+                        } else {
+                                dst[pos++] = b;
+                        }
+                }
+                dst[pos++] = END;
+                return pos - dstOff;
+        }
+
+        @Override
+        public void reset() {
+                super.reset();
+                mEscaped = false;
+        }
+}
@@ -1,20 +1,19 @@
 package com.manicben.physicaloid.lib.fpga;
 
-import android.util.Log;
-import com.manicben.physicaloid.BuildConfig;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.log.Log;
 import java.io.IOException;
 import java.io.InputStream;
 
 public class PhysicaloidFpgaConfigurator {
 
-    private static final boolean DEBUG_SHOW = BuildConfig.DEBUG;
+    private static final boolean DEBUG_SHOW = Log.isDebug();
     private static final String TAG = PhysicaloidFpgaConfigurator.class.getSimpleName();
 
     private SerialCommunicator mSerial;
     private boolean mCanceled;
 
-    private static final int READ_DELAY_MS          = 10;
+    private static final int READ_TIMEOUT_MS        = 10;
     private static final int CONF_CHECK_RETRY       = 10;
     private static final int CONF_WRITE_PACKET_SIZE = 128;
 
@@ -38,9 +37,7 @@ public class PhysicaloidFpgaConfigurator {
             readStatus = true;
             commandSwitchUserMode();
 
-            readDelay();
-
-            retlen = mSerial.read(rbuf, rbuf.length);
+            retlen = mSerial.read(rbuf, 0, rbuf.length, READ_TIMEOUT_MS);
 
             if(retlen == 0) {
                 if(DEBUG_SHOW){Log.d(TAG,"Configuration Fail : No response on switching user mode.");}
@@ -66,9 +63,7 @@ public class PhysicaloidFpgaConfigurator {
         for(int i=0; i<CONF_CHECK_RETRY; i++) {
             commandSwitchConfigMode();
 
-            readDelay();
-
-            retlen = mSerial.read(rbuf, rbuf.length);
+            retlen = mSerial.read(rbuf, 0, rbuf.length, READ_TIMEOUT_MS);
             if(retlen == 0) {
                 if(DEBUG_SHOW){Log.d(TAG,"Configuration Fail : No response on switching config mode.");}
                 continue;
@@ -94,9 +89,7 @@ public class PhysicaloidFpgaConfigurator {
         for(int i=0; i<CONF_CHECK_RETRY; i++) {
             commandStartConfig();
 
-            readDelay();
-
-            retlen = mSerial.read(rbuf, rbuf.length);
+            retlen = mSerial.read(rbuf, 0, rbuf.length, READ_TIMEOUT_MS);
 
             if(retlen == 0) {
                 if(DEBUG_SHOW){Log.d(TAG,"Configuration Fail : No response on starting config.");}
@@ -162,9 +155,7 @@ public class PhysicaloidFpgaConfigurator {
         for(int i=0; i<CONF_CHECK_RETRY; i++) {
             commandStopConfig();
 
-            readDelay();
-
-            retlen = mSerial.read(rbuf, rbuf.length);
+            retlen = mSerial.read(rbuf, 0, rbuf.length, READ_TIMEOUT_MS);
 
             if(retlen == 0) {
                 if(DEBUG_SHOW){Log.d(TAG,"Configuration Fail : No response on configuration done.");}
@@ -229,8 +220,7 @@ public class PhysicaloidFpgaConfigurator {
     private void returnUserMode() {
         byte[] rbuf = new byte[1];
         commandSwitchUserMode();
-        readDelay();
-        mSerial.read(rbuf, rbuf.length); // throw a byte away
+        mSerial.read(rbuf, 0, rbuf.length, READ_TIMEOUT_MS); // throw a byte away
     }
 
     private boolean checkAsMode(byte ret) {
@@ -258,8 +248,7 @@ public class PhysicaloidFpgaConfigurator {
         int retlen;
         byte[] tmpbuf = new byte[128];
         while(true) {
-            readDelay();
-            retlen = mSerial.read(tmpbuf, tmpbuf.length);
+            retlen = mSerial.read(tmpbuf, 0, tmpbuf.length, READ_TIMEOUT_MS);
             if(retlen == 0) {
                 break;
             }
@@ -271,13 +260,6 @@ public class PhysicaloidFpgaConfigurator {
         }
     }
 
-    private void readDelay() {
-        try {
-            Thread.sleep(READ_DELAY_MS);
-        } catch (InterruptedException e) {
-        }
-    }
-
     private String toHexStr(byte[] b, int length) {
         String str="";
         for(int i=0; i<length; i++) {
@@ -1,12 +1,11 @@
 package com.manicben.physicaloid.lib.fpga;
 
-import android.util.Log;
-import com.manicben.physicaloid.BuildConfig;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.log.Log;
 
 public class PhysicaloidFpgaPacketFilter {
     @SuppressWarnings("unused")
-    private static final boolean DEBUG_SHOW = BuildConfig.DEBUG;
+    private static final boolean DEBUG_SHOW = Log.isDebug();
     private static final String TAG = PhysicaloidFpgaPacketFilter.class.getSimpleName();
 
     public int writeWithEscape(SerialCommunicator comm, byte[] buf, int size) {
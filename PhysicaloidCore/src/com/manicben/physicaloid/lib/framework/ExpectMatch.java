@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import java.nio.charset.Charset;
+
+/**
+ * Result of SerialCommunicator.expect()
+ */
+public final class ExpectMatch {
+
+        private final int mPatternIndex;
+        private final byte[] mPattern;
+        private final byte[] mConsumed;
+        private final long mDiscarded;
+
+        ExpectMatch(int patternIndex, byte[] pattern, byte[] consumed, long discarded) {
+                mPatternIndex = patternIndex;
+                mPattern = pattern;
+                mConsumed = consumed;
+                mDiscarded = discarded;
+        }
+
+        /**
+         * Gets which pattern matched
+         *
+         * @return index into the patterns the automaton was built from
+         */
+        public int getPatternIndex() {
+                return mPatternIndex;
+        }
+
+        /**
+         * Gets the pattern that matched
+         *
+         * @return pattern bytes
+         */
+        public byte[] getPattern() {
+                return mPattern;
+        }
+
+        /**
+         * Gets the bytes taken from the read buffer, ending with the pattern
+         *
+         * @return consumed bytes, at most ExpectQueue.MAX_CONSUMED_SIZE of the newest
+         */
+        public byte[] getConsumed() {
+                return mConsumed;
+        }
+
+        /**
+         * Gets the consumed bytes as text, e.g. a modem's reply before "OK"
+         *
+         * @param charset e.g. US-ASCII
+         * @return consumed text
+         */
+        public String getConsumedText(Charset charset) {
+                return new String(mConsumed, charset);
+        }
+
+        /**
+         * Gets older consumed bytes that did not fit in getConsumed()
+         *
+         * @return discarded byte count
+         */
+        public long getDiscarded() {
+                return mDiscarded;
+        }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.manicben.physicaloid.misc.AhoCorasick;
+import com.manicben.physicaloid.misc.ReceiveBuffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for one of several byte patterns in the received stream.
+ *
+ * The oldest outstanding expect scans the read buffer in place, segment by
+ * segment, as the read thread commits data. The automaton state carries
+ * over from one segment and one arrival to the next, so a pattern split by
+ * the ring's wrap or by two USB packets still matches. Scanned bytes are
+ * moved out of the read buffer so a long wait never fills it. Once a
+ * pattern matches, the next expect starts right after it. An expect that
+ * times out fails with an ExpectTimeoutException carrying what it consumed.
+ *
+ * onReceived() runs on the read thread and on expect()'s caller, always
+ * under the queue's lock, so the buffer still has one consumer at a time as
+ * long as nobody read()s or transact()s while expects are outstanding.
+ */
+public class ExpectQueue implements ReceiveBuffer.SegmentVisitor {
+
+        /** most consumed bytes an ExpectMatch keeps, older ones are only counted */
+        public static final int MAX_CONSUMED_SIZE = 64 * 1024;
+        private static final int INITIAL_CONSUMED_SIZE = 256;
+        private static final byte[] EMPTY = new byte[0];
+
+        private final SerialCommunicator mSerial;
+        private final ArrayDeque<Expectation> mPending = new ArrayDeque<Expectation>(); // guarded by this
+
+        // scan of the head expectation, guarded by this
+        private int mState = AhoCorasick.START;
+        private int mScanned;           // bytes visited in this onReceived()
+        private int mMatchEnd;          // bytes up to and including the match, -1 : no match yet
+        private byte[] mConsumed = new byte[INITIAL_CONSUMED_SIZE];
+        private int mConsumedLength;
+        private long mDiscarded;
+
+        /**
+         * Creates the expect queue of a device
+         *
+         * @param serial opened device
+         */
+        public ExpectQueue(SerialCommunicator serial) {
+                mSerial = serial;
+        }
+
+        /**
+         * Waits for any of the patterns, after those expected before
+         *
+         * @param patterns  compiled patterns
+         * @param timeoutMs longest wait from now
+         * @return completes with the match, fails with ExpectTimeoutException
+         */
+        public ListenableFuture<ExpectMatch> expect(AhoCorasick patterns, final int timeoutMs) {
+                final Expectation expectation = new Expectation(patterns);
+                synchronized(this) {
+                        mPending.add(expectation);
+                        expectation.timeout = TransactionQueue.TIMER.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                        if(remove(expectation)) {
+                                                expectation.future.setException(new ExpectTimeoutException("no match in " + timeoutMs + " ms",
+                                                        expectation.consumed, expectation.discarded));
+                                        }
+                                }
+                        }, Math.max(0, timeoutMs), TimeUnit.MILLISECONDS);
+                }
+                onReceived(); // the pattern may be buffered already
+                return expectation.future;
+        }
+
+        /**
+         * Gets expectations not matched yet
+         *
+         * @return outstanding count
+         */
+        public synchronized int getOutstanding() {
+                return mPending.size();
+        }
+
+        /**
+         * Scans what was received since the last call. Called by the read thread after each commit.
+         */
+        public void onReceived() {
+                for(;;) {
+                        Expectation matched;
+                        ExpectMatch result;
+                        synchronized(this) {
+                                Expectation head = mPending.peek();
+                                if(head == null) {
+                                        return;
+                                }
+                                ReceiveBuffer buffer = mSerial.mBuffer;
+                                mScanned = 0;
+                                mMatchEnd = -1;
+                                buffer.forEachSegment(this);
+                                if(mMatchEnd < 0) {
+                                        consume(mScanned);
+                                        return;
+                                }
+                                consume(mMatchEnd);
+                                mPending.poll();
+                                int index = head.patterns.match(mState);
+                                result = new ExpectMatch(index, head.patterns.pattern(index),
+                                        Arrays.copyOf(mConsumed, mConsumedLength), mDiscarded);
+                                restart();
+                                matched = head;
+                        }
+                        // completed outside the lock, the listener may expect again
+                        matched.timeout.cancel(false);
+                        matched.future.set(result);
+                }
+        }
+
+        @Override
+        public boolean onSegment(ByteBuffer segment) {
+                AhoCorasick patterns = mPending.peek().patterns;
+                int state = mState;
+                for(int i = segment.position(); i < segment.limit(); i++) {
+                        state = patterns.next(state, segment.get(i));
+                        if(patterns.match(state) >= 0) {
+                                mState = state;
+                                mScanned += i - segment.position() + 1;
+                                mMatchEnd = mScanned;
+                                return false;
+                        }
+                }
+                mState = state;
+                mScanned += segment.remaining();
+                return true;
+        }
+
+        // moves scanned bytes from the read buffer to mConsumed, keeping the newest MAX_CONSUMED_SIZE
+        private void consume(int length) {
+                while(length > 0) {
+                        if(mConsumedLength == MAX_CONSUMED_SIZE) {
+                                int drop = MAX_CONSUMED_SIZE / 2;
+                                System.arraycopy(mConsumed, drop, mConsumed, 0, mConsumedLength - drop);
+                                mConsumedLength -= drop;
+                                mDiscarded += drop;
+                        }
+                        if(mConsumedLength == mConsumed.length) {
+                                mConsumed = Arrays.copyOf(mConsumed, Math.min(MAX_CONSUMED_SIZE, mConsumed.length * 2));
+                        }
+                        int got = mSerial.read(mConsumed, mConsumedLength, Math.min(length, mConsumed.length - mConsumedLength), 0);
+                        if(got <= 0) {
+                                break;
+                        }
+                        mConsumedLength += got;
+                        length -= got;
+                }
+        }
+
+        private void restart() {
+                mState = AhoCorasick.START;
+                mConsumedLength = 0;
+                mDiscarded = 0;
+                if(mConsumed.length > INITIAL_CONSUMED_SIZE) {
+                        mConsumed = new byte[INITIAL_CONSUMED_SIZE];
+                }
+        }
+
+        private synchronized boolean remove(Expectation expectation) {
+                boolean head = (mPending.peek() == expectation);
+                for(Iterator<Expectation> it = mPending.iterator(); it.hasNext(); ) {
+                        if(it.next() == expectation) {
+                                it.remove();
+                                if(head) {
+                                        expectation.consumed = Arrays.copyOf(mConsumed, mConsumedLength);
+                                        expectation.discarded = mDiscarded;
+                                        restart(); // the next one scans from here with its own patterns
+                                }
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        private static final class Expectation {
+                final AhoCorasick patterns;
+                final SettableFuture<ExpectMatch> future = SettableFuture.create();
+                ScheduledFuture<?> timeout;        // set under the queue's lock when queued
+                byte[] consumed = EMPTY;           // set under the queue's lock when removed
+                long discarded;
+
+                Expectation(AhoCorasick patterns) {
+                        this.patterns = patterns;
+                }
+        }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Failure of SerialCommunicator.expect() when no pattern matched in time.
+ * Carries the bytes the expect already took from the read buffer, which
+ * read() will not see again.
+ */
+public final class ExpectTimeoutException extends TimeoutException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mConsumed;
+        private final long mDiscarded;
+
+        ExpectTimeoutException(String message, byte[] consumed, long discarded) {
+                super(message);
+                mConsumed = consumed;
+                mDiscarded = discarded;
+        }
+
+        /**
+         * Gets the bytes taken from the read buffer while waiting
+         *
+         * @return consumed bytes, at most ExpectQueue.MAX_CONSUMED_SIZE of the newest
+         */
+        public byte[] getConsumed() {
+                return mConsumed;
+        }
+
+        /**
+         * Gets older consumed bytes that did not fit in getConsumed()
+         *
+         * @return discarded byte count
+         */
+        public long getDiscarded() {
+                return mDiscarded;
+        }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import com.manicben.physicaloid.lib.usb.driver.uart.DataListener;
+import com.manicben.physicaloid.lib.usb.driver.uart.ReadListener;
+import com.manicben.physicaloid.log.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls read and data listeners for a driver's read thread, either right
+ * there (inline) or through an Executor.
+ *
+ * Off the read thread every listener has its own mailbox that is drained by
+ * at most one task at a time, so each listener sees its events in arrival
+ * order whatever the executor. The read thread never waits: pending onRead()
+ * calls of one listener collapse into one with the latest size, and
+ * onData() copies beyond queueBytes are dropped and counted.
+ */
+public class ListenerDispatcher {
+
+        private static final String TAG = ListenerDispatcher.class.getSimpleName();
+        private static final long IDLE_THREAD_KEEP_ALIVE_SEC = 30;
+
+        private final Executor mExecutor;
+        private final int mQueueBytes;
+        private final AtomicInteger mQueueDepth = new AtomicInteger();
+        private final AtomicInteger mQueuedBytes = new AtomicInteger();
+        private final AtomicLong mDroppedBytes = new AtomicLong();
+        private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+        private volatile long mLastLatencyNanos;
+
+        /**
+         * Creates a dispatcher
+         *
+         * @param executor   runs the listeners, null : inline on the read thread
+         * @param queueBytes most received bytes copied for data listeners not called yet
+         */
+        public ListenerDispatcher(Executor executor, int queueBytes) {
+                mExecutor = executor;
+                mQueueBytes = Math.max(0, queueBytes);
+        }
+
+        /**
+         * Creates the dispatcher the options ask for
+         *
+         * @param options e.g. OpenOptions.DISPATCH_ORDERED
+         * @return new dispatcher
+         */
+        public static ListenerDispatcher create(OpenOptions options) {
+                switch(options.listenerDispatch) {
+                        case OpenOptions.DISPATCH_ORDERED:
+                                return new ListenerDispatcher(newOrderedExecutor(), options.listenerQueueBytes);
+                        case OpenOptions.DISPATCH_EXECUTOR:
+                                if(options.listenerExecutor != null) {
+                                        return new ListenerDispatcher(options.listenerExecutor, options.listenerQueueBytes);
+                                }
+                                Log.e(TAG, "DISPATCH_EXECUTOR without listenerExecutor, calling listeners inline");
+                                break;
+                        default:
+                                break;
+                }
+                return new ListenerDispatcher(null, options.listenerQueueBytes);
+        }
+
+        // one thread for every listener of a device, gone while the device is quiet
+        private static Executor newOrderedExecutor() {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_THREAD_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                        Thread thread = new Thread(r, "Physicaloid-listener");
+                                        thread.setDaemon(true);
+                                        return thread;
+                                }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+                return executor;
+        }
+
+        /**
+         * Checks listeners are called on the read thread
+         *
+         * @return true : inline, false : through an executor
+         */
+        public boolean isInline() {
+                return mExecutor == null;
+        }
+
+        // calls or queues onRead(size), read thread only
+        void dispatchRead(ReadMailbox mailbox, int size) {
+                if(mExecutor == null) {
+                        mailbox.listener.onRead(size);
+                        return;
+                }
+                boolean schedule;
+                synchronized(mailbox) {
+                        if(!mailbox.pending) {
+                                mailbox.pending = true;
+                                mailbox.queuedAt = System.nanoTime();
+                                mQueueDepth.incrementAndGet();
+                        }
+                        mailbox.size = size;
+                        schedule = !mailbox.scheduled;
+                        mailbox.scheduled = true;
+                }
+                if(schedule) {
+                        execute(mailbox);
+                }
+        }
+
+        // calls onData(data) or queues a copy of it, read thread only
+        void dispatchData(DataMailbox mailbox, ByteBuffer data) {
+                if(mExecutor == null) {
+                        mailbox.listener.onData(data);
+                        return;
+                }
+                int length = data.remaining();
+                if(mQueuedBytes.addAndGet(length) > mQueueBytes) {
+                        mQueuedBytes.addAndGet(-length);
+                        mDroppedBytes.addAndGet(length);
+                        return;
+                }
+                ByteBuffer copy = ByteBuffer.allocate(length);
+                copy.put(data.duplicate());
+                copy.flip();
+                boolean schedule;
+                synchronized(mailbox) {
+                        mailbox.queue.add(copy.asReadOnlyBuffer());
+                        mailbox.times.add(System.nanoTime());
+                        mQueueDepth.incrementAndGet();
+                        schedule = !mailbox.scheduled;
+                        mailbox.scheduled = true;
+                }
+                if(schedule) {
+                        execute(mailbox);
+                }
+        }
+
+        private void execute(Mailbox mailbox) {
+                try {
+                        mExecutor.execute(mailbox);
+                } catch(RejectedExecutionException e) {
+                        Log.e(TAG, "listener executor rejected dispatch, events dropped : " + e);
+                        mailbox.discard();
+                }
+        }
+
+        /**
+         * Gets listener calls waiting for the executor
+         *
+         * @return queued events, collapsed onRead() calls count once
+         */
+        public int getQueueDepth() {
+                return mQueueDepth.get();
+        }
+
+        /**
+         * Gets received bytes dropped because data listeners fell behind by more than queueBytes
+         *
+         * @return dropped byte count
+         */
+        public long getDroppedBytes() {
+                return mDroppedBytes.get();
+        }
+
+        /**
+         * Gets how long the last listener call waited between arrival and being called
+         *
+         * @return latency in microseconds, 0 when inline
+         */
+        public long getLastLatencyUs() {
+                return TimeUnit.NANOSECONDS.toMicros(mLastLatencyNanos);
+        }
+
+        /**
+         * Gets the longest wait between arrival and a listener call
+         *
+         * @return latency in microseconds, 0 when inline
+         */
+        public long getMaxLatencyUs() {
+                return TimeUnit.NANOSECONDS.toMicros(mMaxLatencyNanos.get());
+        }
+
+        private void recordLatency(long queuedAt) {
+                long latency = System.nanoTime() - queuedAt;
+                mLastLatencyNanos = latency;
+                long max;
+                while(latency > (max = mMaxLatencyNanos.get()) && !mMaxLatencyNanos.compareAndSet(max, latency)) {
+                }
+        }
+
+        /**
+         * Creates the mailbox a read listener's events queue in
+         *
+         * @param listener ReadListener
+         * @return mailbox to dispatch() through
+         */
+        public ReadMailbox newReadMailbox(ReadListener listener) {
+                return new ReadMailbox(this, listener);
+        }
+
+        /**
+         * Creates the mailbox a data listener's events queue in
+         *
+         * @param listener DataListener
+         * @return mailbox to dispatch() through
+         */
+        public DataMailbox newDataMailbox(DataListener listener) {
+                return new DataMailbox(this, listener);
+        }
+
+        /**
+         * Pending events of one listener. scheduled is set while a drain task is
+         * queued or running, so only one task calls the listener at a time.
+         */
+        public abstract static class Mailbox implements Runnable {
+                final ListenerDispatcher dispatcher;
+                boolean scheduled;      // guarded by this
+
+                Mailbox(ListenerDispatcher dispatcher) {
+                        this.dispatcher = dispatcher;
+                }
+
+                abstract void discard();
+        }
+
+        public static final class ReadMailbox extends Mailbox {
+                final ReadListener listener;
+                boolean pending;        // guarded by this
+                int size;               // guarded by this
+                long queuedAt;          // guarded by this
+
+                ReadMailbox(ListenerDispatcher dispatcher, ReadListener listener) {
+                        super(dispatcher);
+                        this.listener = listener;
+                }
+
+                public ReadListener getListener() {
+                        return listener;
+                }
+
+                /**
+                 * Calls or queues onRead(size). Read thread only.
+                 *
+                 * @param size size given to the listener
+                 */
+                public void dispatch(int size) {
+                        dispatcher.dispatchRead(this, size);
+                }
+
+                @Override
+                public void run() {
+                        for(;;) {
+                                int eventSize;
+                                long eventQueuedAt;
+                                synchronized(this) {
+                                        if(!pending) {
+                                                scheduled = false;
+                                                return;
+                                        }
+                                        pending = false;
+                                        eventSize = size;
+                                        eventQueuedAt = queuedAt;
+                                }
+                                dispatcher.mQueueDepth.decrementAndGet();
+                                dispatcher.recordLatency(eventQueuedAt);
+                                try {
+                                        listener.onRead(eventSize);
+                                } catch(RuntimeException e) {
+                                        Log.e(TAG, "read listener threw : " + e);
+                                }
+                        }
+                }
+
+                @Override
+                synchronized void discard() {
+                        if(pending) {
+                                pending = false;
+                                dispatcher.mQueueDepth.decrementAndGet();
+                        }
+                        scheduled = false;
+                }
+        }
+
+        public static final class DataMailbox extends Mailbox {
+                final DataListener listener;
+                final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();     // guarded by this
+                final ArrayDeque<Long> times = new ArrayDeque<Long>();                 // guarded by this
+
+                DataMailbox(ListenerDispatcher dispatcher, DataListener listener) {
+                        super(dispatcher);
+                        this.listener = listener;
+                }
+
+                public DataListener getListener() {
+                        return listener;
+                }
+
+                /**
+                 * Calls onData(data), or queues a copy of it. Read thread only.
+                 *
+                 * @param data received bytes between position and limit, only valid during this call
+                 */
+                public void dispatch(ByteBuffer data) {
+                        dispatcher.dispatchData(this, data);
+                }
+
+                @Override
+                public void run() {
+                        for(;;) {
+                                ByteBuffer data;
+                                long queuedAt;
+                                synchronized(this) {
+                                        data = queue.poll();
+                                        if(data == null) {
+                                                scheduled = false;
+                                                return;
+                                        }
+                                        queuedAt = times.poll();
+                                }
+                                dispatcher.mQueueDepth.decrementAndGet();
+                                dispatcher.mQueuedBytes.addAndGet(-data.remaining());
+                                dispatcher.recordLatency(queuedAt);
+                                try {
+                                        listener.onData(data);
+                                } catch(RuntimeException e) {
+                                        Log.e(TAG, "data listener threw : " + e);
+                                }
+                        }
+                }
+
+                @Override
+                synchronized void discard() {
+                        ByteBuffer data;
+                        while((data = queue.poll()) != null) {
+                                times.poll();
+                                dispatcher.mQueueDepth.decrementAndGet();
+                                dispatcher.mQueuedBytes.addAndGet(-data.remaining());
+                                dispatcher.mDroppedBytes.addAndGet(data.remaining());
+                        }
+                        scheduled = false;
+                }
+        }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manicben.physicaloid.lib.framework;
+
+import com.manicben.physicaloid.misc.ReceiveBuffer;
+import java.io.File;
+import java.util.concurrent.Executor;
+
+/**
+ * Settings a SerialCommunicator applies when it is opened. Changing them on
+ * an opened device takes effect on the next open().
+ */
+public class OpenOptions {
+    public static final int DEFAULT_READ_BUFFER_SIZE    = 1024;
+
+    public static final int OVERFLOW_DROP_NEWEST        = ReceiveBuffer.OVERFLOW_DROP_NEWEST;
+    public static final int OVERFLOW_DROP_OLDEST        = ReceiveBuffer.OVERFLOW_DROP_OLDEST;
+    public static final int OVERFLOW_BLOCK              = ReceiveBuffer.OVERFLOW_BLOCK;
+
+    /** byte array ring, received packets are copied in */
+    public static final int READ_BUFFER_RING            = 0;
+    /** direct ByteBuffer slots USB requests are queued into, no copy with usbReadRequests 1 */
+    public static final int READ_BUFFER_DIRECT          = 1;
+    /** byte array ring shared by subscribers with their own cursors, see SerialCommunicator.subscribe() */
+    public static final int READ_BUFFER_BROADCAST       = 2;
+    /** pooled segments taken while bytes are buffered, readBufferSize is the memory limit */
+    public static final int READ_BUFFER_SEGMENTS        = 3;
+    /** byte array ring of readBufferSize, then spillFile up to spillLimit, see SpillBuffer */
+    public static final int READ_BUFFER_SPILL           = 4;
+
+    public static final int DEFAULT_SPILL_LIMIT         = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_WRITE_QUEUE_SIZE    = 16 * 1024;
+    /** writeAsync() coalesces queued writes into calls of up to 256 bytes, see writePacketsPerTransfer for the USB transfer size */
+    public static final int DEFAULT_WRITE_TRANSFER_SIZE = 256;
+
+    /** 2 KB on full-speed, 16 KB on high-speed endpoints */
+    public static final int DEFAULT_WRITE_PACKETS_PER_TRANSFER = 32;
+    public static final int MAX_WRITE_TRANSFER_SIZE     = 16 * 1024;
+
+    /** listeners are called on the driver's read thread */
+    public static final int DISPATCH_INLINE             = 0;
+    /** listeners are called in order on one thread of the device's own */
+    public static final int DISPATCH_ORDERED            = 1;
+    /** listeners are called on listenerExecutor, each listener's calls still in order */
+    public static final int DISPATCH_EXECUTOR           = 2;
+
+    public static final int DEFAULT_LISTENER_QUEUE_BYTES = 64 * 1024;
+
+    /** IN requests the USB drivers keep queued, so the endpoint always has a buffer while one completes */
+    public static final int DEFAULT_USB_READ_REQUESTS   = 4;
+    /** OUT requests the USB drivers keep queued while writing, 1 : one blocking bulk transfer at a time */
+    public static final int DEFAULT_USB_WRITE_REQUESTS  = 4;
+
+    public int readBufferSize;
+    public int overflowPolicy;
+    public int overflowTimeoutMs;
+    public int readBufferType;
+    public File spillFile;
+    public int spillLimit;
+    /** received chunks whose arrival time is kept until read, 0 : none, see SerialCommunicator.read(byte[], int, int, int, long[]) */
+    public int arrivalTimeChunks;
+    /** most bytes writeAsync() keeps queued */
+    public int writeQueueSize;
+    /** most queued bytes coalesced into one write */
+    public int writeTransferSize;
+    /** how long the writer waits for more writes to coalesce, 0 : only what is already queued */
+    public int writeCoalesceUs;
+    /** USB drivers send writes in bulk transfers of this many max size packets, up to MAX_WRITE_TRANSFER_SIZE */
+    public int writePacketsPerTransfer;
+    /** where read and data listeners run, e.g. DISPATCH_ORDERED */
+    public int listenerDispatch;
+    /** runs the listeners with DISPATCH_EXECUTOR */
+    public Executor listenerExecutor;
+    /** most received bytes copied for data listeners that are behind, more are dropped */
+    public int listenerQueueBytes;
+    /** USB IN requests kept queued, 1 : received straight into the read buffer, more : each copied in once */
+    public int usbReadRequests;
+    /** USB OUT requests queued at once by one write, 1 : blocking bulk transfers, always 1 with pollingMode */
+    public int usbWriteRequests;
+    /** USB drivers are serviced by a few threads shared by all devices instead of one each, API 26 and later */
+    public boolean usbSharedDispatcher;
+    /** no read thread, the application receives with SerialCommunicator.poll(), USB on API 26 and later, Bluetooth checks for data every millisecond instead of waiting */
+    public boolean pollingMode;
+
+    public OpenOptions() {
+        this(DEFAULT_READ_BUFFER_SIZE, OVERFLOW_DROP_NEWEST, 0);
+    }
+
+    public OpenOptions(int readBufferSize, int overflowPolicy, int overflowTimeoutMs) {
+        this(readBufferSize, overflowPolicy, overflowTimeoutMs, READ_BUFFER_RING);
+    }
+
+    public OpenOptions(int readBufferSize, int overflowPolicy, int overflowTimeoutMs, int readBufferType) {
+        this.readBufferSize     = readBufferSize;
+        this.overflowPolicy     = overflowPolicy;
+        this.overflowTimeoutMs  = overflowTimeoutMs;
+        this.readBufferType     = readBufferType;
+        this.spillLimit         = DEFAULT_SPILL_LIMIT;
+        this.writeQueueSize     = DEFAULT_WRITE_QUEUE_SIZE;
+        this.writeTransferSize  = DEFAULT_WRITE_TRANSFER_SIZE;
+        this.writePacketsPerTransfer = DEFAULT_WRITE_PACKETS_PER_TRANSFER;
+        this.listenerDispatch   = DISPATCH_INLINE;
+        this.listenerQueueBytes = DEFAULT_LISTENER_QUEUE_BYTES;
+        this.usbReadRequests    = DEFAULT_USB_READ_REQUESTS;
+        this.usbWriteRequests   = DEFAULT_USB_WRITE_REQUESTS;
+    }
+
+    /**
+     * Options for READ_BUFFER_SPILL
+     * @param readBufferSize in-heap part
+     * @param spillFile file mapped for what does not fit in the heap, e.g. under Context.getCacheDir()
+     * @param spillLimit most bytes on disk, rounded down to a power of two
+     */
+    public static OpenOptions spill(int readBufferSize, File spillFile, int spillLimit) {
+        OpenOptions options = new OpenOptions(readBufferSize, OVERFLOW_DROP_NEWEST, 0, READ_BUFFER_SPILL);
+        options.spillFile       = spillFile;
+        options.spillLimit      = spillLimit;
+        return options;
+    }
+}
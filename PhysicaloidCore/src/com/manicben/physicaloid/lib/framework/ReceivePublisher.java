@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes received bytes to one Flow.Subscriber at a time.
+ *
+ * Each onNext() gets a new heap ByteBuffer the subscriber owns, holding what
+ * was in the read buffer, up to maxItemSize. While the subscriber has
+ * requested nothing the driver's read thread stops receiving, so the device
+ * or the peer is held back by its own flow control instead of the read
+ * buffer dropping bytes. A subscriber consumes the read buffer: do not call
+ * read() at the same time.
+ *
+ * java.util.concurrent.Flow needs Android API 30. SerialCommunicator only
+ * touches this class once publisher() was called.
+ */
+public class ReceivePublisher implements Flow.Publisher<ByteBuffer> {
+
+        private final SerialCommunicator mSerial;
+        private final int mMaxItemSize;
+        private final AtomicInteger mWip = new AtomicInteger();
+        private volatile ReceiveSubscription mCurrent;
+        private boolean mWoken;         // guarded by this
+
+        /**
+         * Creates a publisher for a device
+         *
+         * @param serial      device whose read buffer is published
+         * @param maxItemSize most bytes in one onNext()
+         */
+        public ReceivePublisher(SerialCommunicator serial, int maxItemSize) {
+                mSerial = serial;
+                mMaxItemSize = Math.max(1, maxItemSize);
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                if(subscriber == null) {
+                        throw new NullPointerException("subscriber");
+                }
+                ReceiveSubscription subscription = new ReceiveSubscription(subscriber);
+                boolean accepted;
+                synchronized(this) {
+                        accepted = (mCurrent == null);
+                        if(accepted) {
+                                mCurrent = subscription;
+                        }
+                }
+                if(!accepted) {
+                        subscription.cancelled = true;
+                        subscriber.onSubscribe(subscription);
+                        subscriber.onError(new IllegalStateException("already subscribed"));
+                        return;
+                }
+                subscriber.onSubscribe(subscription);
+                drain();
+        }
+
+        /**
+         * Checks the read thread should receive more
+         *
+         * @return true : nobody subscribed or the subscriber wants more, false : hold back
+         */
+        public boolean hasDemand() {
+                ReceiveSubscription subscription = mCurrent;
+                return subscription == null || subscription.demand > 0;
+        }
+
+        /**
+         * Waits until the subscriber requests more. Read thread only.
+         *
+         * @param timeoutMs longest wait, 0 : just check
+         * @return true : go on receiving, false : still no demand
+         */
+        public synchronized boolean awaitDemand(long timeoutMs) {
+                if(hasDemand()) {
+                        return true;
+                }
+                if(!mWoken && timeoutMs > 0) {     // wait(0) would never time out
+                        try {
+                                wait(timeoutMs);
+                        } catch(InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                        }
+                }
+                mWoken = false;
+                return hasDemand();
+        }
+
+        /**
+         * Ends awaitDemand() early, or the next call if none is waiting, e.g.
+         * so the read thread reaps write completions. Any thread.
+         */
+        public synchronized void wake() {
+                mWoken = true;
+                notifyAll();
+        }
+
+        /**
+         * Hands buffered bytes to the subscriber as far as it asked for them.
+         * Called by the read thread after each commit and by request().
+         */
+        public void drain() {
+                if(mWip.getAndIncrement() != 0) {
+                        return; // the thread already draining goes round again
+                }
+                int missed = 1;
+                for(;;) {
+                        ReceiveSubscription subscription = mCurrent;
+                        if(subscription != null) {
+                                emit(subscription);
+                                if(subscription.completing && !subscription.cancelled) {
+                                        detach(subscription);
+                                        subscription.subscriber.onComplete();
+                                }
+                        }
+                        missed = mWip.addAndGet(-missed);
+                        if(missed == 0) {
+                                break;
+                        }
+                }
+        }
+
+        private void emit(ReceiveSubscription subscription) {
+                while(!subscription.cancelled && subscription.demand > 0) {
+                        int length = mSerial.mBuffer.getBufferdLength();
+                        if(length <= 0) {
+                                return;
+                        }
+                        ByteBuffer item = ByteBuffer.allocate(Math.min(length, mMaxItemSize));
+                        mSerial.read(item);
+                        item.flip();
+                        if(!item.hasRemaining()) {
+                                return;
+                        }
+                        synchronized(this) {
+                                if(subscription.demand != Long.MAX_VALUE) {
+                                        subscription.demand--;
+                                }
+                        }
+                        subscription.subscriber.onNext(item);
+                }
+        }
+
+        /**
+         * Ends the subscription with onComplete() once the subscriber took what
+         * it asked for, e.g. when the device is closed
+         */
+        public void complete() {
+                ReceiveSubscription subscription = mCurrent;
+                if(subscription != null) {
+                        subscription.completing = true;
+                        drain(); // signalled from the drain loop, never beside an onNext()
+                }
+        }
+
+        private synchronized void detach(ReceiveSubscription subscription) {
+                subscription.cancelled = true;
+                if(mCurrent == subscription) {
+                        mCurrent = null;
+                }
+                notifyAll(); // the read thread goes back to receiving freely
+        }
+
+        private final class ReceiveSubscription implements Flow.Subscription {
+                final Flow.Subscriber<? super ByteBuffer> subscriber;
+                volatile long demand;           // written under the publisher's lock
+                volatile boolean cancelled;
+                volatile boolean completing;
+
+                ReceiveSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                        this.subscriber = subscriber;
+                }
+
+                @Override
+                public void request(long n) {
+                        if(cancelled) {
+                                return;
+                        }
+                        if(n <= 0) {
+                                detach(this);
+                                subscriber.onError(new IllegalArgumentException("request " + n + ", must be positive"));
+                                return;
+                        }
+                        synchronized(ReceivePublisher.this) {
+                                long sum = demand + n;
+                                demand = (sum < 0) ? Long.MAX_VALUE : sum;
+                                ReceivePublisher.this.notifyAll();
+                        }
+                        drain();
+                }
+
+                @Override
+                public void cancel() {
+                        detach(this);
+                }
+        }
+}
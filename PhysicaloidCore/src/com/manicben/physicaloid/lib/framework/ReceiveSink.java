@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a read engine puts what it received, see SerialCommunicator.getReceiveSink().
+ * Every method is called from the one thread receiving for the device.
+ */
+public interface ReceiveSink {
+    /**
+     * Waits while a publisher() subscriber has requested nothing
+     * @param timeoutMs longest wait
+     * @return true : receive, false : still held back
+     */
+    boolean awaitDemand(long timeoutMs);
+
+    /**
+     * Ends an awaitDemand() in progress or the next one early, e.g. when a
+     * write queued requests the receiving thread has to reap. Any thread.
+     */
+    void wake();
+
+    /**
+     * Gets read buffer memory a transfer can be received into in place
+     * @param maxLength the most bytes the transfer is going to put
+     * @return direct ByteBuffer, see ReceiveBuffer.acquire()
+     */
+    ByteBuffer acquire(int maxLength);
+
+    /**
+     * Publishes a transfer received into the last acquire() and tells the listeners
+     * @param buf    the buffer acquire() returned
+     * @param offset leading bytes to skip, e.g. status bytes put in front by the device
+     * @param length payload length after offset
+     */
+    void commit(ByteBuffer buf, int offset, int length);
+
+    /**
+     * Copies a transfer received elsewhere into the read buffer and tells the listeners
+     * @param buf    received bytes, position and limit are left alone
+     * @param offset offset of the payload in buf
+     * @param length payload length
+     */
+    void receive(ByteBuffer buf, int offset, int length);
+
+    /**
+     * Called when a wait ended without new bytes, so listeners still hear about buffered ones
+     */
+    void idle();
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells where a response ends in the bytes received since the previous one,
+ * see SerialCommunicator.transact().
+ */
+public interface ResponseMatcher {
+        /**
+         * @param received bytes received so far, from position 0, read-only
+         * @return length of the complete response at the start of received,
+         *         0 : wait for more, negative : -n leading bytes are noise to drop
+         */
+        int match(ByteBuffer received);
+
+        /**
+         * Matches responses of a fixed length
+         *
+         * @param length response length
+         * @return matcher
+         */
+        static ResponseMatcher length(final int length) {
+                return new ResponseMatcher() {
+                        @Override
+                        public int match(ByteBuffer received) {
+                                return (received.remaining() >= length) ? length : 0;
+                        }
+                };
+        }
+
+        /**
+         * Matches responses ending with a terminator byte, e.g. '\n' or STK_OK
+         *
+         * @param terminator last byte of a response, included in it
+         * @return matcher
+         */
+        static ResponseMatcher endsWith(final byte terminator) {
+                return new ResponseMatcher() {
+                        @Override
+                        public int match(ByteBuffer received) {
+                                for(int i = received.position(); i < received.limit(); i++) {
+                                        if(received.get(i) == terminator) {
+                                                return i - received.position() + 1;
+                                        }
+                                }
+                                return 0;
+                        }
+                };
+        }
+
+        /**
+         * Matches responses that start with a sync byte and are length long,
+         * dropping anything received before the sync byte
+         *
+         * @param sync   first byte of a response, e.g. STK_INSYNC
+         * @param length response length including sync
+         * @return matcher
+         */
+        static ResponseMatcher startsWith(final byte sync, final int length) {
+                return new ResponseMatcher() {
+                        @Override
+                        public int match(ByteBuffer received) {
+                                int start = received.position();
+                                for(int i = start; i < received.limit(); i++) {
+                                        if(received.get(i) == sync) {
+                                                if(i > start) {
+                                                        return -(i - start);
+                                                }
+                                                return (received.remaining() >= length) ? length : 0;
+                                        }
+                                }
+                                return -received.remaining();
+                        }
+                };
+        }
+}
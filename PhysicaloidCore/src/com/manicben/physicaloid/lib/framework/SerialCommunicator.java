@@ -0,0 +1,961 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manicben.physicaloid.lib.framework;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.manicben.physicaloid.lib.usb.driver.uart.DataListener;
+import com.manicben.physicaloid.lib.usb.driver.uart.ReadListener;
+import com.manicben.physicaloid.lib.usb.driver.uart.UartConfig;
+import com.manicben.physicaloid.log.Log;
+import com.manicben.physicaloid.misc.AhoCorasick;
+import com.manicben.physicaloid.misc.BroadcastRing;
+import com.manicben.physicaloid.misc.DirectSlotRing;
+import com.manicben.physicaloid.misc.ReceiveBuffer;
+import com.manicben.physicaloid.misc.RingBuffer;
+import com.manicben.physicaloid.misc.SegmentQueue;
+import com.manicben.physicaloid.misc.SpillBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public abstract class SerialCommunicator {
+
+    private static final String TAG = SerialCommunicator.class.getSimpleName();
+
+    private static final int COPY_CHUNK_SIZE = 4096;
+    /** how long a held back read thread sleeps before checking it was stopped */
+    protected static final int READ_DEMAND_WAIT_MS = 100;
+    /** longest close() waits for the read thread to let go of the device */
+    protected static final int READ_STOP_TIMEOUT_MS = 500;
+
+    protected volatile ReceiveBuffer mBuffer;
+    protected OpenOptions mOpenOptions;
+    private WriteQueue mWriteQueue;
+    private volatile ListenerDispatcher mDispatcher;
+    private final CopyOnWriteArrayList<ListenerDispatcher.ReadMailbox> mReadListeners = new CopyOnWriteArrayList<ListenerDispatcher.ReadMailbox>();
+    private final CopyOnWriteArrayList<ListenerDispatcher.DataMailbox> mDataListeners = new CopyOnWriteArrayList<ListenerDispatcher.DataMailbox>();
+    private volatile boolean mStopReadListener;
+    private volatile ReceivePublisher mPublisher;
+    private volatile TransactionQueue mTransactions;
+    private volatile ExpectQueue mExpects;
+    private volatile ReceiveBuffer.SegmentVisitor mReceiveConsumer;
+
+    public SerialCommunicator() {
+        mOpenOptions = new OpenOptions();
+        mBuffer = newReadBuffer();
+        mDispatcher = ListenerDispatcher.create(mOpenOptions);
+    }
+
+    /**
+     * Sets options used by the next open()
+     * @param options open options, null for defaults
+     */
+    public void setOpenOptions(OpenOptions options) {
+        mOpenOptions = (options == null) ? new OpenOptions() : options;
+        setListenerDispatcher(ListenerDispatcher.create(mOpenOptions));
+    }
+
+    /**
+     * Gets options used by open()
+     * @return open options
+     */
+    public OpenOptions getOpenOptions() {
+        return mOpenOptions;
+    }
+
+    /**
+     * Creates an empty read buffer for a read thread that only add()s copied bytes.
+     * Drivers call this from open() before starting their read thread.
+     * @return new read buffer
+     */
+    protected ReceiveBuffer newReadBuffer() {
+        return newReadBuffer(0);
+    }
+
+    /**
+     * Creates an empty read buffer of the type chosen by the open options.
+     * @param packetSize largest chunk the read thread commits at once, e.g. the endpoint's max packet size, 0 : add() only
+     * @return new read buffer
+     */
+    protected ReceiveBuffer newReadBuffer(int packetSize) {
+        ReceiveBuffer buffer = createReadBuffer(packetSize);
+        buffer.setArrivalTimeCapacity(mOpenOptions.arrivalTimeChunks);
+        return buffer;
+    }
+
+    private ReceiveBuffer createReadBuffer(int packetSize) {
+        OpenOptions o = mOpenOptions;
+        if(o.readBufferType == OpenOptions.READ_BUFFER_DIRECT && packetSize > 0) {
+            // one slot per add() would waste the ring, so add() only drivers get the byte ring
+            return new DirectSlotRing(o.readBufferSize, packetSize, o.overflowPolicy, o.overflowTimeoutMs);
+        }
+        if(o.readBufferType == OpenOptions.READ_BUFFER_SEGMENTS) {
+            int segmentSize = (packetSize > 0) ? packetSize : SegmentQueue.DEFAULT_SEGMENT_SIZE;
+            return new SegmentQueue(segmentSize, o.readBufferSize, o.overflowPolicy, o.overflowTimeoutMs);
+        }
+        if(o.readBufferType == OpenOptions.READ_BUFFER_SPILL && o.spillFile != null) {
+            try {
+                return new SpillBuffer(o.readBufferSize, o.spillFile, o.spillLimit, o.overflowPolicy, o.overflowTimeoutMs);
+            } catch(IOException e) {
+                Log.e(TAG, "cannot map " + o.spillFile + ", reading without spill : " + e);
+            } catch(IllegalArgumentException e) {
+                Log.e(TAG, "reading without spill : " + e.getMessage());
+            }
+        }
+        if(o.readBufferType == OpenOptions.READ_BUFFER_BROADCAST) {
+            return new BroadcastRing(o.readBufferSize);
+        }
+        return new RingBuffer(o.readBufferSize, o.overflowPolicy, o.overflowTimeoutMs);
+    }
+
+    /**
+     * Gets bytes dropped because the read buffer was full since open
+     * @return dropped byte count
+     */
+    public long getDroppedBytes() {
+        return mBuffer.getDroppedBytes();
+    }
+
+    /**
+     * Gets the largest read buffer fill level since open
+     * @return high-water mark in bytes
+     */
+    public int getReadBufferHighWaterMark() {
+        return mBuffer.getHighWaterMark();
+    }
+
+    /**
+     * Opens a device
+     * @return true : successful, false : fail
+     */
+    abstract public boolean open();
+
+    /**
+     * Closes a device
+     * @return true : successful, false : fail
+     */
+    abstract public boolean close();
+
+    /**
+     * Reads byte array
+     * @param buf byte array
+     * @param size read size
+     * @return actual read size
+     */
+    abstract public int read(byte[] buf, int size);
+
+    /**
+     * Reads into a ByteBuffer, copying straight from the read buffer
+     * @param dst filled from its position up to its limit
+     * @return actual read size
+     */
+    public int read(ByteBuffer dst) {
+        return mBuffer.get(dst);
+    }
+
+    /**
+     * Writes received bytes to a channel, e.g. to stream a port to a file or socket.
+     * With OpenOptions.READ_BUFFER_DIRECT, SEGMENTS or SPILL nothing passes through a heap array.
+     * @param target channel
+     * @param timeoutMs longest wait for the first byte, 0 does not wait
+     * @return transferred size, 0 on timeout
+     * @throws IOException target failed
+     */
+    public long transferTo(WritableByteChannel target, int timeoutMs) throws IOException {
+        ReceiveBuffer buffer = mBuffer;
+        buffer.await(timeoutMs);
+        return buffer.transferTo(target);
+    }
+
+    /**
+     * Reads byte array, waiting for the read thread while nothing has been received
+     * @param buf byte array
+     * @param off offset in buf
+     * @param size read size
+     * @param timeoutMs longest wait for the first byte, 0 does not wait
+     * @return actual read size, 0 on timeout
+     */
+    public int read(byte[] buf, int off, int size, int timeoutMs) {
+        return mBuffer.get(buf, off, size, timeoutMs);
+    }
+
+    /**
+     * Receives on the caller's thread, for a device opened with OpenOptions.pollingMode.
+     * Services the driver's pending USB requests or socket until something is buffered
+     * or timeoutMicros passed, then reads. Listeners, transact() and expect() run on
+     * this thread too.
+     * @param buf byte array
+     * @param off offset in buf
+     * @param size read size
+     * @param timeoutMicros longest wait for the first byte, 0 only takes what already arrived
+     * @return actual read size, 0 on timeout, -1 when the driver is not polling
+     */
+    public int poll(byte[] buf, int off, int size, long timeoutMicros) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(Math.max(0, timeoutMicros));
+        for(;;) {
+            if(mBuffer.getBufferdLength() > 0) {
+                return mBuffer.get(buf, off, size);
+            }
+            long remaining = deadline - System.nanoTime();
+            int received = serviceRead(Math.max(0, TimeUnit.NANOSECONDS.toMicros(remaining)));
+            if(received < 0) {
+                return -1;
+            }
+            if(received == 0 && remaining <= 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Receives once on the caller's thread. Drivers opened with OpenOptions.pollingMode
+     * override this and start no read thread.
+     * @param timeoutMicros longest wait, 0 does not wait
+     * @return received size, -1 when not polling
+     */
+    protected int serviceRead(long timeoutMicros) {
+        return -1;
+    }
+
+    /**
+     * Reads byte array together with when its bytes were received.
+     * Needs OpenOptions.arrivalTimeChunks, otherwise arrival is filled with -1.
+     * @param buf byte array
+     * @param off offset in buf
+     * @param size read size
+     * @param timeoutMs longest wait for the first byte, 0 does not wait
+     * @param arrival System.nanoTime() the read thread got [0] : the first byte, [1] : the last byte, -1 : unknown
+     * @return actual read size, 0 on timeout
+     */
+    public int read(byte[] buf, int off, int size, int timeoutMs, long[] arrival) {
+        return mBuffer.get(buf, off, size, timeoutMs, arrival);
+    }
+
+    /**
+     * Reads until size bytes have been received or the timeout expires
+     * @param buf byte array
+     * @param off offset in buf
+     * @param size read size
+     * @param timeoutMs longest wait for all of size bytes
+     * @return actual read size, less than size on timeout
+     */
+    public int readFully(byte[] buf, int off, int size, int timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int total = 0;
+        while(total < size) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            int len = read(buf, off + total, size - total, (int) Math.max(remaining, 0));
+            if(len <= 0) {
+                break;
+            }
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Gets a blocking InputStream of received bytes, see SerialInputStream
+     * @return new stream, closing it leaves the device open
+     */
+    public SerialInputStream getInputStream() {
+        return new SerialInputStream(this);
+    }
+
+    /**
+     * Gets an OutputStream writing to the device, see SerialOutputStream
+     * @return new stream, closing it leaves the device open
+     */
+    public SerialOutputStream getOutputStream() {
+        return new SerialOutputStream(this);
+    }
+
+    /**
+     * Adds a reader with its own cursor into the received stream. Needs
+     * OpenOptions.READ_BUFFER_BROADCAST and is valid until the next open().
+     * read() and the other read methods here keep reading their own cursor.
+     * @param slowPolicy e.g. BroadcastRing.SLOW_SUBSCRIBER_SKIP
+     * @return subscriber seeing bytes received from now on, null : not opened for broadcast
+     */
+    public BroadcastRing.Subscriber subscribe(int slowPolicy) {
+        ReceiveBuffer buffer = mBuffer;
+        if(!(buffer instanceof BroadcastRing)) {
+            return null;
+        }
+        return ((BroadcastRing) buffer).subscribe(slowPolicy);
+    }
+
+    /**
+     * Gets a received byte without consuming it
+     * @param offset distance from the oldest received byte
+     * @return byte value 0-255, -1 : not received yet
+     */
+    public int peek(int offset) {
+        return mBuffer.peek(offset);
+    }
+
+    /**
+     * Copies received bytes without consuming them
+     * @param buf byte array
+     * @param off offset in buf
+     * @param size peek size
+     * @return actual copied size
+     */
+    public int peek(byte[] buf, int off, int size) {
+        return mBuffer.peek(buf, off, size);
+    }
+
+    /**
+     * Consumes received bytes without copying them
+     * @param size skip size
+     * @return actual skipped size
+     */
+    public int skip(int size) {
+        return mBuffer.skip(size);
+    }
+
+    /**
+     * Finds a byte in the received bytes without consuming them
+     * @param b byte to find
+     * @param from distance from the oldest received byte to start from
+     * @return distance from the oldest received byte, -1 : not found
+     */
+    public int indexOf(byte b, int from) {
+        return mBuffer.indexOf(b, from);
+    }
+
+    /**
+     * Visits the received bytes in place without consuming them
+     * @param visitor called with read-only views until it returns false
+     * @return visited size
+     */
+    public int forEachSegment(ReceiveBuffer.SegmentVisitor visitor) {
+        return mBuffer.forEachSegment(visitor);
+    }
+
+    /**
+     * Writes byte array
+     * @param buf byte array
+     * @param size write size
+     * @return actual written size
+     */
+    abstract public int write(byte[] buf, int size);
+
+    /**
+     * Writes part of a byte array. Drivers that can send from an offset
+     * override this, the default copies through a byte array.
+     * @param buf byte array
+     * @param off offset in buf
+     * @param size write size
+     * @return written size, -1 on error
+     */
+    public int write(byte[] buf, int off, int size) {
+        if(off == 0) {
+            return write(buf, size);
+        }
+        byte[] chunk = new byte[Math.min(size, COPY_CHUNK_SIZE)];
+        int total = 0;
+        while(total < size) {
+            int len = Math.min(size - total, chunk.length);
+            System.arraycopy(buf, off + total, chunk, 0, len);
+            int written = write(chunk, len);
+            if(written < 0) {
+                return (total == 0) ? -1 : total;
+            }
+            total += written;
+            if(written < len) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the bulk transfer size drivers split writes into
+     * @param maxPacketSize the OUT endpoint's max packet size
+     * @return OpenOptions.writePacketsPerTransfer packets, at most OpenOptions.MAX_WRITE_TRANSFER_SIZE
+     */
+    protected int getWriteTransferSize(int maxPacketSize) {
+        int packets = Math.max(1, mOpenOptions.writePacketsPerTransfer);
+        int perPacket = Math.max(1, maxPacketSize);
+        return Math.max(perPacket, Math.min(OpenOptions.MAX_WRITE_TRANSFER_SIZE / perPacket, packets) * perPacket);
+    }
+
+    /**
+     * Gets the OUT requests a USB driver queues at once. With pollingMode
+     * completions would only be reaped inside poll(), so writes block instead.
+     * @return OpenOptions.usbWriteRequests, 1 with OpenOptions.pollingMode
+     */
+    protected int getUsbWriteRequests() {
+        return mOpenOptions.pollingMode ? 1 : mOpenOptions.usbWriteRequests;
+    }
+
+    /**
+     * Writes the bytes between position and limit of a ByteBuffer. Drivers
+     * that can send from a ByteBuffer override this, the default copies
+     * through a byte array.
+     * @param src advanced by the written size
+     * @return written size, -1 on error
+     */
+    public int write(ByteBuffer src) {
+        if(src.hasArray()) {
+            int written = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            if(written > 0) {
+                src.position(src.position() + written);
+            }
+            return written;
+        }
+        byte[] chunk = new byte[Math.min(src.remaining(), COPY_CHUNK_SIZE)];
+        int total = 0;
+        while(src.hasRemaining()) {
+            int len = Math.min(src.remaining(), chunk.length);
+            src.get(chunk, 0, len);
+            int written = write(chunk, len);
+            if(written < len) {
+                src.position(src.position() - len + Math.max(written, 0));
+                return (written < 0 && total == 0) ? -1 : total + Math.max(written, 0);
+            }
+            total += written;
+        }
+        return total;
+    }
+
+    /**
+     * Writes several ByteBuffers in order, e.g. a header and a payload
+     * @param srcs each advanced by its written size
+     * @return written size, -1 on error
+     */
+    public long write(ByteBuffer... srcs) {
+        long total = 0;
+        for(ByteBuffer src : srcs) {
+            int remaining = src.remaining();
+            int written = write(src);
+            if(written < 0) {
+                return (total == 0) ? -1 : total;
+            }
+            total += written;
+            if(written < remaining) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes what a channel provides, e.g. to stream a file to a port
+     * @param src channel, read until end of stream, count bytes, or nothing more is available
+     * @param count most bytes to transfer
+     * @return transferred size, -1 on error
+     * @throws IOException src failed
+     */
+    public long transferFrom(ReadableByteChannel src, long count) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(count, COPY_CHUNK_SIZE)));
+        long total = 0;
+        while(total < count) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), count - total));
+            if(src.read(chunk) <= 0) {
+                break;
+            }
+            chunk.flip();
+            while(chunk.hasRemaining()) {
+                int written = write(chunk);
+                if(written <= 0) {
+                    return (total == 0) ? -1 : total;
+                }
+                total += written;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Queues a write for the device's writer thread and returns at once.
+     * Small writes queued close together go out in one transfer. buf may be
+     * reused as soon as this returns. Writes through write() are not ordered
+     * against queued ones.
+     * @param buf byte array
+     * @param off offset in buf
+     * @param size write size
+     * @return completes with size once transmitted, see WriteQueue.enqueue()
+     */
+    public ListenableFuture<Integer> writeAsync(byte[] buf, int off, int size) {
+        WriteQueue queue;
+        synchronized(this) {
+            if(mWriteQueue == null) {
+                OpenOptions o = mOpenOptions;
+                mWriteQueue = new WriteQueue(this, o.writeQueueSize, o.writeTransferSize, o.writeCoalesceUs);
+            }
+            queue = mWriteQueue;
+        }
+        return queue.enqueue(buf, off, size);
+    }
+
+    /**
+     * Stops the writer thread, cancelling writes not started yet.
+     * Drivers call this from close().
+     */
+    protected void stopWriteQueue() {
+        WriteQueue queue;
+        synchronized(this) {
+            queue = mWriteQueue;
+            mWriteQueue = null;
+        }
+        if(queue != null && !queue.stop(READ_STOP_TIMEOUT_MS)) {
+            Log.e(TAG, "write thread still running " + READ_STOP_TIMEOUT_MS + "ms after close");
+        }
+    }
+
+    /**
+     * Releases what the read buffer holds outside the heap, e.g. deletes the
+     * spill file. Drivers call this from close() once the read thread stopped;
+     * what was received can still be read.
+     */
+    protected void closeReadBuffer() {
+        ReceiveBuffer buffer = mBuffer;
+        if(buffer != null) {
+            buffer.close();
+        }
+    }
+
+    /**
+     * Checks device is opened
+     * @return true : opened, false : not opened
+     */
+    abstract public boolean isOpened();
+
+    /**
+     * Sets Uart configurations
+     * @param config configurations
+     * @return true : successful, false : fail
+     */
+    abstract public boolean setUartConfig(UartConfig config);
+
+    /**
+     * Sets baudrate
+     * @param baudrate baudrate e.g. 9600
+     * @return true : successful, false : fail
+     */
+    abstract public boolean setBaudrate(int baudrate);
+
+    /**
+     * Sets Data bits
+     * @param dataBits data bits e.g. UartConfig.DATA_BITS8
+     * @return true : successful, false : fail
+     */
+    abstract public boolean setDataBits(int dataBits);
+
+    /**
+     * Sets Parity bit
+     * @param parity parity bits e.g. UartConfig.PARITY_NONE
+     * @return true : successful, false : fail
+     */
+    abstract public boolean setParity(int parity);
+
+    /**
+     * Sets Stop bits
+     * @param stopBits stop bits e.g. UartConfig.STOP_BITS1
+     * @return true : successful, false : fail
+     */
+    abstract public boolean setStopBits(int stopBits);
+
+    /**
+     * Sets flow control DTR/RTS
+     * @param dtrOn true then DTR on
+     * @param rtsOn true then RTS on
+     * @return true : successful, false : fail
+     */
+    abstract public boolean setDtrRts(boolean dtrOn, boolean rtsOn);
+
+    /**
+     * Sets DTR control line automatically based on UsbSerialDevice
+     * @return true : successful, false : fail
+     */
+    abstract public boolean setAutoDtr();
+
+    /**
+     * Gets Uart configurations
+     * @return UART configurations
+     */
+    abstract public UartConfig getUartConfig();
+
+    /**
+     * Gets baud-rate
+     * @return baud-rate configuration e.g. 9600
+     */
+    abstract public int getBaudrate();
+
+    /**
+     * Gets Data bits
+     * @return data bits e.g. UartConfig.DATA_BITS8
+     */
+    abstract public int getDataBits();
+
+    /**
+     * Gets Parity bit
+     * @return parity bits e.g. UartConfig.PARITY_NONE
+     */
+    abstract public int getParity();
+
+    /**
+     * Gets Stop bits
+     * @return stop bits e.g. UartConfig.STOP_BITS1
+     */
+    abstract public int getStopBits();
+
+    /**
+     * Gets flow control DTR
+     * @return true then DTR on
+     */
+    abstract public boolean getDtr();
+
+    /**
+     * Gets flow control RTS
+     * @return true then RTS on
+     */
+    abstract public boolean getRts();
+
+    /**
+     * Adds read listener, called as OpenOptions.listenerDispatch says
+     * @param listener ReadListener
+     */
+    public void addReadListener(ReadListener listener) {
+        if(listener != null) {
+            mReadListeners.add(mDispatcher.newReadMailbox(listener));
+        }
+    }
+
+    /**
+     * Clears read listener
+     */
+    public void clearReadListener() {
+        mReadListeners.clear();
+    }
+
+    /**
+     * Starts read listener (default is started)
+     */
+    public void startReadListener() {
+        mStopReadListener = false;
+    }
+
+    /**
+     * Stops read and data listeners (default is started)
+     */
+    public void stopReadListener() {
+        mStopReadListener = true;
+    }
+
+    /**
+     * Adds a listener given the received bytes, called as OpenOptions.listenerDispatch says
+     * @param listener DataListener
+     */
+    public void addDataListener(DataListener listener) {
+        if(listener != null) {
+            mDataListeners.add(mDispatcher.newDataMailbox(listener));
+        }
+    }
+
+    /**
+     * Removes a data listener
+     * @param listener DataListener
+     */
+    public void removeDataListener(DataListener listener) {
+        for(ListenerDispatcher.DataMailbox mailbox : mDataListeners) {
+            if(mailbox.getListener() == listener) {
+                mDataListeners.remove(mailbox);
+            }
+        }
+    }
+
+    /**
+     * Clears data listener
+     */
+    public void clearDataListener() {
+        mDataListeners.clear();
+    }
+
+    /**
+     * Gets listener calls queued for the listener executor
+     * @return queued events, 0 with OpenOptions.DISPATCH_INLINE
+     */
+    public int getListenerQueueDepth() {
+        return mDispatcher.getQueueDepth();
+    }
+
+    /**
+     * Gets the longest wait between arrival and a listener call since open
+     * @return latency in microseconds, 0 with OpenOptions.DISPATCH_INLINE
+     */
+    public long getListenerMaxLatencyUs() {
+        return mDispatcher.getMaxLatencyUs();
+    }
+
+    /**
+     * Gets how long the last listener call waited after arrival
+     * @return latency in microseconds, 0 with OpenOptions.DISPATCH_INLINE
+     */
+    public long getListenerLastLatencyUs() {
+        return mDispatcher.getLastLatencyUs();
+    }
+
+    /**
+     * Gets received bytes data listeners missed because they fell behind by
+     * more than OpenOptions.listenerQueueBytes since open
+     * @return dropped byte count
+     */
+    public long getListenerDroppedBytes() {
+        return mDispatcher.getDroppedBytes();
+    }
+
+    // moves the registered listeners to the new dispatcher, events already queued still drain on the old one
+    private synchronized void setListenerDispatcher(ListenerDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+        for(int i = 0; i < mReadListeners.size(); i++) {
+            mReadListeners.set(i, dispatcher.newReadMailbox(mReadListeners.get(i).getListener()));
+        }
+        for(int i = 0; i < mDataListeners.size(); i++) {
+            mDataListeners.set(i, dispatcher.newDataMailbox(mDataListeners.get(i).getListener()));
+        }
+    }
+
+    /**
+     * Writes a request and completes with its response. Transactions can be
+     * pipelined: responses are matched in the order the requests were sent.
+     * Outstanding transactions consume the read buffer, see TransactionQueue.
+     * @param request request bytes
+     * @param matcher finds the end of the response, e.g. ResponseMatcher.length(2)
+     * @param timeoutMs longest wait for the response
+     * @return completes with the response, fails with TimeoutException or IOException
+     */
+    public ListenableFuture<byte[]> transact(byte[] request, ResponseMatcher matcher, int timeoutMs) {
+        TransactionQueue transactions;
+        synchronized(this) {
+            if(mTransactions == null) {
+                mTransactions = new TransactionQueue(this);
+            }
+            transactions = mTransactions;
+        }
+        return transactions.transact(request, 0, request.length, matcher, timeoutMs);
+    }
+
+    /**
+     * Waits for any of several patterns in the received bytes, e.g. "OK" and
+     * "ERROR" from a modem. Expects are matched one after the other, each
+     * consuming the read buffer up to its match, see ExpectQueue.
+     * @param patterns compiled once, e.g. AhoCorasick.of(StandardCharsets.US_ASCII, "OK", "ERROR")
+     * @param timeoutMs longest wait
+     * @return completes with the match and the bytes up to it, fails with ExpectTimeoutException
+     */
+    public ListenableFuture<ExpectMatch> expect(AhoCorasick patterns, int timeoutMs) {
+        ExpectQueue expects;
+        synchronized(this) {
+            if(mExpects == null) {
+                mExpects = new ExpectQueue(this);
+            }
+            expects = mExpects;
+        }
+        return expects.expect(patterns, timeoutMs);
+    }
+
+    /**
+     * Makes consumer the read buffer's only consumer: the read thread hands it
+     * every committed byte in place and skips them, so read(), transact() and
+     * expect() see nothing while it is set. See FramePipeline.
+     * @param consumer gets each buffered segment, returns true, null to stop
+     */
+    public void setReceiveConsumer(ReceiveBuffer.SegmentVisitor consumer) {
+        mReceiveConsumer = consumer;
+    }
+
+    /**
+     * Gets the publisher of received bytes. Its subscriber's demand holds the
+     * read thread back, see ReceivePublisher. Needs Android API 30.
+     * @return the device's publisher, the same one every time
+     */
+    public synchronized ReceivePublisher publisher() {
+        if(mPublisher == null) {
+            mPublisher = new ReceivePublisher(this, COPY_CHUNK_SIZE);
+        }
+        return mPublisher;
+    }
+
+    /**
+     * Waits while a publisher() subscriber has requested nothing. Drivers call
+     * this before queueing each read, and check for close() when it returns false.
+     * @param timeoutMs longest wait, e.g. READ_DEMAND_WAIT_MS
+     * @return true : receive, false : still held back
+     */
+    protected boolean awaitReadDemand(long timeoutMs) {
+        ReceivePublisher publisher = mPublisher;
+        return publisher == null || publisher.awaitDemand(timeoutMs);
+    }
+
+    /**
+     * Ends a publisher() subscription with onComplete(). Drivers call this from close().
+     */
+    protected void completePublisher() {
+        ReceivePublisher publisher = mPublisher;
+        if(publisher != null) {
+            publisher.complete();
+        }
+    }
+
+    /**
+     * Tells the read listeners something arrived. Read thread only, never waits
+     * for a listener unless OpenOptions.DISPATCH_INLINE.
+     * @param size newly received or buffered length, depending on the driver
+     */
+    protected void onRead(int size) {
+        ReceiveBuffer.SegmentVisitor consumer = mReceiveConsumer;
+        if(consumer != null) {
+            ReceiveBuffer buffer = mBuffer;
+            buffer.skip(buffer.forEachSegment(consumer));
+        }
+        ReceivePublisher publisher = mPublisher;
+        if(publisher != null) {
+            publisher.drain();
+        }
+        TransactionQueue transactions = mTransactions;
+        if(transactions != null) {
+            transactions.onReceived();
+        }
+        ExpectQueue expects = mExpects;
+        if(expects != null) {
+            expects.onReceived();
+        }
+        if(mStopReadListener) {
+            return;
+        }
+        for(ListenerDispatcher.ReadMailbox mailbox : mReadListeners) {
+            mailbox.dispatch(size);
+        }
+    }
+
+    /**
+     * Hands buf[off, off+len) to the data listeners. Read thread only, after the
+     * bytes were committed. buf must stay untouched until this returns.
+     * @param buf received bytes, position and limit are left alone
+     * @param off offset of the new bytes in buf
+     * @param len length of the new bytes
+     */
+    protected void onData(ByteBuffer buf, int off, int len) {
+        if(mStopReadListener || len <= 0 || mDataListeners.isEmpty()) {
+            return;
+        }
+        ByteBuffer view = buf.asReadOnlyBuffer();
+        for(ListenerDispatcher.DataMailbox mailbox : mDataListeners) {
+            view.limit(off + len);
+            view.position(off);
+            mailbox.dispatch(view);
+        }
+    }
+
+    /**
+     * Gets the sink a read engine feeds this device's read buffer and listeners through
+     * @return ReceiveSink, the same one every time
+     */
+    protected ReceiveSink getReceiveSink() {
+        return mReceiveSink;
+    }
+
+    private final ReceiveSink mReceiveSink = new ReceiveSink() {
+        @Override
+        public boolean awaitDemand(long timeoutMs) {
+            return awaitReadDemand(timeoutMs);
+        }
+
+        @Override
+        public void wake() {
+            ReceivePublisher publisher = mPublisher;
+            if(publisher != null) {
+                publisher.wake();
+            }
+        }
+
+        @Override
+        public ByteBuffer acquire(int maxLength) {
+            return mBuffer.acquire(maxLength);
+        }
+
+        @Override
+        public void commit(ByteBuffer buf, int offset, int length) {
+            mBuffer.commit(offset, length);
+            onData(buf, offset, length);
+            onRead(length);
+        }
+
+        @Override
+        public void receive(ByteBuffer buf, int offset, int length) {
+            ReceiveBuffer buffer = mBuffer;
+            ByteBuffer src = buf.duplicate();
+            int end = offset + length;
+            int pos = offset;
+            while(pos < end) {
+                ByteBuffer dst = buffer.acquire(end - pos);
+                int len = Math.min(dst.remaining(), end - pos);
+                if(len <= 0) {
+                    break;
+                }
+                src.limit(pos + len);
+                src.position(pos);
+                dst.put(src);
+                buffer.commit(0, len);
+                pos += len;
+            }
+            onData(buf, offset, length);
+            onRead(length);
+        }
+
+        @Override
+        public void idle() {
+            int buffered = mBuffer.getBufferdLength();
+            if(buffered > 0) {
+                onRead(buffered);
+            }
+        }
+    };
+
+    /**
+     * Clears read buffer
+     */
+    abstract public void clearBuffer();
+
+    /**
+     *
+     * @return the type of physical connection as a string.
+     */
+    abstract public String getPhysicalConnectionName();
+
+    /**
+     *
+     * @return type of physical connection as a number
+     */
+    abstract public int getPhysicalConnectionType();
+
+    /**
+     *
+     * @param flag true to turn on debugging.
+     */
+    abstract public void setDebug(boolean flag);
+
+    abstract public int getVID();
+
+    abstract public int getPID();
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InputStream over a device's read buffer.
+ *
+ * read() parks on the read thread's arrival signal, so an idle reader costs
+ * no CPU, and returns whatever is buffered up to the requested length. It
+ * returns -1 once the device is closed and everything received was read.
+ * With OpenOptions.pollingMode, where no read thread fills the buffer,
+ * read() receives with SerialCommunicator.poll() on the caller's thread.
+ * Closing the stream does not close the device.
+ */
+public class SerialInputStream extends InputStream {
+
+        // longest park before checking the device was closed under us
+        private static final int CLOSE_CHECK_MS = 500;
+
+        private final SerialCommunicator mSerial;
+        private final boolean mPolling;
+        private final byte[] mOne = new byte[1];
+        private volatile int mTimeoutMs;
+        private volatile boolean mClosed;
+
+        /**
+         * Creates a stream reading a device
+         *
+         * @param serial opened device
+         */
+        public SerialInputStream(SerialCommunicator serial) {
+                mSerial = serial;
+                mPolling = serial.getOpenOptions().pollingMode;
+        }
+
+        /**
+         * Sets how long read() waits for the first byte, like Socket.setSoTimeout()
+         *
+         * @param timeoutMs longest wait, 0 : wait until something arrives or the device is closed
+         */
+        public void setReadTimeout(int timeoutMs) {
+                mTimeoutMs = Math.max(0, timeoutMs);
+        }
+
+        /**
+         * Gets how long read() waits for the first byte
+         *
+         * @return timeout in milliseconds, 0 : no timeout
+         */
+        public int getReadTimeout() {
+                return mTimeoutMs;
+        }
+
+        @Override
+        public int read() throws IOException {
+                synchronized(mOne) {
+                        int len = read(mOne, 0, 1);
+                        return (len <= 0) ? -1 : (mOne[0] & 0xff);
+                }
+        }
+
+        /**
+         * Reads what is buffered, up to len, waiting for the first byte
+         *
+         * @return read size, -1 : device closed
+         * @throws SocketTimeoutException nothing arrived within the read timeout
+         * @throws InterruptedIOException the reading thread was interrupted
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+                if(off < 0 || len < 0 || len > b.length - off) {
+                        throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + b.length);
+                }
+                if(mClosed) {
+                        throw new IOException("stream closed");
+                }
+                if(len == 0) {
+                        return 0;
+                }
+                int timeoutMs = mTimeoutMs;
+                long deadline = System.currentTimeMillis() + timeoutMs;
+                for(;;) {
+                        int wait = CLOSE_CHECK_MS;
+                        if(timeoutMs > 0) {
+                                long remaining = deadline - System.currentTimeMillis();
+                                if(remaining <= 0) {
+                                        throw new SocketTimeoutException("nothing received in " + timeoutMs + " ms");
+                                }
+                                wait = (int) Math.min(wait, remaining);
+                        }
+                        int read = mPolling ? mSerial.poll(b, off, len, TimeUnit.MILLISECONDS.toMicros(wait)) : -1;
+                        if(read < 0) {
+                                read = mSerial.read(b, off, len, wait);
+                        }
+                        if(read > 0) {
+                                return read;
+                        }
+                        if(Thread.interrupted()) {
+                                throw new InterruptedIOException("read interrupted");
+                        }
+                        if(mClosed) {
+                                throw new IOException("stream closed");
+                        }
+                        if(!mSerial.isOpened()) {
+                                // the read thread may have committed its last bytes just before close()
+                                read = mSerial.read(b, off, len, 0);
+                                return (read > 0) ? read : -1;
+                        }
+                }
+        }
+
+        @Override
+        public int available() throws IOException {
+                if(mClosed) {
+                        throw new IOException("stream closed");
+                }
+                return mSerial.mBuffer.getBufferdLength();
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+                if(n <= 0) {
+                        return 0;
+                }
+                return mSerial.skip((int) Math.min(n, Integer.MAX_VALUE));
+        }
+
+        /**
+         * Closes the stream only, the device stays open
+         */
+        @Override
+        public void close() {
+                mClosed = true;
+        }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream over a device's write(). Every write() is sent before it
+ * returns, so flush() has nothing to do. Closing the stream does not close
+ * the device.
+ */
+public class SerialOutputStream extends OutputStream {
+
+        private final SerialCommunicator mSerial;
+        private final byte[] mOne = new byte[1];
+        private volatile boolean mClosed;
+
+        /**
+         * Creates a stream writing to a device
+         *
+         * @param serial opened device
+         */
+        public SerialOutputStream(SerialCommunicator serial) {
+                mSerial = serial;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+                synchronized(mOne) {
+                        mOne[0] = (byte) b;
+                        write(mOne, 0, 1);
+                }
+        }
+
+        /**
+         * Writes all of b[off, off+len)
+         *
+         * @throws IOException the device is closed or stopped taking bytes
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+                if(off < 0 || len < 0 || len > b.length - off) {
+                        throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + b.length);
+                }
+                if(mClosed) {
+                        throw new IOException("stream closed");
+                }
+                int total = 0;
+                while(total < len) {
+                        int written = mSerial.write(b, off + total, len - total);
+                        if(written <= 0) {
+                                throw new IOException("write failed after " + total + " of " + len + " bytes");
+                        }
+                        total += written;
+                }
+        }
+
+        /**
+         * Closes the stream only, the device stays open
+         */
+        @Override
+        public void close() {
+                mClosed = true;
+        }
+}
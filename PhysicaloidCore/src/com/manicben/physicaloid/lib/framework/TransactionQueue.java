@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.manicben.physicaloid.misc.ReceiveBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Outstanding request/response transactions of one device.
+ *
+ * Requests are written in the order transact() is called and their responses
+ * are matched in that same order, so several can be in flight at once. The
+ * read thread matches right after committing received bytes; nobody sleeps
+ * or polls. While transactions are outstanding they consume the read buffer,
+ * with none outstanding read() sees everything as usual.
+ *
+ * Responses are matched in place and only the bytes a matcher accepts are
+ * skipped, whatever follows stays buffered for the next transaction or read().
+ * onReceived() runs on the read thread and on transact()'s caller, always
+ * under the queue's lock, so the buffer still has one consumer at a time as
+ * long as nobody read()s while transactions are outstanding.
+ */
+public class TransactionQueue {
+
+        /** a response longer than this fails its transaction */
+        public static final int MAX_RESPONSE_SIZE = 64 * 1024;
+        private static final int INITIAL_SCRATCH_SIZE = 256;
+
+        // one timer thread for the timeouts of every device, ExpectQueue's too
+        static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+        private final SerialCommunicator mSerial;
+        private final Object mWriteLock = new Object();         // keeps write order equal to queue order
+        private final ArrayDeque<Transaction> mPending = new ArrayDeque<Transaction>();    // guarded by this
+        private byte[] mScratch = new byte[INITIAL_SCRATCH_SIZE];        // guarded by this, buffered bytes that wrap around
+
+        /**
+         * Creates the transaction queue of a device
+         *
+         * @param serial opened device
+         */
+        public TransactionQueue(SerialCommunicator serial) {
+                mSerial = serial;
+        }
+
+        private static ScheduledThreadPoolExecutor newTimer() {
+                ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "Physicaloid-timeout");
+                                thread.setDaemon(true);
+                                return thread;
+                        }
+                });
+                timer.setRemoveOnCancelPolicy(true);
+                return timer;
+        }
+
+        /**
+         * Writes a request and returns at once
+         *
+         * @param buf       request bytes
+         * @param off       offset in buf
+         * @param size      request length
+         * @param matcher   finds the end of the response
+         * @param timeoutMs longest wait for the response from now
+         * @return completes with the response, fails with TimeoutException or IOException if the write failed
+         */
+        public ListenableFuture<byte[]> transact(byte[] buf, int off, int size, ResponseMatcher matcher, final int timeoutMs) {
+                final Transaction transaction = new Transaction(matcher);
+                synchronized(mWriteLock) {
+                        synchronized(this) {
+                                mPending.add(transaction);
+                                // set before onReceived() can complete it, that needs this lock
+                                transaction.timeout = TIMER.schedule(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                                if(remove(transaction)) {
+                                                        transaction.future.setException(new TimeoutException("no response in " + timeoutMs + " ms"));
+                                                }
+                                        }
+                                }, Math.max(0, timeoutMs), TimeUnit.MILLISECONDS);
+                        }
+                        int written = (size > 0) ? mSerial.write(buf, off, size) : 0;
+                        if(written < size) {
+                                if(remove(transaction)) {
+                                        transaction.timeout.cancel(false);
+                                        transaction.future.setException(new IOException("request write failed : " + written + " of " + size + " bytes"));
+                                }
+                                return transaction.future;
+                        }
+                }
+                onReceived(); // the response may be buffered already
+                return transaction.future;
+        }
+
+        /**
+         * Gets transactions waiting for their response
+         *
+         * @return outstanding count
+         */
+        public synchronized int getOutstanding() {
+                return mPending.size();
+        }
+
+        /**
+         * Matches received bytes against the outstanding transactions. Called by
+         * the read thread after each commit.
+         */
+        public void onReceived() {
+                ArrayList<Transaction> done = null;
+                synchronized(this) {
+                        ReceiveBuffer buffer = mSerial.mBuffer;
+                        Transaction head;
+                        ByteBuffer received;
+                        while((head = mPending.peek()) != null && (received = peekReceived(buffer)) != null) {
+                                int n = head.matcher.match(received.duplicate());
+                                if(n == 0) {
+                                        if(received.remaining() >= MAX_RESPONSE_SIZE) {
+                                                mPending.poll();
+                                                head.response = null;
+                                                buffer.skip(received.remaining());
+                                                done = add(done, head);
+                                        }
+                                        break;
+                                }
+                                int length = Math.min(Math.abs(n), received.remaining());
+                                if(length <= 0) {
+                                        break;  // a matcher gone wrong, e.g. Integer.MIN_VALUE
+                                }
+                                if(n < 0) {
+                                        buffer.skip(length);
+                                        continue;
+                                }
+                                byte[] response = new byte[length];
+                                received.get(response);
+                                if(buffer.skip(length) < length) {
+                                        continue; // overwritten with OVERFLOW_DROP_OLDEST meanwhile, match again
+                                }
+                                mPending.poll();
+                                head.response = response;
+                                done = add(done, head);
+                        }
+                }
+                if(done == null) {
+                        return;
+                }
+                // completed outside the lock, listeners may transact again
+                for(Transaction transaction : done) {
+                        transaction.timeout.cancel(false);
+                        if(transaction.response != null) {
+                                transaction.future.set(transaction.response);
+                        } else {
+                                transaction.future.setException(new IOException("response longer than " + MAX_RESPONSE_SIZE + " bytes"));
+                        }
+                }
+        }
+
+        // the buffered bytes from position 0, in place when contiguous, else copied into mScratch. null : nothing buffered
+        private ByteBuffer peekReceived(ReceiveBuffer buffer) {
+                ByteBuffer view = buffer.peekContiguous();
+                if(view == null) {
+                        return null;
+                }
+                int buffered = Math.min(buffer.getBufferdLength(), MAX_RESPONSE_SIZE);
+                if(view.remaining() >= buffered) {
+                        return view.slice();
+                }
+                if(mScratch.length < buffered) {
+                        mScratch = new byte[Math.min(Math.max(mScratch.length * 2, buffered), MAX_RESPONSE_SIZE)];
+                }
+                int len = buffer.peek(mScratch, 0, buffered);
+                return ByteBuffer.wrap(mScratch, 0, len).asReadOnlyBuffer();
+        }
+
+        private static ArrayList<Transaction> add(ArrayList<Transaction> list, Transaction transaction) {
+                if(list == null) {
+                        list = new ArrayList<Transaction>(2);
+                }
+                list.add(transaction);
+                return list;
+        }
+
+        private synchronized boolean remove(Transaction transaction) {
+                for(Iterator<Transaction> it = mPending.iterator(); it.hasNext(); ) {
+                        if(it.next() == transaction) {
+                                it.remove();
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        private static final class Transaction {
+                final ResponseMatcher matcher;
+                final SettableFuture<byte[]> future = SettableFuture.create();
+                ScheduledFuture<?> timeout;     // set under the queue's lock when queued
+                byte[] response;        // set under the queue's lock before completion
+
+                Transaction(ResponseMatcher matcher) {
+                        this.matcher = matcher;
+                }
+        }
+}
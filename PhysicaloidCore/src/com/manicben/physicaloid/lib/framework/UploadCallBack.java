@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import com.manicben.physicaloid.lib.programmer.avr.UploadErrors;
+
+/**
+ * Callbacks of program process<br> normal process:<br> onPreUpload() ->
+ * onUploading -> onPostUpload<br> cancel:<br> onPreUpload() ->
+ * onUploading -> onCancel -> onPostUpload<br> error:<br> onPreUpload
+ * |<br> onUploading | -> onError<br> onPostUpload |<br>
+ *
+ * Applications implement Physicaloid.UploadCallBack, which extends this.
+ */
+public interface UploadCallBack {
+        /*
+         * Callback methods
+         */
+
+        void onPreUpload();
+
+        void onUploading(int value);
+
+        void onPostUpload(boolean success);
+
+        void onCancel();
+
+        void onError(UploadErrors err);
+}
@@ -16,7 +16,6 @@
 package com.manicben.physicaloid.lib.framework;
 
 import com.manicben.physicaloid.lib.Boards;
-import com.manicben.physicaloid.lib.Physicaloid.UploadCallBack;
 import com.manicben.physicaloid.lib.fpga.PhysicaloidFpgaConfigurator;
 import com.manicben.physicaloid.lib.programmer.avr.AvrUploader;
 import com.manicben.physicaloid.lib.programmer.avr.UploadErrors;
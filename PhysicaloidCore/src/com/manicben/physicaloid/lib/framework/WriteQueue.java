@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.framework;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of writes drained by one writer thread per device.
+ *
+ * enqueue() copies the bytes into a pooled entry and returns at once. The
+ * writer packs every entry queued within the coalescing window, up to one
+ * transfer size, into a single SerialCommunicator.write() call, then
+ * completes each entry's future with its own length.
+ */
+public class WriteQueue {
+
+        private static final int MAX_POOLED_ENTRIES = 64;
+
+        private final SerialCommunicator mSerial;
+        private final int mCapacity;
+        private final int mTransferSize;
+        private final long mWindowNanos;
+        private final byte[] mTransfer;
+        private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+        private final ArrayDeque<Entry> mPool = new ArrayDeque<Entry>();
+        private final ArrayDeque<Entry> mSending = new ArrayDeque<Entry>(); // writer thread only
+        private final Thread mWriter;
+        private int mQueuedBytes;       // guarded by this
+        private boolean mStopped;       // guarded by this
+
+        /**
+         * Starts a writer thread for a device
+         *
+         * @param serial       opened device
+         * @param capacity     most bytes queued at once
+         * @param transferSize most bytes coalesced into one write
+         * @param windowUs     how long the writer waits for more small writes after the first, 0 : only what is already queued
+         */
+        public WriteQueue(SerialCommunicator serial, int capacity, int transferSize, int windowUs) {
+                mSerial = serial;
+                mCapacity = Math.max(1, capacity);
+                mTransferSize = Math.max(1, transferSize);
+                mWindowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowUs));
+                mTransfer = new byte[mTransferSize];
+                mWriter = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                drain();
+                        }
+                }, "Physicaloid-writer");
+                mWriter.setDaemon(true);
+                mWriter.start();
+        }
+
+        /**
+         * Queues a copy of buf[off, off+size)
+         *
+         * @param buf  bytes to write
+         * @param off  offset in buf
+         * @param size length to write
+         *
+         * @return completes with size once written, fails with IOException if the device fails,
+         *         RejectedExecutionException if the queue is full, CancellationException if stopped first
+         */
+        public ListenableFuture<Integer> enqueue(byte[] buf, int off, int size) {
+                SettableFuture<Integer> future = SettableFuture.create();
+                if(buf == null || size <= 0) {
+                        future.set(0);
+                        return future;
+                }
+                synchronized(this) {
+                        if(mStopped) {
+                                future.cancel(false);
+                                return future;
+                        }
+                        if(mQueuedBytes + size > mCapacity) {
+                                future.setException(new RejectedExecutionException("write queue full : " + mQueuedBytes + " + " + size + " bytes"));
+                                return future;
+                        }
+                        Entry entry = mPool.poll();
+                        if(entry == null) {
+                                entry = new Entry();
+                        }
+                        if(entry.data.length < size) {
+                                entry.data = new byte[size];
+                        }
+                        System.arraycopy(buf, off, entry.data, 0, size);
+                        entry.length = size;
+                        entry.future = future;
+                        entry.queuedAt = System.nanoTime();
+                        mQueue.add(entry);
+                        mQueuedBytes += size;
+                        notifyAll();
+                }
+                return future;
+        }
+
+        /**
+         * Gets bytes waiting to be written
+         *
+         * @return queued length
+         */
+        public synchronized int getQueuedBytes() {
+                return mQueuedBytes;
+        }
+
+        /**
+         * Stops the writer. Writes not started yet are cancelled.
+         *
+         * @param timeoutMs longest wait for a write in progress to return
+         *
+         * @return true : writer ended, false : still in a write after timeoutMs
+         */
+        public boolean stop(long timeoutMs) {
+                synchronized(this) {
+                        mStopped = true;
+                        notifyAll();
+                }
+                if(Thread.currentThread() == mWriter) {
+                        return true;
+                }
+                try {
+                        mWriter.join(timeoutMs);
+                } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                }
+                return !mWriter.isAlive();
+        }
+
+        private void drain() {
+                for(;;) {
+                        int length;
+                        synchronized(this) {
+                                if(!awaitBatch()) {
+                                        break;
+                                }
+                                length = takeBatch();
+                        }
+                        send(length);
+                }
+                ArrayDeque<SettableFuture<Integer>> cancelled = new ArrayDeque<SettableFuture<Integer>>();
+                synchronized(this) {
+                        Entry entry;
+                        while((entry = mQueue.poll()) != null) {
+                                cancelled.add(entry.future);
+                                recycle(entry);
+                        }
+                        mQueuedBytes = 0;
+                }
+                for(SettableFuture<Integer> future : cancelled) {
+                        future.cancel(false);
+                }
+        }
+
+        // Waits for the first entry, then for the window to close or a transfer to fill. False once stopped.
+        private boolean awaitBatch() {
+                while(!mStopped && mQueue.isEmpty()) {
+                        try {
+                                wait();
+                        } catch(InterruptedException e) {
+                                return false;
+                        }
+                }
+                if(mStopped) {
+                        return false;
+                }
+                long deadline = mQueue.peek().queuedAt + mWindowNanos;
+                long remaining;
+                while(!mStopped && mQueuedBytes < mTransferSize && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        } catch(InterruptedException e) {
+                                return false;
+                        }
+                }
+                return !mStopped;
+        }
+
+        // Moves the entries of one transfer to mSending, packing them into mTransfer when more than one fits.
+        private int takeBatch() {
+                Entry first = mQueue.poll();
+                mSending.add(first);
+                int length = first.length;
+                if(length <= mTransferSize) {
+                        System.arraycopy(first.data, 0, mTransfer, 0, length);
+                        Entry next;
+                        while((next = mQueue.peek()) != null && length + next.length <= mTransferSize) {
+                                mQueue.poll();
+                                System.arraycopy(next.data, 0, mTransfer, length, next.length);
+                                length += next.length;
+                                mSending.add(next);
+                        }
+                }
+                mQueuedBytes -= length;
+                return length;
+        }
+
+        private void send(int length) {
+                Entry first = mSending.peek();
+                byte[] buf = (mSending.size() == 1 && first.length > mTransferSize) ? first.data : mTransfer;
+                int written = mSerial.write(buf, length);
+
+                Entry entry;
+                while((entry = mSending.poll()) != null) {
+                        SettableFuture<Integer> future = entry.future;
+                        int entryLength = entry.length;
+                        synchronized(this) {
+                                recycle(entry);
+                        }
+                        // completed outside the lock, listeners may run right here
+                        if(written >= entryLength) {
+                                written -= entryLength;
+                                future.set(entryLength);
+                        } else {
+                                written = 0;
+                                future.setException(new IOException("write failed"));
+                        }
+                }
+        }
+
+        private void recycle(Entry entry) {
+                entry.future = null;
+                if(mPool.size() < MAX_POOLED_ENTRIES) {
+                        mPool.add(entry);
+                }
+        }
+
+        private static final class Entry {
+                byte[] data = new byte[0];
+                int length;
+                long queuedAt;
+                SettableFuture<Integer> future;
+        }
+}
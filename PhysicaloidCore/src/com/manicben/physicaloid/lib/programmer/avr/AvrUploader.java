@@ -27,11 +27,10 @@
 
 package com.manicben.physicaloid.lib.programmer.avr;
 
-import android.util.Log;
-import com.manicben.physicaloid.BuildConfig;
 import com.manicben.physicaloid.lib.Boards;
-import com.manicben.physicaloid.lib.Physicaloid.UploadCallBack;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.lib.framework.UploadCallBack;
+import com.manicben.physicaloid.log.Log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -41,7 +40,7 @@ import java.io.InputStream;
 public class AvrUploader {
     private static final String TAG = AvrUploader.class.getSimpleName();
 
-    private static final boolean DEBUG_SHOW_HEXDUMP = BuildConfig.DEBUG;
+    private static final boolean DEBUG_SHOW_HEXDUMP = Log.isDebug();
 
     private UploadProtocol      mProg;
     private SerialCommunicator  mComm;
@@ -27,9 +27,8 @@
 
 package com.manicben.physicaloid.lib.programmer.avr;
 
-import android.util.Log;
-import com.manicben.physicaloid.BuildConfig;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.log.Log;
 import java.util.Arrays;
 
 class ProgrammerType{
@@ -204,12 +203,15 @@ public class Stk500 extends UploadProtocol{
 
     private static final String TAG = Stk500.class.getSimpleName();
 
-    private static final boolean DEBUG_NOT_SHOW         = !BuildConfig.DEBUG;
+    private static final boolean DEBUG_NOT_SHOW         = !Log.isDebug();
     private static final boolean DEBUG_SHOW_SEND        = !DEBUG_NOT_SHOW;
     private static final boolean DEBUG_SHOW_RECV        = !DEBUG_NOT_SHOW;
     private static final boolean DEBUG_SHOW_DRAIN       = !DEBUG_NOT_SHOW;
     private static final boolean DEBUG_SHOW_DUMP_LOGE   = !DEBUG_NOT_SHOW;
 
+    private static final int RECV_TIMEOUT_MS            = 250;
+    private static final int DRAIN_TIMEOUT_MS           = 1000;
+
     SerialCommunicator mComm;
     AvrConf mAVRConf;
     AVRMem mAVRMem;
@@ -245,31 +247,21 @@ public class Stk500 extends UploadProtocol{
     }
 
     // Data may not be collected properly unless it is set to the timeout type.
+    // Each read waits up to RECV_TIMEOUT_MS for the next byte.
     private int recv(byte[] buf, int length) {
         int retval=0;
         int totalRetval=0;
-        long endTime;
-        long startTime = System.currentTimeMillis();
-        byte[] tmpbuf = new byte[length];
-
-        while(true) {
-            retval = mComm.read(tmpbuf,length);
-//            retval = mSerial.read(tmpbuf);
-            if(retval > 0) {
-                System.arraycopy(tmpbuf, 0, buf, totalRetval, retval);
-                totalRetval += retval;
-                startTime = System.currentTimeMillis();
-                if(DEBUG_SHOW_RECV) {
-                    Log.d(TAG, "recv("+retval+") : " +toHexStr(buf, totalRetval));
-                }
-            }
-            if(totalRetval >= length){break;}
 
-            endTime = System.currentTimeMillis();
-            if((endTime - startTime) > 250) {
+        while(totalRetval < length) {
+            retval = mComm.read(buf, totalRetval, length - totalRetval, RECV_TIMEOUT_MS);
+            if(retval <= 0) {
                 Log.e(TAG,"recv timeout.");
                 break;
             }
+            totalRetval += retval;
+            if(DEBUG_SHOW_RECV) {
+                Log.d(TAG, "recv("+retval+") : " +toHexStr(buf, totalRetval));
+            }
         }
         return retval;
     }
@@ -278,18 +270,15 @@ public class Stk500 extends UploadProtocol{
     private int drain() {
         byte[] buf = new byte[1];
         int retval = 0;
-        long endTime;
-        long startTime = System.currentTimeMillis();
-        while(true) {
-            retval = mComm.read(buf,1);
+        long endTime = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        long remaining;
+        while((remaining = endTime - System.currentTimeMillis()) > 0) {
+            retval = mComm.read(buf, 0, 1, (int) remaining);
             if(retval > 0) {
-//                startTime = System.currentTimeMillis();
                 if(DEBUG_SHOW_DRAIN) {
                     Log.d(TAG, "drain("+retval+") : " +toHexStr(buf[0]));
                 }
             }
-            endTime = System.currentTimeMillis();
-            if((endTime - startTime) > 1000) {break;}
         }
         return retval;
     }
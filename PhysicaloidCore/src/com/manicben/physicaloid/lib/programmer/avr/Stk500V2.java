@@ -26,15 +26,14 @@
  */
 package com.manicben.physicaloid.lib.programmer.avr;
 
-import android.util.Log;
-import com.manicben.physicaloid.BuildConfig;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.log.Log;
 import java.util.Arrays;
 
 public class Stk500V2 extends UploadProtocol {
 
         private static final String TAG = Stk500V2.class.getSimpleName();
-        private static final boolean DEBUG_NOT_SHOW = !BuildConfig.DEBUG;
+        private static final boolean DEBUG_NOT_SHOW = !Log.isDebug();
         private static final boolean DEBUG_SHOW_READ = !DEBUG_NOT_SHOW;
         private static final boolean DEBUG_SHOW_WRITE = !DEBUG_NOT_SHOW;
         private static final boolean DEBUG_SHOW_COMMAND = !DEBUG_NOT_SHOW;
@@ -43,6 +42,8 @@ public class Stk500V2 extends UploadProtocol {
         private static final boolean DEBUG_SHOW_GETSYNC = !DEBUG_NOT_SHOW;
         private static final boolean DEBUG_SHOW_DRAIN = !DEBUG_NOT_SHOW;
         private static final int RETRIES = 1; // was 5. Why is it 5?
+        private static final int DRAIN_TIMEOUT_MS = 250;
+        private static final int READ_TIMEOUT_MS = 100; // recv() still checks SERIAL_TIMEOUT in between
         // *** XPROG command constants ***
         private static final int CMD_XPROG = 0x50;
         private static final int CMD_XPROG_SETMODE = 0x51;
@@ -181,20 +182,15 @@ public class Stk500V2 extends UploadProtocol {
         private int drain() {
                 byte[] buf = new byte[1];
                 int retval = 0;
-                long endTime;
-                long startTime = System.currentTimeMillis();
                 while(true) {
-                        retval = mComm.read(buf, 1);
-                        if(retval > 0) {
-                                startTime = System.currentTimeMillis();
-                                if(DEBUG_SHOW_DRAIN) {
-                                        Log.d(TAG, "drain(" + retval + ") : " + toHexStr(buf[0]));
-                                }
-                        }
-                        endTime = System.currentTimeMillis();
-                        if((endTime - startTime) > 250) {
+                        // gives up once nothing has arrived for DRAIN_TIMEOUT_MS
+                        retval = mComm.read(buf, 0, 1, DRAIN_TIMEOUT_MS);
+                        if(retval <= 0) {
                                 break;
                         }
+                        if(DEBUG_SHOW_DRAIN) {
+                                Log.d(TAG, "drain(" + retval + ") : " + toHexStr(buf[0]));
+                        }
                 }
                 return retval;
         }
@@ -407,7 +403,7 @@ public class Stk500V2 extends UploadProtocol {
                 long tstart = java.lang.System.currentTimeMillis();
 
                 while((state != sDONE)) {
-                        if(read(c, 1) <= 0) {
+                        if(read(c, 1, READ_TIMEOUT_MS) <= 0) {
                                 long tnow = java.lang.System.currentTimeMillis();
                                 if((tnow - tstart) / 1000 > timeoutval) { // wuff -
                                         // signed/unsigned/overflow
@@ -948,9 +944,9 @@ public class Stk500V2 extends UploadProtocol {
                 return 0;
         }
 
-        private int read(byte[] buf, int length) {
+        private int read(byte[] buf, int length, int timeoutMs) {
                 int retval;
-                retval = mComm.read(buf, length);
+                retval = mComm.read(buf, 0, length, timeoutMs);
                 if(DEBUG_SHOW_READ) {
                         if(retval > 0) {
                                 String str = "";
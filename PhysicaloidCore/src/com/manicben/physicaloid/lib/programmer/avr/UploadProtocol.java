@@ -27,8 +27,8 @@
 
 package com.manicben.physicaloid.lib.programmer.avr;
 
-import com.manicben.physicaloid.lib.Physicaloid.UploadCallBack;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.lib.framework.UploadCallBack;
 
 public abstract class UploadProtocol {
     @SuppressWarnings("unused")
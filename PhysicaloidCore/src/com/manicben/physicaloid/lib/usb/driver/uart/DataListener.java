@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manicben.physicaloid.lib.usb.driver.uart;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the bytes of each arrival, unlike ReadListener which only says
+ * that something arrived.
+ */
+public interface DataListener {
+    /**
+     * Called once per received transfer, after the bytes were put in the read
+     * buffer. The bytes are the ones between data's position and limit, and
+     * are the same ones read() gets later. Moving data's position or limit
+     * does not affect other listeners.
+     *
+     * Where it runs depends on OpenOptions.listenerDispatch. With
+     * DISPATCH_INLINE it runs on the thread receiving for the driver, and
+     * data is a read-only view of the driver's own receive memory, only
+     * valid until onData() returns: copy what you need to keep, and return
+     * quickly, nothing more is received meanwhile. With DISPATCH_ORDERED or
+     * DISPATCH_EXECUTOR it runs on another thread and data is a read-only
+     * copy the listener may keep. Copies waiting beyond
+     * OpenOptions.listenerQueueBytes are dropped, see
+     * SerialCommunicator.getListenerDroppedBytes().
+     *
+     * @param data newly received bytes, read-only
+     */
+    void onData(ByteBuffer data);
+}
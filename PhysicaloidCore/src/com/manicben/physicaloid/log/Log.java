@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.log;
+
+/**
+ * Logging used by the platform independent parts of the library.
+ *
+ * Priorities and method names follow android.util.Log. Messages go to
+ * standard error until a platform installs its own sink, as the Android
+ * library does with AndroidLogSink.
+ */
+public final class Log {
+
+        public static final int VERBOSE = 2;
+        public static final int DEBUG   = 3;
+        public static final int INFO    = 4;
+        public static final int WARN    = 5;
+        public static final int ERROR   = 6;
+
+        private static final String[] PRIORITY_CHARS = {"V", "D", "I", "W", "E"};
+
+        private static volatile LogSink sSink = new LogSink() {
+                @Override
+                public void println(int priority, String tag, String msg) {
+                        int idx = Math.max(0, Math.min(priority - VERBOSE, PRIORITY_CHARS.length - 1));
+                        System.err.println(PRIORITY_CHARS[idx] + "/" + tag + ": " + msg);
+                }
+        };
+        private static volatile boolean sDebug;
+
+        private Log() {
+        }
+
+        /**
+         * Sets where messages go
+         *
+         * @param sink new destination, null discards messages
+         */
+        public static void setSink(LogSink sink) {
+                sSink = sink;
+        }
+
+        /**
+         * Enables the debug dumps of the protocol engines. Classes read it
+         * once when they are loaded, so set it before the first upload.
+         *
+         * @param debug true : dump, false : errors only
+         */
+        public static void setDebug(boolean debug) {
+                sDebug = debug;
+        }
+
+        /**
+         * Gets whether debug dumps are enabled
+         *
+         * @return true : enabled
+         */
+        public static boolean isDebug() {
+                return sDebug;
+        }
+
+        public static void println(int priority, String tag, String msg) {
+                LogSink sink = sSink;
+                if(sink != null) {
+                        sink.println(priority, tag, msg);
+                }
+        }
+
+        public static void v(String tag, String msg) {
+                println(VERBOSE, tag, msg);
+        }
+
+        public static void d(String tag, String msg) {
+                println(DEBUG, tag, msg);
+        }
+
+        public static void i(String tag, String msg) {
+                println(INFO, tag, msg);
+        }
+
+        public static void w(String tag, String msg) {
+                println(WARN, tag, msg);
+        }
+
+        public static void e(String tag, String msg) {
+                println(ERROR, tag, msg);
+        }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.log;
+
+/**
+ * Destination of the messages logged through Log
+ */
+public interface LogSink {
+        /**
+         * Writes one message
+         *
+         * @param priority e.g. Log.DEBUG
+         * @param tag      source of the message, usually the class name
+         * @param msg      message
+         */
+        void println(int priority, String tag, String msg);
+}
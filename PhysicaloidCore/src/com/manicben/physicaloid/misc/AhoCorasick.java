@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton over a set of byte patterns, compiled to a dense
+ * 256-way transition table so that scanning costs one array load per byte
+ * and never allocates. The scan state is a plain int that can be carried
+ * from one chunk of input to the next, so matches may span chunks.
+ *
+ * Immutable once built, share it freely between threads.
+ */
+public final class AhoCorasick {
+
+        /** state before any input */
+        public static final int START = 0;
+
+        private final byte[][] mPatterns;
+        private final int[] mNext;      // state << 8 | byte -> state
+        private final int[] mMatch;     // state -> index of the longest pattern ending there, -1 : none
+        private final int[] mDepth;     // state -> length of the input suffix it stands for
+
+        /**
+         * Compiles patterns
+         *
+         * @param patterns byte strings, none empty
+         */
+        public AhoCorasick(byte[]... patterns) {
+                if(patterns.length == 0) {
+                        throw new IllegalArgumentException("no patterns");
+                }
+                mPatterns = new byte[patterns.length][];
+                int maxStates = 1;
+                for(int i = 0; i < patterns.length; i++) {
+                        if(patterns[i] == null || patterns[i].length == 0) {
+                                throw new IllegalArgumentException("pattern " + i + " is empty");
+                        }
+                        mPatterns[i] = patterns[i].clone();
+                        maxStates += patterns[i].length;
+                }
+
+                // trie, 0 : no edge yet (the root is never a child)
+                int[] next = new int[maxStates << 8];
+                int[] match = new int[maxStates];
+                int[] depth = new int[maxStates];
+                Arrays.fill(match, -1);
+                int states = 1;
+                for(int i = 0; i < mPatterns.length; i++) {
+                        int state = START;
+                        for(byte b : mPatterns[i]) {
+                                int edge = (state << 8) | (b & 0xff);
+                                if(next[edge] == 0) {
+                                        depth[states] = depth[state] + 1;
+                                        next[edge] = states++;
+                                }
+                                state = next[edge];
+                        }
+                        if(match[state] < 0) {
+                                match[state] = i; // the first of duplicate patterns wins
+                        }
+                }
+
+                // breadth first: fill missing edges from the failure state, inherit its match
+                int[] fail = new int[states];
+                int[] queue = new int[states];
+                int head = 0;
+                int tail = 0;
+                for(int c = 0; c < 256; c++) {
+                        int child = next[c];
+                        if(child != 0) {
+                                fail[child] = START;
+                                queue[tail++] = child;
+                        }
+                }
+                while(head < tail) {
+                        int state = queue[head++];
+                        if(match[state] < 0) {
+                                match[state] = match[fail[state]];
+                        }
+                        for(int c = 0; c < 256; c++) {
+                                int edge = (state << 8) | c;
+                                int child = next[edge];
+                                int fallback = next[(fail[state] << 8) | c];
+                                if(child != 0) {
+                                        fail[child] = fallback;
+                                        queue[tail++] = child;
+                                } else {
+                                        next[edge] = fallback;
+                                }
+                        }
+                }
+                mNext = Arrays.copyOf(next, states << 8);
+                mMatch = Arrays.copyOf(match, states);
+                mDepth = Arrays.copyOf(depth, states);
+        }
+
+        /**
+         * Compiles text patterns
+         *
+         * @param charset encoding of the patterns, e.g. US-ASCII
+         * @param patterns text, none empty
+         * @return automaton
+         */
+        public static AhoCorasick of(Charset charset, String... patterns) {
+                byte[][] bytes = new byte[patterns.length][];
+                for(int i = 0; i < patterns.length; i++) {
+                        bytes[i] = patterns[i].getBytes(charset);
+                }
+                return new AhoCorasick(bytes);
+        }
+
+        /**
+         * Advances the scan by one byte
+         *
+         * @param state START or a state returned before
+         * @param b     next input byte
+         * @return new state
+         */
+        public int next(int state, byte b) {
+                return mNext[(state << 8) | (b & 0xff)];
+        }
+
+        /**
+         * Gets the pattern ending at the last byte scanned into state
+         *
+         * @param state scan state
+         * @return index of the longest such pattern, -1 : none
+         */
+        public int match(int state) {
+                return mMatch[state];
+        }
+
+        /**
+         * Gets how many of the last scanned bytes a state stands for. Older bytes
+         * can no longer be part of any match.
+         *
+         * @param state scan state
+         * @return suffix length
+         */
+        public int depth(int state) {
+                return mDepth[state];
+        }
+
+        /**
+         * Gets a pattern
+         *
+         * @param index pattern index
+         * @return copy of the pattern
+         */
+        public byte[] pattern(int index) {
+                return mPatterns[index].clone();
+        }
+
+        /**
+         * Gets the pattern count
+         *
+         * @return number of patterns
+         */
+        public int size() {
+                return mPatterns.length;
+        }
+}
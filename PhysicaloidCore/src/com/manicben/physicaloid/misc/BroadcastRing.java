@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer ring that any number of subscribers read independently.
+ *
+ * Bytes are stored once. Every subscriber has its own cursor into the ring,
+ * so reading is destructive only for that subscriber. The producer never
+ * waits: a subscriber that is a whole ring behind is either moved forward
+ * (SLOW_SUBSCRIBER_SKIP, counted in getSkippedBytes()) or detached
+ * (SLOW_SUBSCRIBER_DETACH) before its bytes are overwritten.
+ *
+ * The ReceiveBuffer consumer methods read through a built-in primary
+ * subscriber, so existing read() callers keep working. The primary always
+ * skips, so the overflow policy behaves as OVERFLOW_DROP_OLDEST for it and
+ * its skipped bytes are reported by getDroppedBytes().
+ */
+public class BroadcastRing extends ReceiveBuffer {
+
+        /**
+         * Slow subscriber policy : moves the cursor past the overwritten bytes
+         */
+        public static final int SLOW_SUBSCRIBER_SKIP = 0;
+        /**
+         * Slow subscriber policy : detaches the subscriber, its reads return 0 from then on
+         */
+        public static final int SLOW_SUBSCRIBER_DETACH = 1;
+
+        private static final long DETACHED = Long.MIN_VALUE;
+
+        private final int mRingBufSize;
+        private final int mMask;
+        private final byte[] mRingBuf;
+        private final AtomicLong mHead = new AtomicLong(); // written by the producer only
+        private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+        private final Subscriber mPrimary;
+        private ByteBuffer mStaging;    // producer side of acquire()/commit()
+
+        /**
+         * Broadcast ring
+         *
+         * @param bufferSize buffer size, rounded up to a power of two
+         */
+        public BroadcastRing(int bufferSize) {
+                super(OVERFLOW_DROP_OLDEST, 0);
+                mRingBufSize = RingBuffer.roundUpToPowerOfTwo(bufferSize);
+                mMask = mRingBufSize - 1;
+                mRingBuf = new byte[mRingBufSize];
+                mPrimary = subscribe(SLOW_SUBSCRIBER_SKIP);
+        }
+
+        /**
+         * Adds a subscriber that sees every byte added from now on
+         *
+         * @param slowPolicy e.g. BroadcastRing.SLOW_SUBSCRIBER_SKIP
+         *
+         * @return new subscriber, close() it when done
+         */
+        public Subscriber subscribe(int slowPolicy) {
+                Subscriber subscriber = new Subscriber(slowPolicy, mHead.get());
+                mSubscribers.add(subscriber);
+                return subscriber;
+        }
+
+        /**
+         * Gets the number of subscribers, the primary included
+         *
+         * @return subscriber count
+         */
+        public int getSubscriberCount() {
+                return mSubscribers.size();
+        }
+
+        @Override
+        public int getRingBufferSize() {
+                return mRingBufSize;
+        }
+
+        /**
+         * Gets the length buffered for the primary subscriber
+         *
+         * @return buffered length
+         */
+        @Override
+        public int getBufferdLength() {
+                return mPrimary.getLag();
+        }
+
+        @Override
+        public int add(byte[] buf, int length, int off) {
+                if(buf == null) {
+                        return 0;
+                }
+                int addLen = Math.min(length, buf.length - off);
+                if(addLen <= 0) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                if(addLen > mRingBufSize) { // only the tail of the chunk can survive
+                        mDroppedBytes.addAndGet(addLen - mRingBufSize);
+                        off += addLen - mRingBufSize;
+                        addLen = mRingBufSize;
+                }
+
+                long head = mHead.get();
+                makeRoom(head + addLen);
+                int pos = (int) head & mMask;
+                int copyLen = Math.min(addLen, mRingBufSize - pos);
+                System.arraycopy(buf, off, mRingBuf, pos, copyLen);
+                if(copyLen < addLen) { // When store straddles the end of the buffer
+                        System.arraycopy(buf, off + copyLen, mRingBuf, 0, addLen - copyLen);
+                }
+                publish(head + addLen, now);
+                return addLen;
+        }
+
+        /**
+         * Gets a direct staging buffer. commit() copies it into the ring once
+         * for all subscribers.
+         */
+        @Override
+        public ByteBuffer acquire(int maxLength) {
+                if(mStaging == null || mStaging.capacity() < maxLength) {
+                        mStaging = ByteBuffer.allocateDirect(maxLength);
+                }
+                mStaging.clear();
+                mStaging.limit(maxLength);
+                return mStaging;
+        }
+
+        @Override
+        public int commit(int offset, int length) {
+                if(length <= 0 || mStaging == null) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                if(length > mRingBufSize) {
+                        mDroppedBytes.addAndGet(length - mRingBufSize);
+                        offset += length - mRingBufSize;
+                        length = mRingBufSize;
+                }
+
+                long head = mHead.get();
+                makeRoom(head + length);
+                int pos = (int) head & mMask;
+                int copyLen = Math.min(length, mRingBufSize - pos);
+                mStaging.limit(offset + length);
+                mStaging.position(offset);
+                mStaging.get(mRingBuf, pos, copyLen);
+                if(copyLen < length) {
+                        mStaging.get(mRingBuf, 0, length - copyLen);
+                }
+                publish(head + length, now);
+                return length;
+        }
+
+        // Applies the slow subscriber policies so that nobody still needs the bytes below newHead - size.
+        private void makeRoom(long newHead) {
+                long oldest = newHead - mRingBufSize;
+                for(Subscriber subscriber : mSubscribers) {
+                        for(;;) {
+                                long cursor = subscriber.mCursor.get();
+                                if(cursor == DETACHED || cursor >= oldest) {
+                                        break;
+                                }
+                                if(subscriber.mSlowPolicy == SLOW_SUBSCRIBER_DETACH) {
+                                        if(subscriber.mCursor.compareAndSet(cursor, DETACHED)) {
+                                                mSubscribers.remove(subscriber);
+                                                break;
+                                        }
+                                } else if(subscriber.mCursor.compareAndSet(cursor, oldest)) {
+                                        subscriber.mSkippedBytes.addAndGet(oldest - cursor);
+                                        if(subscriber == mPrimary) {
+                                                mDroppedBytes.addAndGet(oldest - cursor);
+                                        }
+                                        break;
+                                }
+                        }
+                }
+        }
+
+        private void publish(long head, long now) {
+                recordArrival(head, now);
+                mHead.set(head); // full fence, pairs with the waiters' checks
+                signalConsumer();
+                for(Subscriber subscriber : mSubscribers) {
+                        Thread waiter = subscriber.mWaiter;
+                        if(waiter != null) {
+                                LockSupport.unpark(waiter);
+                        }
+                }
+                updateHighWaterMark(mPrimary.getLag());
+        }
+
+        @Override
+        public int get(byte[] buf, int off, int length) {
+                int len = mPrimary.get(buf, off, length);
+                passArrivals(readPosition());
+                return len;
+        }
+
+        @Override
+        public ByteBuffer peekContiguous() {
+                return mPrimary.peekContiguous();
+        }
+
+        /**
+         * Arrival times are kept for the primary subscriber only.
+         */
+        @Override
+        protected long readPosition() {
+                long cursor = mPrimary.mCursor.get();
+                return (cursor == DETACHED) ? -1 : cursor;
+        }
+
+        @Override
+        public boolean release(int length) {
+                boolean released = mPrimary.release(length);
+                passArrivals(readPosition());
+                return released;
+        }
+
+        @Override
+        public int forEachSegment(SegmentVisitor visitor) {
+                return mPrimary.forEachSegment(visitor);
+        }
+
+        @Override
+        public void clear() {
+                mPrimary.clear();
+                passArrivals(readPosition());
+        }
+
+        /**
+         * One reader of a BroadcastRing. Each subscriber is used by one thread,
+         * different subscribers may be read from different threads.
+         */
+        public final class Subscriber {
+
+                private final int mSlowPolicy;
+                private final AtomicLong mCursor;
+                private final AtomicLong mSkippedBytes = new AtomicLong();
+                private volatile Thread mWaiter;
+                private ByteBuffer mView;
+                private ByteBuffer mWrapView;
+                private long mPeekCursor;
+
+                private Subscriber(int slowPolicy, long cursor) {
+                        mSlowPolicy = slowPolicy;
+                        mCursor = new AtomicLong(cursor);
+                }
+
+                /**
+                 * Gets the slow subscriber policy
+                 *
+                 * @return e.g. BroadcastRing.SLOW_SUBSCRIBER_SKIP
+                 */
+                public int getSlowPolicy() {
+                        return mSlowPolicy;
+                }
+
+                /**
+                 * Gets how far this subscriber is behind the producer
+                 *
+                 * @return unread length, 0 when detached
+                 */
+                public int getLag() {
+                        long cursor = mCursor.get();
+                        if(cursor == DETACHED) {
+                                return 0;
+                        }
+                        return (int) Math.max(0, Math.min(mHead.get() - cursor, mRingBufSize));
+                }
+
+                /**
+                 * Gets bytes this subscriber missed with SLOW_SUBSCRIBER_SKIP
+                 *
+                 * @return skipped byte count since subscribing
+                 */
+                public long getSkippedBytes() {
+                        return mSkippedBytes.get();
+                }
+
+                /**
+                 * Checks the producer detached this subscriber, or close() was called
+                 *
+                 * @return true : detached
+                 */
+                public boolean isDetached() {
+                        return mCursor.get() == DETACHED;
+                }
+
+                /**
+                 * Stops receiving. The producer no longer waits for or tracks this subscriber.
+                 */
+                public void close() {
+                        mCursor.set(DETACHED);
+                        mSubscribers.remove(this);
+                }
+
+                /**
+                 * Gets unread bytes to byte array
+                 *
+                 * @param buf    byte array
+                 * @param off    offset in buf to start from
+                 * @param length gotten length
+                 *
+                 * @return actually gotten length
+                 */
+                public int get(byte[] buf, int off, int length) {
+                        if(buf == null) {
+                                return 0;
+                        }
+                        int getLen = Math.min(length, buf.length - off);
+                        if(getLen <= 0) {
+                                return 0;
+                        }
+                        for(;;) {
+                                long cursor = mCursor.get();
+                                if(cursor == DETACHED) {
+                                        return 0;
+                                }
+                                int buffered = (int) (mHead.get() - cursor);
+                                if(buffered > mRingBufSize) {
+                                        continue; // the producer is moving this cursor right now
+                                }
+                                int len = Math.min(getLen, buffered);
+                                if(len <= 0) {
+                                        return 0;
+                                }
+                                int pos = (int) cursor & mMask;
+                                int copyLen = Math.min(len, mRingBufSize - pos);
+                                System.arraycopy(mRingBuf, pos, buf, off, copyLen);
+                                if(copyLen < len) { // When the data spans one lap
+                                        System.arraycopy(mRingBuf, 0, buf, off + copyLen, len - copyLen);
+                                }
+                                if(mCursor.compareAndSet(cursor, cursor + len)) {
+                                        return len;
+                                }
+                                // the producer moved the cursor, what was just copied may be overwritten
+                        }
+                }
+
+                /**
+                 * Gets unread bytes to byte array, waiting for the producer while nothing is unread
+                 *
+                 * @param buf       byte array
+                 * @param off       offset in buf to start from
+                 * @param length    gotten length
+                 * @param timeoutMs longest wait for the first byte, 0 does not wait
+                 *
+                 * @return actually gotten length, 0 on timeout, interrupt or detach
+                 */
+                public int get(byte[] buf, int off, int length, long timeoutMs) {
+                        int len = get(buf, off, length);
+                        if(len > 0 || timeoutMs <= 0) {
+                                return len;
+                        }
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                        mWaiter = Thread.currentThread();
+                        try {
+                                while(len == 0 && !isDetached()) {
+                                        if(getLag() == 0) {
+                                                long remaining = deadline - System.nanoTime();
+                                                if(remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                                                        break;
+                                                }
+                                                LockSupport.parkNanos(this, remaining);
+                                        }
+                                        len = get(buf, off, length);
+                                }
+                        } finally {
+                                mWaiter = null;
+                        }
+                        return len;
+                }
+
+                /**
+                 * Gets a read-only view of the next contiguous unread bytes without consuming them
+                 *
+                 * @return read-only view, or null if nothing is unread
+                 */
+                public ByteBuffer peekContiguous() {
+                        for(;;) {
+                                long cursor = mCursor.get();
+                                if(cursor == DETACHED) {
+                                        return null;
+                                }
+                                int buffered = (int) (mHead.get() - cursor);
+                                if(buffered > mRingBufSize) {
+                                        continue;
+                                }
+                                if(buffered <= 0) {
+                                        return null;
+                                }
+                                if(mView == null) {
+                                        mView = ByteBuffer.wrap(mRingBuf).asReadOnlyBuffer();
+                                }
+                                int pos = (int) cursor & mMask;
+                                mView.clear();
+                                mView.limit(pos + Math.min(buffered, mRingBufSize - pos));
+                                mView.position(pos);
+                                mPeekCursor = cursor;
+                                return mView;
+                        }
+                }
+
+                /**
+                 * Consumes bytes of the view returned by peekContiguous()
+                 *
+                 * @param length consumed length
+                 *
+                 * @return true : the view was still valid, false : the producer moved past it, read again
+                 */
+                public boolean release(int length) {
+                        return mCursor.compareAndSet(mPeekCursor, mPeekCursor + length);
+                }
+
+                /**
+                 * Visits the unread bytes in place, at most two segments
+                 *
+                 * @param visitor called for each segment until it returns false
+                 *
+                 * @return bytes in the visited segments
+                 */
+                public int forEachSegment(SegmentVisitor visitor) {
+                        ByteBuffer first = peekContiguous();
+                        if(first == null) {
+                                return 0;
+                        }
+                        int firstLen = first.remaining();
+                        int buffered = (int) Math.min(mHead.get() - mPeekCursor, mRingBufSize);
+                        if(!visitor.onSegment(first) || firstLen >= buffered) {
+                                return firstLen;
+                        }
+                        if(mWrapView == null) {
+                                mWrapView = ByteBuffer.wrap(mRingBuf).asReadOnlyBuffer();
+                        }
+                        mWrapView.clear();
+                        mWrapView.limit(buffered - firstLen); // When the data spans one lap
+                        visitor.onSegment(mWrapView);
+                        return buffered;
+                }
+
+                /**
+                 * Skips everything unread
+                 */
+                public void clear() {
+                        for(;;) {
+                                long cursor = mCursor.get();
+                                if(cursor == DETACHED || mCursor.compareAndSet(cursor, mHead.get())) {
+                                        return;
+                                }
+                        }
+                }
+        }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Arrival time of each received chunk, kept beside a ReceiveBuffer as two
+ * parallel arrays of stream end positions and System.nanoTime() values.
+ * Single producer, single consumer, no allocation per chunk.
+ *
+ * The producer never overwrites a chunk the consumer has not passed, which
+ * every read moves on, not just lookup(). While the timeline is full, new chunks are not recorded and their bytes report
+ * the time of the next recorded chunk.
+ */
+final class ChunkTimeline {
+
+        private final long[] mEnd;
+        private final long[] mTime;
+        private final int mMask;
+        private final AtomicLong mCount = new AtomicLong();  // recorded chunks, written by the producer only
+        private final AtomicLong mCursor = new AtomicLong(); // first chunk the consumer may still need
+
+        ChunkTimeline(int chunks) {
+                int size = RingBuffer.roundUpToPowerOfTwo(Math.max(2, chunks));
+                mEnd = new long[size];
+                mTime = new long[size];
+                mMask = size - 1;
+        }
+
+        void record(long endPosition, long nanos) {
+                long count = mCount.get();
+                if(count - mCursor.get() >= mEnd.length) {
+                        return;
+                }
+                int idx = (int) count & mMask;
+                mEnd[idx] = endPosition;
+                mTime[idx] = nanos;
+                mCount.lazySet(count + 1); // publishes the entry
+        }
+
+        /**
+         * Frees the chunks ending at or before position for the producer
+         *
+         * @param position stream position the consumer has read up to
+         *
+         * @return first chunk still kept
+         */
+        long pass(long position) {
+                long count = mCount.get();
+                long chunk = mCursor.get();
+                while(chunk < count && mEnd[(int) chunk & mMask] <= position) {
+                        chunk++;
+                }
+                mCursor.lazySet(chunk);
+                return chunk;
+        }
+
+        /**
+         * Gets arrival times of the bytes between start and end stream positions
+         *
+         * @param arrival [0] : first byte, [1] : last byte, -1 when unknown
+         */
+        void lookup(long start, long end, long[] arrival) {
+                long count = mCount.get();
+                long chunk = pass(start);
+                arrival[0] = -1;
+                arrival[1] = -1;
+                if(chunk < count) {
+                        arrival[0] = mTime[(int) chunk & mMask];
+                }
+                while(chunk < count && mEnd[(int) chunk & mMask] < end) {
+                        chunk++;
+                }
+                if(chunk < count) {
+                        arrival[1] = mTime[(int) chunk & mMask];
+                }
+        }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of direct ByteBuffer slots.
+ *
+ * The producer gets a whole slot from acquire(), lets the USB host controller
+ * write into it (UsbRequest.queue()) and publishes it with commit(). The
+ * consumer reads read-only views of the slots, starting after the committed
+ * offset, so neither header stripping nor the hand-over copies any bytes.
+ *
+ * Slots hold one packet each, so the capacity in bytes is only reached when
+ * every packet is full. When no slot is free the packet is received into a
+ * scratch slot and counted in getDroppedBytes(), unless the overflow policy
+ * says otherwise.
+ */
+public class DirectSlotRing extends ReceiveBuffer {
+
+        private final int mSlotSize;
+        private final int mSlotCount;
+        private final int mMask;
+        private final ByteBuffer[] mSlots;      // producer's writable slices
+        private final ByteBuffer[] mViews;      // consumer's read-only duplicates
+        private final ByteBuffer mScratch;      // receives packets that have no slot
+        private final int[] mOffset;
+        private final int[] mLength;
+        private final AtomicLong mHead = new AtomicLong(); // committed slots, written by the producer only
+        private final AtomicLong mTail = new AtomicLong(); // released slots, the producer only moves it with OVERFLOW_DROP_OLDEST
+        private final AtomicLong mCommittedBytes = new AtomicLong();
+        private final AtomicLong mConsumedBytes = new AtomicLong();
+        private long mTailCache;        // producer's last view of mTail
+        private long mHeadCache;        // consumer's last view of mHead
+        private ByteBuffer mAcquired;   // slot handed out by the last acquire()
+        private long mReadTail = -1;    // slot mReadPos belongs to
+        private int mReadPos;           // bytes of that slot already consumed
+
+        /**
+         * Direct slot ring
+         *
+         * @param bufferSize     total size in bytes, split into slots of slotSize
+         * @param slotSize       bytes per slot, e.g. the endpoint's max packet size
+         * @param overflowPolicy e.g. ReceiveBuffer.OVERFLOW_DROP_NEWEST
+         * @param blockTimeoutMs how long acquire() waits for a slot with OVERFLOW_BLOCK
+         */
+        public DirectSlotRing(int bufferSize, int slotSize, int overflowPolicy, long blockTimeoutMs) {
+                super(overflowPolicy, blockTimeoutMs);
+                if(slotSize <= 0) {
+                        throw new IllegalArgumentException("slot size : " + slotSize);
+                }
+                mSlotSize = slotSize;
+                mSlotCount = RingBuffer.roundUpToPowerOfTwo(Math.max(2, (bufferSize + slotSize - 1) / slotSize));
+                mMask = mSlotCount - 1;
+                mSlots = new ByteBuffer[mSlotCount];
+                mViews = new ByteBuffer[mSlotCount];
+                mOffset = new int[mSlotCount];
+                mLength = new int[mSlotCount];
+
+                ByteBuffer region = ByteBuffer.allocateDirect(mSlotCount * slotSize);
+                for(int i = 0; i < mSlotCount; i++) {
+                        region.limit((i + 1) * slotSize);
+                        region.position(i * slotSize);
+                        mSlots[i] = region.slice();
+                        mViews[i] = mSlots[i].asReadOnlyBuffer();
+                }
+                mScratch = ByteBuffer.allocateDirect(slotSize);
+        }
+
+        /**
+         * Gets slot size
+         *
+         * @return bytes per slot
+         */
+        public int getSlotSize() {
+                return mSlotSize;
+        }
+
+        @Override
+        public int getRingBufferSize() {
+                return mSlotCount * mSlotSize;
+        }
+
+        /**
+         * Gets buffered length. Approximate for a moment while OVERFLOW_DROP_OLDEST
+         * discards the slot the consumer is in the middle of.
+         *
+         * @return buffered length
+         */
+        @Override
+        public int getBufferdLength() {
+                long consumed = mConsumedBytes.get();
+                long committed = mCommittedBytes.get();
+                return (int) Math.max(0, Math.min(committed - consumed, getRingBufferSize()));
+        }
+
+        @Override
+        public int add(byte[] buf, int length, int off) {
+                if(buf == null) {
+                        return 0;
+                }
+                int remain = Math.min(length, buf.length - off);
+                int added = 0;
+                while(remain > 0) {
+                        ByteBuffer slot = acquire(remain);
+                        int len = slot.limit();
+                        slot.put(buf, off, len);
+                        added += commit(0, len);
+                        off += len;
+                        remain -= len;
+                }
+                return added;
+        }
+
+        /**
+         * Gets the next free slot, or the scratch slot if there is none.
+         *
+         * @param maxLength the most bytes the producer is going to put, capped at the slot size
+         *
+         * @return direct ByteBuffer, position 0
+         */
+        @Override
+        public ByteBuffer acquire(int maxLength) {
+                long head = mHead.get();
+                if(head - mTailCache >= mSlotCount) {
+                        mTailCache = mTail.get();
+                }
+                if(head - mTailCache >= mSlotCount) {
+                        switch(mOverflowPolicy) {
+                                case OVERFLOW_DROP_OLDEST:
+                                        discardOldest(head);
+                                        break;
+                                case OVERFLOW_BLOCK:
+                                        awaitFree(head);
+                                        break;
+                                default:
+                                        break;
+                        }
+                }
+                ByteBuffer slot = (head - mTailCache < mSlotCount) ? mSlots[(int) head & mMask] : mScratch;
+                slot.clear();
+                slot.limit(Math.max(0, Math.min(maxLength, mSlotSize)));
+                mAcquired = slot;
+                return slot;
+        }
+
+        @Override
+        public int commit(int offset, int length) {
+                ByteBuffer slot = mAcquired;
+                mAcquired = null;
+                if(slot == null || length <= 0) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                length = Math.min(length, mSlotSize - offset);
+                if(slot == mScratch) {
+                        mDroppedBytes.addAndGet(length);
+                        return 0;
+                }
+                long head = mHead.get();
+                int idx = (int) head & mMask;
+                mOffset[idx] = offset;
+                mLength[idx] = length;
+                recordArrival(mCommittedBytes.get() + length, now);
+                mCommittedBytes.addAndGet(length);
+                mHead.set(head + 1); // publishes the slot, full fence pairs with the consumer's check in awaitData()
+                signalConsumer();
+                updateHighWaterMark(getBufferdLength());
+                return length;
+        }
+
+        // Takes the oldest slot away from the consumer. Races with the consumer's release through CAS.
+        private void discardOldest(long head) {
+                for(;;) {
+                        long tail = mTail.get();
+                        if(head - tail < mSlotCount) {
+                                mTailCache = tail;
+                                return;
+                        }
+                        if(mTail.compareAndSet(tail, tail + 1)) {
+                                // the consumer puts back what it had read of the slot when it notices
+                                int len = mLength[(int) tail & mMask];
+                                mConsumedBytes.addAndGet(len);
+                                mDroppedBytes.addAndGet(len);
+                                mTailCache = tail + 1;
+                                return;
+                        }
+                }
+        }
+
+        private void awaitFree(long head) {
+                long deadline = System.nanoTime() + mBlockTimeoutNanos;
+                beginProducerWait();
+                try {
+                        for(;;) {
+                                mTailCache = mTail.get();
+                                if(head - mTailCache < mSlotCount || !parkProducer(deadline)) {
+                                        return;
+                                }
+                        }
+                } finally {
+                        endProducerWait();
+                }
+        }
+
+        @Override
+        public int get(byte[] buf, int off, int length) {
+                if(buf == null) {
+                        return 0;
+                }
+                int getLen = Math.min(length, buf.length - off);
+                int got = 0;
+                while(got < getLen) {
+                        ByteBuffer view = peekContiguous();
+                        if(view == null) {
+                                break;
+                        }
+                        int len = Math.min(view.remaining(), getLen - got);
+                        view.get(buf, off + got, len);
+                        if(release(len)) {
+                                got += len;
+                        }
+                }
+                return got;
+        }
+
+        /**
+         * Gets a read-only view of the unread part of the oldest slot, starting
+         * after its committed offset.
+         */
+        @Override
+        public ByteBuffer peekContiguous() {
+                for(;;) {
+                        long tail = mTail.get();
+                        syncReadPos(tail);
+                        if(tail >= mHeadCache) {
+                                mHeadCache = mHead.get();
+                                if(tail >= mHeadCache) {
+                                        return null;
+                                }
+                        }
+                        int idx = (int) tail & mMask;
+                        // clamped, the producer may be refilling the slot with OVERFLOW_DROP_OLDEST
+                        int start = Math.max(0, Math.min(mOffset[idx], mSlotSize));
+                        int end = Math.min(start + Math.max(0, mLength[idx]), mSlotSize);
+                        start = Math.min(start + mReadPos, end);
+                        if(start == end) {
+                                // an empty slot, or one fully read but not yet released
+                                releaseSlot(tail);
+                                continue;
+                        }
+                        ByteBuffer view = mViews[idx];
+                        view.limit(end);
+                        view.position(start);
+                        return view;
+                }
+        }
+
+        @Override
+        public boolean release(int length) {
+                long tail = mReadTail;
+                int idx = (int) tail & mMask;
+                int newPos = mReadPos + length;
+                if(newPos >= mLength[idx]) {
+                        if(!releaseSlot(tail)) {
+                                return false;
+                        }
+                        passArrivals(mConsumedBytes.addAndGet(length));
+                        return true;
+                }
+                if(mOverflowPolicy == OVERFLOW_DROP_OLDEST && !mTail.compareAndSet(tail, tail)) {
+                        return false; // full fence, then still ours : the bytes read are valid
+                }
+                mReadPos = newPos;
+                passArrivals(mConsumedBytes.addAndGet(length));
+                return true;
+        }
+
+        // Moves the tail past slot tail. False when the producer already discarded it.
+        private boolean releaseSlot(long tail) {
+                boolean released;
+                switch(mOverflowPolicy) {
+                        case OVERFLOW_DROP_OLDEST:
+                                released = mTail.compareAndSet(tail, tail + 1);
+                                break;
+                        case OVERFLOW_BLOCK:
+                                mTail.set(tail + 1); // full fence, pairs with the producer's check in awaitFree()
+                                signalProducer();
+                                released = true;
+                                break;
+                        default:
+                                mTail.lazySet(tail + 1);
+                                released = true;
+                                break;
+                }
+                if(released) {
+                        mReadTail = tail + 1;
+                        mReadPos = 0;
+                } else {
+                        syncReadPos(mTail.get());
+                }
+                return released;
+        }
+
+        /**
+         * Counted in consumed bytes, which slots discarded with OVERFLOW_DROP_OLDEST
+         * make approximate.
+         */
+        @Override
+        protected long readPosition() {
+                return mConsumedBytes.get();
+        }
+
+        // Forgets the partial read position once the producer discarded that slot.
+        private void syncReadPos(long tail) {
+                if(tail != mReadTail) {
+                        if(mReadPos > 0) {
+                                mConsumedBytes.addAndGet(-mReadPos); // discardOldest() counted the whole slot
+                        }
+                        mReadTail = tail;
+                        mReadPos = 0;
+                }
+        }
+
+        /**
+         * Visits the unread part of each committed slot, one segment per slot.
+         */
+        @Override
+        public int forEachSegment(SegmentVisitor visitor) {
+                long tail = mTail.get();
+                syncReadPos(tail);
+                mHeadCache = mHead.get();
+                int visited = 0;
+                int readPos = mReadPos;
+                for(long slot = tail; slot < mHeadCache; slot++) {
+                        int idx = (int) slot & mMask;
+                        int start = Math.max(0, Math.min(mOffset[idx], mSlotSize));
+                        int end = Math.min(start + Math.max(0, mLength[idx]), mSlotSize);
+                        start = Math.min(start + readPos, end);
+                        readPos = 0;
+                        if(start == end) {
+                                continue;
+                        }
+                        ByteBuffer view = mViews[idx];
+                        view.limit(end);
+                        view.position(start);
+                        visited += end - start;
+                        if(!visitor.onSegment(view)) {
+                                break;
+                        }
+                }
+                return visited;
+        }
+
+        /**
+         * Clears buffer. Consumer thread only, or while the producer is stopped.
+         */
+        @Override
+        public void clear() {
+                ByteBuffer view;
+                while((view = peekContiguous()) != null) {
+                        release(view.remaining());
+                }
+        }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Buffer between a driver's read thread (the producer) and the reader of
+ * received bytes (the consumer). Implementations are single-producer,
+ * single-consumer and lock-free.
+ *
+ * The producer either copies bytes in with add(), or fills the ByteBuffer
+ * returned by acquire() in place (e.g. by queueing a UsbRequest on it) and
+ * publishes it with commit().
+ */
+public abstract class ReceiveBuffer {
+
+        /**
+         * Overflow policy : keeps the buffered bytes and discards what does not fit (default)
+         */
+        public static final int OVERFLOW_DROP_NEWEST = 0;
+        /**
+         * Overflow policy : discards the oldest buffered bytes to make room
+         */
+        public static final int OVERFLOW_DROP_OLDEST = 1;
+        /**
+         * Overflow policy : makes the producer wait for room, then drops the newest bytes on timeout
+         */
+        public static final int OVERFLOW_BLOCK = 2;
+
+        protected final int mOverflowPolicy;
+        protected final long mBlockTimeoutNanos;
+        protected final AtomicLong mDroppedBytes = new AtomicLong();
+        protected volatile int mHighWaterMark;
+        private volatile Thread mBlockedProducer;
+        private volatile Thread mBlockedConsumer;
+        private ChunkTimeline mTimeline;
+        private boolean mArrivalRead;   // consumer only, true while get() with arrival times runs
+
+        /**
+         * Visitor for forEachSegment()
+         */
+        public interface SegmentVisitor {
+                /**
+                 * Called for each contiguous run of buffered bytes, oldest first
+                 *
+                 * @param segment read-only view between position and limit, only valid during the call
+                 *
+                 * @return true : continue, false : stop visiting
+                 */
+                boolean onSegment(ByteBuffer segment);
+        }
+
+        /**
+         * @param overflowPolicy e.g. ReceiveBuffer.OVERFLOW_DROP_NEWEST
+         * @param blockTimeoutMs how long the producer waits for room with OVERFLOW_BLOCK
+         */
+        protected ReceiveBuffer(int overflowPolicy, long blockTimeoutMs) {
+                mOverflowPolicy = overflowPolicy;
+                mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeoutMs));
+        }
+
+        /**
+         * Gets the overflow policy
+         *
+         * @return e.g. ReceiveBuffer.OVERFLOW_DROP_NEWEST
+         */
+        public int getOverflowPolicy() {
+                return mOverflowPolicy;
+        }
+
+        /**
+         * Gets the number of bytes discarded because the buffer was full
+         *
+         * @return dropped byte count since construction
+         */
+        public long getDroppedBytes() {
+                return mDroppedBytes.get();
+        }
+
+        /**
+         * Gets the largest buffered length seen by the producer
+         *
+         * @return high-water mark in bytes since construction
+         */
+        public int getHighWaterMark() {
+                return mHighWaterMark;
+        }
+
+        /**
+         * Gets buffer capacity
+         *
+         * @return capacity in bytes
+         */
+        public abstract int getRingBufferSize();
+
+        /**
+         * Gets buffered length
+         *
+         * @return buffered length
+         */
+        public abstract int getBufferdLength();
+
+        /**
+         * Adds byte array to the buffer. Producer thread only.
+         *
+         * @param buf    byte array
+         * @param length added length
+         *
+         * @return actually added length
+         */
+        public int add(byte[] buf, int length) {
+                return add(buf, length, 0);
+        }
+
+        /**
+         * Adds byte array to the buffer with starting offset. Producer thread only.
+         *
+         * @param buf    byte array
+         * @param length added length
+         * @param off    offset to start from
+         *
+         * @return actually added length
+         */
+        public abstract int add(byte[] buf, int length, int off);
+
+        /**
+         * Gets a cleared buffer the producer can fill in place. Producer thread only.
+         * Nothing becomes visible to the consumer until commit() is called.
+         *
+         * @param maxLength the most bytes the producer is going to put
+         *
+         * @return direct ByteBuffer, position 0 and limit at most maxLength
+         */
+        public abstract ByteBuffer acquire(int maxLength);
+
+        /**
+         * Publishes bytes written into the buffer returned by the last acquire(). Producer thread only.
+         *
+         * @param offset leading bytes to skip, e.g. status bytes put in front by the device
+         * @param length payload length after offset
+         *
+         * @return actually added length
+         */
+        public abstract int commit(int offset, int length);
+
+        /**
+         * Gets buffer to byte array. Consumer thread only.
+         *
+         * @param buf    byte array
+         * @param length gotten length
+         *
+         * @return actually gotten length
+         */
+        public int get(byte[] buf, int length) {
+                return get(buf, 0, length);
+        }
+
+        /**
+         * Gets buffer to byte array from offset. Consumer thread only.
+         *
+         * @param buf    byte array
+         * @param off    offset in buf to start from
+         * @param length gotten length
+         *
+         * @return actually gotten length
+         */
+        public abstract int get(byte[] buf, int off, int length);
+
+        /**
+         * Gets buffer to byte array, waiting for the producer while nothing
+         * is buffered. Consumer thread only.
+         *
+         * @param buf       byte array
+         * @param off       offset in buf to start from
+         * @param length    gotten length
+         * @param timeoutMs longest wait for the first byte, 0 does not wait
+         *
+         * @return actually gotten length, 0 on timeout or interrupt
+         */
+        public int get(byte[] buf, int off, int length, long timeoutMs) {
+                int len = get(buf, off, length);
+                if(len > 0 || timeoutMs <= 0) {
+                        return len;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                while(len == 0 && awaitData(deadline)) {
+                        len = get(buf, off, length);
+                }
+                return len;
+        }
+
+        /**
+         * Gets buffer into a ByteBuffer, copying straight from the buffered
+         * segments. Consumer thread only.
+         *
+         * @param dst destination, filled from its position up to its limit
+         *
+         * @return actually gotten length
+         */
+        public int get(ByteBuffer dst) {
+                int got = 0;
+                ByteBuffer view;
+                while(dst.hasRemaining() && (view = peekContiguous()) != null) {
+                        int len = Math.min(view.remaining(), dst.remaining());
+                        int start = dst.position();
+                        view.limit(view.position() + len);
+                        dst.put(view);
+                        if(!release(len)) {
+                                dst.position(start); // overwritten while copying, take the new oldest bytes instead
+                                continue;
+                        }
+                        got += len;
+                }
+                return got;
+        }
+
+        /**
+         * Writes buffered bytes to a channel straight from the buffered
+         * segments, until the buffer is empty or the channel takes no more.
+         * Consumer thread only. With OVERFLOW_DROP_OLDEST, bytes the producer
+         * overwrites while the channel is writing them reach it overwritten.
+         *
+         * @param target channel, e.g. a FileChannel or SocketChannel
+         *
+         * @return transferred length
+         *
+         * @throws IOException target failed
+         */
+        public long transferTo(WritableByteChannel target) throws IOException {
+                long moved = 0;
+                ByteBuffer view;
+                while((view = peekContiguous()) != null) {
+                        int len = target.write(view);
+                        if(len <= 0) {
+                                break;
+                        }
+                        release(len);
+                        moved += len;
+                        if(view.hasRemaining()) { // non-blocking channel is full
+                                break;
+                        }
+                }
+                return moved;
+        }
+
+        /**
+         * Waits for the producer while nothing is buffered. Consumer thread only.
+         *
+         * @param timeoutMs longest wait
+         *
+         * @return true : something is buffered, false : timeout or interrupt
+         */
+        public boolean await(long timeoutMs) {
+                if(getBufferdLength() > 0) {
+                        return true;
+                }
+                return timeoutMs > 0 && awaitData(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+        }
+
+        /**
+         * Keeps the arrival time of up to chunks received chunks. Has to be
+         * called before the producer starts.
+         *
+         * @param chunks chunks remembered until the consumer reads them, 0 disables
+         */
+        public void setArrivalTimeCapacity(int chunks) {
+                mTimeline = (chunks > 0) ? new ChunkTimeline(chunks) : null;
+        }
+
+        /**
+         * Gets buffer to byte array together with when its bytes arrived.
+         * Consumer thread only.
+         *
+         * @param buf     byte array
+         * @param off     offset in buf to start from
+         * @param length  gotten length
+         * @param arrival System.nanoTime() of [0] : the first byte's chunk, [1] : the last byte's chunk,
+         *                -1 when unknown or arrival times are not kept
+         *
+         * @return actually gotten length
+         */
+        public int get(byte[] buf, int off, int length, long[] arrival) {
+                int len;
+                mArrivalRead = true;    // keeps the chunks of these bytes until lookup()
+                try {
+                        len = get(buf, off, length);
+                } finally {
+                        mArrivalRead = false;
+                }
+                ChunkTimeline timeline = mTimeline;
+                long end = readPosition();
+                if(len > 0 && timeline != null && end >= 0) {
+                        timeline.lookup(end - len, end, arrival);
+                } else {
+                        arrival[0] = -1;
+                        arrival[1] = -1;
+                }
+                return len;
+        }
+
+        /**
+         * get() with arrival times, waiting for the producer while nothing is buffered
+         *
+         * @param buf       byte array
+         * @param off       offset in buf to start from
+         * @param length    gotten length
+         * @param timeoutMs longest wait for the first byte, 0 does not wait
+         * @param arrival   see get(byte[], int, int, long[])
+         *
+         * @return actually gotten length, 0 on timeout or interrupt
+         */
+        public int get(byte[] buf, int off, int length, long timeoutMs, long[] arrival) {
+                if(timeoutMs > 0 && getBufferdLength() == 0) {
+                        awaitData(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+                }
+                return get(buf, off, length, arrival);
+        }
+
+        /**
+         * Gets the stream position of the next byte the consumer reads,
+         * counted the same way as the end positions given to recordArrival().
+         *
+         * @return position, -1 if this buffer does not keep arrival times
+         */
+        protected long readPosition() {
+                return -1;
+        }
+
+        /**
+         * Gets the time to record for a chunk the producer is about to add
+         *
+         * @return System.nanoTime(), 0 while arrival times are not kept
+         */
+        protected final long arrivalTime() {
+                return (mTimeline != null) ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Records a published chunk. Producer thread only.
+         *
+         * @param endPosition stream position just after the chunk
+         * @param nanos       value of arrivalTime() taken when the chunk arrived
+         */
+        protected final void recordArrival(long endPosition, long nanos) {
+                ChunkTimeline timeline = mTimeline;
+                if(timeline != null) {
+                        timeline.record(endPosition, nanos);
+                }
+        }
+
+        /**
+         * Frees the arrival times of the bytes read, so the producer keeps
+         * recording. Subclasses call it each time the read position moves.
+         * Consumer thread only.
+         *
+         * @param position new readPosition(), -1 is ignored
+         */
+        protected final void passArrivals(long position) {
+                ChunkTimeline timeline = mTimeline;
+                if(timeline != null && !mArrivalRead && position >= 0) {
+                        timeline.pass(position);
+                }
+        }
+
+        // Parks the consumer until something is buffered. False on timeout or interrupt.
+        private boolean awaitData(long deadline) {
+                mBlockedConsumer = Thread.currentThread();
+                try {
+                        for(;;) {
+                                if(getBufferdLength() > 0) {
+                                        return true;
+                                }
+                                long remaining = deadline - System.nanoTime();
+                                if(remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                                        return false;
+                                }
+                                LockSupport.parkNanos(this, remaining);
+                        }
+                } finally {
+                        mBlockedConsumer = null;
+                }
+        }
+
+        /**
+         * Gets a read-only view of the next contiguous buffered bytes without
+         * consuming them. Consumer thread only. The view is valid until the
+         * next consumer call; with OVERFLOW_DROP_OLDEST the producer may
+         * discard it meanwhile, which release() reports.
+         *
+         * @return read-only view, or null if nothing is buffered
+         */
+        public abstract ByteBuffer peekContiguous();
+
+        /**
+         * Consumes bytes of the view returned by peekContiguous(). Consumer thread only.
+         *
+         * @param length consumed length, at most the view's remaining()
+         *
+         * @return true : the view was still valid, false : the producer discarded it, read again
+         */
+        public abstract boolean release(int length);
+
+        /**
+         * Clears buffer. Consumer thread only, or while the producer is stopped.
+         */
+        public abstract void clear();
+
+        /**
+         * Releases what the buffer holds outside the heap, e.g. a spill file.
+         * Bytes already buffered can still be read. Called once the producer
+         * has stopped; does nothing by default.
+         */
+        public void close() {
+        }
+
+        /**
+         * Visits the buffered bytes in place without consuming them. Consumer
+         * thread only, and the visitor must not call other consumer methods.
+         * With OVERFLOW_DROP_OLDEST the producer may overwrite what is being
+         * visited; skip() afterwards tells whether it did.
+         *
+         * @param visitor called for each segment until it returns false
+         *
+         * @return bytes in the visited segments
+         */
+        public abstract int forEachSegment(SegmentVisitor visitor);
+
+        /**
+         * Gets a buffered byte without consuming it. Consumer thread only.
+         *
+         * @param offset distance from the oldest buffered byte
+         *
+         * @return byte value 0-255, or -1 if fewer than offset + 1 bytes are buffered
+         */
+        public int peek(final int offset) {
+                if(offset < 0) {
+                        return -1;
+                }
+                final int[] value = {-1};
+                forEachSegment(new SegmentVisitor() {
+                        int remain = offset;
+
+                        @Override
+                        public boolean onSegment(ByteBuffer segment) {
+                                if(remain < segment.remaining()) {
+                                        value[0] = segment.get(segment.position() + remain) & 0xff;
+                                        return false;
+                                }
+                                remain -= segment.remaining();
+                                return true;
+                        }
+                });
+                return value[0];
+        }
+
+        /**
+         * Copies buffered bytes without consuming them. Consumer thread only.
+         *
+         * @param buf    byte array
+         * @param off    offset in buf to start from
+         * @param length copied length
+         *
+         * @return actually copied length
+         */
+        public int peek(final byte[] buf, final int off, final int length) {
+                if(buf == null) {
+                        return 0;
+                }
+                final int peekLen = Math.min(length, buf.length - off);
+                if(peekLen <= 0) {
+                        return 0;
+                }
+                final int[] copied = {0};
+                forEachSegment(new SegmentVisitor() {
+                        @Override
+                        public boolean onSegment(ByteBuffer segment) {
+                                int len = Math.min(segment.remaining(), peekLen - copied[0]);
+                                segment.get(buf, off + copied[0], len);
+                                copied[0] += len;
+                                return copied[0] < peekLen;
+                        }
+                });
+                return copied[0];
+        }
+
+        /**
+         * Consumes buffered bytes without copying them. Consumer thread only.
+         *
+         * @param length skipped length
+         *
+         * @return actually skipped length, 0 if the producer discarded the
+         * bytes in the meantime with OVERFLOW_DROP_OLDEST
+         */
+        public int skip(int length) {
+                int skipped = 0;
+                while(skipped < length) {
+                        ByteBuffer view = peekContiguous();
+                        if(view == null) {
+                                break;
+                        }
+                        int len = Math.min(view.remaining(), length - skipped);
+                        if(!release(len)) {
+                                return 0;
+                        }
+                        skipped += len;
+                }
+                return skipped;
+        }
+
+        /**
+         * Finds a byte in the buffered bytes without consuming them. Consumer thread only.
+         *
+         * @param b    byte to find
+         * @param from distance from the oldest buffered byte to start from
+         *
+         * @return distance from the oldest buffered byte, or -1 if not buffered
+         */
+        public int indexOf(final byte b, final int from) {
+                final int[] index = {-1};
+                forEachSegment(new SegmentVisitor() {
+                        int base = 0;
+
+                        @Override
+                        public boolean onSegment(ByteBuffer segment) {
+                                int pos = segment.position();
+                                for(int i = Math.max(0, from - base); i < segment.remaining(); i++) {
+                                        if(segment.get(pos + i) == b) {
+                                                index[0] = base + i;
+                                                return false;
+                                        }
+                                }
+                                base += segment.remaining();
+                                return true;
+                        }
+                });
+                return index[0];
+        }
+
+        /**
+         * Raises the high-water mark if buffered is above it. Producer thread only.
+         *
+         * @param buffered current buffered length
+         */
+        protected final void updateHighWaterMark(int buffered) {
+                if(buffered > mHighWaterMark) {
+                        mHighWaterMark = buffered;
+                }
+        }
+
+        /**
+         * Registers the producer for signalProducer(). Has to be called
+         * before the producer re-checks for room, or a wakeup can be lost.
+         */
+        protected final void beginProducerWait() {
+                mBlockedProducer = Thread.currentThread();
+        }
+
+        /**
+         * Parks the registered producer until signalProducer() or the deadline
+         *
+         * @param deadline System.nanoTime() based
+         *
+         * @return false when the deadline passed or the producer was interrupted
+         */
+        protected final boolean parkProducer(long deadline) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                        return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                return true;
+        }
+
+        protected final void endProducerWait() {
+                mBlockedProducer = null;
+        }
+
+        /**
+         * Wakes a consumer parked in get() with a timeout. The producer calls
+         * this after publishing new bytes with a volatile store.
+         */
+        protected final void signalConsumer() {
+                Thread consumer = mBlockedConsumer;
+                if(consumer != null) {
+                        LockSupport.unpark(consumer);
+                }
+        }
+
+        /**
+         * Wakes a producer parked with OVERFLOW_BLOCK. The consumer calls
+         * this after publishing the freed space with a volatile store.
+         */
+        protected final void signalProducer() {
+                Thread producer = mBlockedProducer;
+                if(producer != null) {
+                        LockSupport.unpark(producer);
+                }
+        }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer.
+ *
+ * One thread (the driver's read loop) may call add() while another thread
+ * calls get(), getBufferdLength() and clear(). Both indices only ever grow;
+ * the buffer position is the index masked by the power-of-two capacity.
+ *
+ * What add() does when the consumer falls behind is chosen by the overflow
+ * policy. Every byte that is thrown away is counted in getDroppedBytes().
+ */
+public class RingBuffer extends ReceiveBuffer {
+
+        private final int mRingBufSize;
+        private final int mMask;
+        private final byte[] mRingBuf;
+        private final AtomicLong mAddIndex = new AtomicLong(); // top of data index, written by the producer only
+        private final AtomicLong mGetIndex = new AtomicLong(); // tail of data index, written by the consumer only
+        private long mGetIndexCache;    // producer's last view of mGetIndex
+        private long mAddIndexCache;    // consumer's last view of mAddIndex
+        private ByteBuffer mStaging;    // producer side of acquire()/commit()
+        private ByteBuffer mReadView;   // consumer side of peekContiguous()
+        private long mPeekIndex;
+        private ByteBuffer mSegmentView;        // consumer side of forEachSegment(), second region
+
+        /**
+         * Ring buffer
+         *
+         * @param bufferSize buffer size. It needs enough size e.g.1024, rounded up to a power of two
+         */
+        public RingBuffer(int bufferSize) {
+                this(bufferSize, OVERFLOW_DROP_NEWEST, 0);
+        }
+
+        /**
+         * Ring buffer
+         *
+         * @param bufferSize     buffer size, rounded up to a power of two
+         * @param overflowPolicy e.g. RingBuffer.OVERFLOW_DROP_NEWEST
+         * @param blockTimeoutMs how long add() waits for room with OVERFLOW_BLOCK
+         */
+        public RingBuffer(int bufferSize, int overflowPolicy, long blockTimeoutMs) {
+                super(overflowPolicy, blockTimeoutMs);
+                mRingBufSize = roundUpToPowerOfTwo(bufferSize);
+                mMask = mRingBufSize - 1;
+                mRingBuf = new byte[mRingBufSize];
+        }
+
+        static int roundUpToPowerOfTwo(int size) {
+                if(size <= 1) {
+                        return 1;
+                }
+                if(size > (1 << 30)) {
+                        throw new IllegalArgumentException("buffer size too large : " + size);
+                }
+                return Integer.highestOneBit(size - 1) << 1;
+        }
+
+        /**
+         * Gets ring buffer size
+         *
+         * @return ring buffer size
+         */
+        @Override
+        public int getRingBufferSize() {
+                return mRingBufSize;
+        }
+
+        /**
+         * Gets buffered length
+         *
+         * @return buffered length
+         */
+        @Override
+        public int getBufferdLength() {
+                // read the tail first so that a concurrent get() can never make the result negative
+                long get = mGetIndex.get();
+                long add = mAddIndex.get();
+                return (int) Math.min(add - get, mRingBufSize);
+        }
+
+        /**
+         * Adds byte array to ring buffer with starting offset. Producer thread only.
+         *
+         * @param buf    byte array
+         * @param length added length
+         * @param off    offset to start from
+         *
+         * @return actually added length
+         */
+        @Override
+        public int add(byte[] buf, int length, int off) {
+                if(buf == null) {
+                        return 0;
+                }
+                int addLen = Math.min(length, buf.length - off);
+                if(addLen <= 0) {
+                        return 0;
+                }
+
+                long now = arrivalTime();
+                long add = mAddIndex.get();
+                int room = makeRoom(add, addLen);
+                if(room == 0) {
+                        return 0;
+                }
+                if(room < addLen && mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                        off += addLen - room; // only the tail of the chunk can survive
+                }
+
+                int pos = (int) add & mMask;
+                int copyLen = Math.min(room, mRingBufSize - pos);
+                System.arraycopy(buf, off, mRingBuf, pos, copyLen);
+                if(copyLen < room) { // When store straddles the end of the buffer
+                        System.arraycopy(buf, off + copyLen, mRingBuf, 0, room - copyLen);
+                }
+
+                publish(add + room, now);
+                return room;
+        }
+
+        /**
+         * Gets a direct staging buffer. It is copied into the ring by commit(),
+         * so this only saves the caller's own byte array; use DirectSlotRing
+         * for the copy-free path.
+         */
+        @Override
+        public ByteBuffer acquire(int maxLength) {
+                if(mStaging == null || mStaging.capacity() < maxLength) {
+                        mStaging = ByteBuffer.allocateDirect(maxLength);
+                }
+                mStaging.clear();
+                mStaging.limit(maxLength);
+                return mStaging;
+        }
+
+        @Override
+        public int commit(int offset, int length) {
+                if(length <= 0 || mStaging == null) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                long add = mAddIndex.get();
+                int room = makeRoom(add, length);
+                if(room == 0) {
+                        return 0;
+                }
+                if(room < length && mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                        offset += length - room;
+                }
+
+                int pos = (int) add & mMask;
+                int copyLen = Math.min(room, mRingBufSize - pos);
+                mStaging.limit(offset + room);
+                mStaging.position(offset);
+                mStaging.get(mRingBuf, pos, copyLen);
+                if(copyLen < room) {
+                        mStaging.get(mRingBuf, 0, room - copyLen);
+                }
+
+                publish(add + room, now);
+                return room;
+        }
+
+        // Applies the overflow policy and returns how many of length bytes can be stored at add.
+        private int makeRoom(long add, int length) {
+                int free = mRingBufSize - (int) (add - mGetIndexCache);
+                if(free < length) {
+                        mGetIndexCache = mGetIndex.get();
+                        free = mRingBufSize - (int) (add - mGetIndexCache);
+                }
+                if(free >= length) {
+                        return length;
+                }
+
+                int room;
+                switch(mOverflowPolicy) {
+                        case OVERFLOW_DROP_OLDEST:
+                                room = Math.min(length, mRingBufSize);
+                                discardOldest(add, room);
+                                break;
+                        case OVERFLOW_BLOCK:
+                                room = Math.min(length, awaitFree(add, length));
+                                break;
+                        default: // Fixed to a size that does not overtake
+                                room = free;
+                                break;
+                }
+                mDroppedBytes.addAndGet(length - room);
+                return room;
+        }
+
+        private void publish(long add, long now) {
+                recordArrival(add, now); // before the bytes are visible, so a reader always finds their chunk
+                mAddIndex.set(add); // publishes the copied bytes, full fence pairs with the consumer's check in awaitData()
+                signalConsumer();
+                if((int) (add - mGetIndexCache) > mHighWaterMark) {
+                        // the cached tail is older, so only then can the real length be a new maximum
+                        updateHighWaterMark((int) (add - mGetIndex.get()));
+                }
+        }
+
+        // Moves the consumer's tail forward so that length bytes fit. Races with get() through CAS.
+        private void discardOldest(long add, int length) {
+                for(;;) {
+                        long get = mGetIndex.get();
+                        int need = length - (mRingBufSize - (int) (add - get));
+                        if(need <= 0) {
+                                mGetIndexCache = get;
+                                return;
+                        }
+                        if(mGetIndex.compareAndSet(get, get + need)) {
+                                mGetIndexCache = get + need;
+                                mDroppedBytes.addAndGet(need);
+                                return;
+                        }
+                }
+        }
+
+        // Parks the producer until get() frees length bytes or the timeout expires.
+        private int awaitFree(long add, int length) {
+                long deadline = System.nanoTime() + mBlockTimeoutNanos;
+                int free;
+                beginProducerWait();
+                try {
+                        for(;;) {
+                                mGetIndexCache = mGetIndex.get();
+                                free = mRingBufSize - (int) (add - mGetIndexCache);
+                                if(free >= length || !parkProducer(deadline)) {
+                                        break;
+                                }
+                        }
+                } finally {
+                        endProducerWait();
+                }
+                return free;
+        }
+
+        /**
+         * Gets ring buffer to byte array. Consumer thread only.
+         *
+         * @param buf    byte array
+         * @param off    offset in buf to start from
+         * @param length gotten length
+         *
+         * @return actually gotten length
+         */
+        @Override
+        public int get(byte[] buf, int off, int length) {
+                if(buf == null) {
+                        return 0;
+                }
+                int getLen = Math.min(length, buf.length - off);
+                if(getLen <= 0) {
+                        return 0;
+                }
+
+                for(;;) {
+                        long get = mGetIndex.get();
+                        int len = getLen;
+                        int buffered = available(get, len);
+                        if(buffered < 0) {
+                                continue; // the producer is discarding the oldest bytes right now
+                        }
+                        if(buffered < len) { // Returns the size currently buffered
+                                len = buffered;
+                                if(len == 0) {
+                                        return 0;
+                                }
+                        }
+
+                        int pos = (int) get & mMask;
+                        int copyLen = Math.min(len, mRingBufSize - pos);
+                        System.arraycopy(mRingBuf, pos, buf, off, copyLen);
+                        if(copyLen < len) { // When the data spans one lap
+                                System.arraycopy(mRingBuf, 0, buf, off + copyLen, len - copyLen);
+                        }
+
+                        if(!releaseTo(get, get + len)) {
+                                continue; // the producer discarded what was just copied, start over
+                        }
+                        return len;
+                }
+        }
+
+        // Buffered length seen from get, refreshed when below wanted, or -1 if get is already stale.
+        private int available(long get, int wanted) {
+                int buffered = (int) (mAddIndexCache - get);
+                if(buffered < wanted) {
+                        mAddIndexCache = mAddIndex.get();
+                        buffered = (int) (mAddIndexCache - get);
+                }
+                return buffered > mRingBufSize ? -1 : buffered;
+        }
+
+        @Override
+        public ByteBuffer peekContiguous() {
+                for(;;) {
+                        long get = mGetIndex.get();
+                        int buffered = available(get, mRingBufSize);
+                        if(buffered < 0) {
+                                continue;
+                        }
+                        if(buffered == 0) {
+                                return null;
+                        }
+                        if(mReadView == null) {
+                                mReadView = ByteBuffer.wrap(mRingBuf).asReadOnlyBuffer();
+                        }
+                        int pos = (int) get & mMask;
+                        mReadView.clear();
+                        mReadView.limit(pos + Math.min(buffered, mRingBufSize - pos));
+                        mReadView.position(pos);
+                        mPeekIndex = get;
+                        return mReadView;
+                }
+        }
+
+        @Override
+        public boolean release(int length) {
+                return releaseTo(mPeekIndex, mPeekIndex + length);
+        }
+
+        @Override
+        public int forEachSegment(SegmentVisitor visitor) {
+                long get = mGetIndex.get();
+                int buffered = available(get, mRingBufSize);
+                if(buffered <= 0) {
+                        return 0;
+                }
+                if(mReadView == null) {
+                        mReadView = ByteBuffer.wrap(mRingBuf).asReadOnlyBuffer();
+                }
+                if(mSegmentView == null) {
+                        mSegmentView = ByteBuffer.wrap(mRingBuf).asReadOnlyBuffer();
+                }
+                int pos = (int) get & mMask;
+                int firstLen = Math.min(buffered, mRingBufSize - pos);
+                mReadView.clear();
+                mReadView.limit(pos + firstLen);
+                mReadView.position(pos);
+                if(!visitor.onSegment(mReadView) || firstLen == buffered) {
+                        return firstLen;
+                }
+                mSegmentView.clear();
+                mSegmentView.limit(buffered - firstLen); // When the data spans one lap
+                visitor.onSegment(mSegmentView);
+                return buffered;
+        }
+
+        @Override
+        public int peek(int offset) {
+                long get = mGetIndex.get();
+                int buffered = available(get, offset + 1);
+                if(offset < 0 || buffered <= offset) {
+                        return -1;
+                }
+                int value = mRingBuf[(int) (get + offset) & mMask] & 0xff;
+                return isValid(get) ? value : -1;
+        }
+
+        @Override
+        public int peek(byte[] buf, int off, int length) {
+                if(buf == null) {
+                        return 0;
+                }
+                int peekLen = Math.min(length, buf.length - off);
+                if(peekLen <= 0) {
+                        return 0;
+                }
+                long get = mGetIndex.get();
+                int buffered = available(get, peekLen);
+                if(buffered <= 0) {
+                        return 0;
+                }
+                peekLen = Math.min(peekLen, buffered);
+                int pos = (int) get & mMask;
+                int copyLen = Math.min(peekLen, mRingBufSize - pos);
+                System.arraycopy(mRingBuf, pos, buf, off, copyLen);
+                if(copyLen < peekLen) {
+                        System.arraycopy(mRingBuf, 0, buf, off + copyLen, peekLen - copyLen);
+                }
+                return isValid(get) ? peekLen : 0;
+        }
+
+        @Override
+        public int skip(int length) {
+                if(length <= 0) {
+                        return 0;
+                }
+                long get = mGetIndex.get();
+                int buffered = available(get, length);
+                if(buffered <= 0) {
+                        return 0;
+                }
+                int len = Math.min(length, buffered);
+                return releaseTo(get, get + len) ? len : 0;
+        }
+
+        @Override
+        public int indexOf(byte b, int from) {
+                long get = mGetIndex.get();
+                int buffered = available(get, mRingBufSize);
+                for(int i = Math.max(0, from); i < buffered; i++) {
+                        if(mRingBuf[(int) (get + i) & mMask] == b) {
+                                return isValid(get) ? i : -1;
+                        }
+                }
+                return -1;
+        }
+
+        // True when the bytes read from get have not been discarded by the producer meanwhile.
+        private boolean isValid(long get) {
+                if(mOverflowPolicy != OVERFLOW_DROP_OLDEST) {
+                        return true;
+                }
+                return mGetIndex.compareAndSet(get, get); // full fence after the plain reads
+        }
+
+        @Override
+        protected long readPosition() {
+                return mGetIndex.get();
+        }
+
+        // Hands the space up to newGet back to the producer.
+        private boolean releaseTo(long get, long newGet) {
+                switch(mOverflowPolicy) {
+                        case OVERFLOW_DROP_OLDEST:
+                                if(!mGetIndex.compareAndSet(get, newGet)) {
+                                        return false;
+                                }
+                                break;
+                        case OVERFLOW_BLOCK:
+                                mGetIndex.set(newGet); // full fence, pairs with the producer's check in awaitFree()
+                                signalProducer();
+                                break;
+                        default:
+                                mGetIndex.lazySet(newGet);
+                                break;
+                }
+                passArrivals(newGet);
+                return true;
+        }
+
+        /**
+         * Clear ring buffer. Consumer thread only, or while the producer is stopped.
+         */
+        @Override
+        public void clear() {
+                for(;;) {
+                        long get = mGetIndex.get();
+                        long add = mAddIndex.get();
+                        mAddIndexCache = add;
+                        if(releaseTo(get, add)) {
+                                return;
+                        }
+                }
+        }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide pool of direct segments of one size, shared by every
+ * SegmentQueue using that size. Keeps at most MAX_POOLED_BYTES per size;
+ * segments recycled beyond that are left to the garbage collector.
+ */
+public class SegmentPool {
+
+        /**
+         * Upper bound of idle memory kept per segment size
+         */
+        public static final int MAX_POOLED_BYTES = 256 * 1024;
+
+        private static final ConcurrentHashMap<Integer, SegmentPool> sPools = new ConcurrentHashMap<Integer, SegmentPool>();
+
+        private final int mSegmentSize;
+        private final Segment[] mFree;
+        private int mFreeCount;
+
+        private SegmentPool(int segmentSize) {
+                mSegmentSize = segmentSize;
+                mFree = new Segment[Math.max(1, MAX_POOLED_BYTES / segmentSize)];
+        }
+
+        /**
+         * Gets the shared pool of a segment size
+         *
+         * @param segmentSize bytes per segment
+         *
+         * @return shared pool
+         */
+        public static SegmentPool forSize(int segmentSize) {
+                SegmentPool pool = sPools.get(segmentSize);
+                if(pool == null) {
+                        SegmentPool created = new SegmentPool(segmentSize);
+                        pool = sPools.putIfAbsent(segmentSize, created);
+                        if(pool == null) {
+                                pool = created;
+                        }
+                }
+                return pool;
+        }
+
+        /**
+         * Gets segment size
+         *
+         * @return bytes per segment
+         */
+        public int getSegmentSize() {
+                return mSegmentSize;
+        }
+
+        /**
+         * Gets the number of idle segments
+         *
+         * @return pooled segment count
+         */
+        public synchronized int getPooledCount() {
+                return mFreeCount;
+        }
+
+        synchronized Segment take() {
+                if(mFreeCount > 0) {
+                        Segment segment = mFree[--mFreeCount];
+                        mFree[mFreeCount] = null;
+                        return segment;
+                }
+                return null;
+        }
+
+        Segment takeOrAllocate() {
+                Segment segment = take();
+                if(segment == null) {
+                        segment = new Segment(mSegmentSize);
+                }
+                segment.reset();
+                return segment;
+        }
+
+        synchronized void recycle(Segment segment) {
+                if(mFreeCount < mFree.length) {
+                        mFree[mFreeCount++] = segment;
+                }
+        }
+
+        /**
+         * One direct buffer of a SegmentQueue. The producer owns data and
+         * writePos, the consumer owns view and readPos.
+         */
+        static final class Segment {
+                final ByteBuffer data;          // producer's writable buffer
+                final ByteBuffer view;          // consumer's read-only duplicate
+                int readPos;
+                volatile int writePos;          // publishes what the producer wrote
+                volatile Segment next;          // linked by the producer, never changes afterwards
+
+                Segment(int size) {
+                        data = ByteBuffer.allocateDirect(size);
+                        view = data.asReadOnlyBuffer();
+                }
+
+                void reset() {
+                        readPos = 0;
+                        writePos = 0;
+                        next = null;
+                }
+        }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import com.manicben.physicaloid.misc.SegmentPool.Segment;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer queue of pooled direct segments.
+ *
+ * The queue takes segments from the shared SegmentPool as bytes arrive and
+ * gives them back as soon as the consumer has drained them, so an idle port
+ * holds one segment however large its limit. A segment filled in place
+ * through acquire()/commit() is linked into the queue as it is; add()
+ * copies into the free space of the last segment.
+ *
+ * The limit is counted in segments, i.e. in memory, not in payload bytes.
+ * OVERFLOW_DROP_OLDEST behaves as OVERFLOW_DROP_NEWEST, since the producer
+ * cannot take segments back from the consumer.
+ */
+public class SegmentQueue extends ReceiveBuffer {
+
+        /**
+         * Segment size used by add() only drivers
+         */
+        public static final int DEFAULT_SEGMENT_SIZE = 2048;
+
+        private final SegmentPool mPool;
+        private final int mSegmentSize;
+        private final int mMaxSegments;
+        private final AtomicLong mAddedBytes = new AtomicLong();        // written by the producer only
+        private final AtomicLong mTakenBytes = new AtomicLong();        // written by the consumer only
+        private final AtomicLong mSegmentsReleased = new AtomicLong();  // written by the consumer only
+        private long mSegmentsLinked;   // producer only
+        private Segment mTail;          // producer only
+        private Segment mAcquired;      // producer only, not linked yet
+        private Segment mHead;          // consumer only
+
+        /**
+         * Segment queue
+         *
+         * @param segmentSize    bytes per segment, e.g. the endpoint's max packet size
+         * @param limit          the most memory the queue grows to, at least two segments
+         * @param overflowPolicy e.g. ReceiveBuffer.OVERFLOW_DROP_NEWEST
+         * @param blockTimeoutMs how long the producer waits for room with OVERFLOW_BLOCK
+         */
+        public SegmentQueue(int segmentSize, int limit, int overflowPolicy, long blockTimeoutMs) {
+                super(overflowPolicy, blockTimeoutMs);
+                if(segmentSize <= 0) {
+                        throw new IllegalArgumentException("segment size : " + segmentSize);
+                }
+                mPool = SegmentPool.forSize(segmentSize);
+                mSegmentSize = segmentSize;
+                mMaxSegments = Math.max(2, limit / segmentSize);
+                mTail = mPool.takeOrAllocate();
+                mHead = mTail;
+                mSegmentsLinked = 1;
+        }
+
+        /**
+         * Gets segment size
+         *
+         * @return bytes per segment
+         */
+        public int getSegmentSize() {
+                return mSegmentSize;
+        }
+
+        /**
+         * Gets segments currently taken from the pool
+         *
+         * @return segment count, the one being filled included
+         */
+        public int getSegmentCount() {
+                return (int) (mSegmentsLinked - mSegmentsReleased.get());
+        }
+
+        @Override
+        public int getRingBufferSize() {
+                return mMaxSegments * mSegmentSize;
+        }
+
+        @Override
+        public int getBufferdLength() {
+                long taken = mTakenBytes.get();
+                long added = mAddedBytes.get();
+                return (int) Math.min(added - taken, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int add(byte[] buf, int length, int off) {
+                if(buf == null) {
+                        return 0;
+                }
+                int remain = Math.min(length, buf.length - off);
+                if(remain <= 0) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                int added = 0;
+                while(remain > 0) {
+                        Segment tail = mTail;
+                        int pos = tail.writePos;
+                        if(pos == mSegmentSize) {
+                                if(!reserveSegment()) {
+                                        break;
+                                }
+                                tail = link(mPool.takeOrAllocate());
+                                pos = 0;
+                        }
+                        int len = Math.min(remain, mSegmentSize - pos);
+                        tail.data.clear();
+                        tail.data.position(pos);
+                        tail.data.put(buf, off, len);
+                        tail.writePos = pos + len; // publishes the copied bytes within the segment
+                        off += len;
+                        remain -= len;
+                        added += len;
+                }
+                mDroppedBytes.addAndGet(remain);
+                if(added > 0) {
+                        publish(added, now);
+                }
+                return added;
+        }
+
+        /**
+         * Gets a whole segment to receive into. It is linked into the queue
+         * without copying by commit(), or reused by the next acquire().
+         */
+        @Override
+        public ByteBuffer acquire(int maxLength) {
+                if(mAcquired == null) {
+                        mAcquired = mPool.takeOrAllocate();
+                }
+                ByteBuffer data = mAcquired.data;
+                data.clear();
+                data.limit(Math.max(0, Math.min(maxLength, mSegmentSize)));
+                return data;
+        }
+
+        @Override
+        public int commit(int offset, int length) {
+                Segment segment = mAcquired;
+                if(segment == null || length <= 0) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                length = Math.min(length, mSegmentSize - offset);
+                if(!reserveSegment()) {
+                        mDroppedBytes.addAndGet(length);
+                        return 0; // keeps the segment for the next acquire()
+                }
+                mAcquired = null;
+                segment.readPos = offset;
+                segment.writePos = offset + length;
+                link(segment);
+                publish(length, now);
+                return length;
+        }
+
+        private Segment link(Segment segment) {
+                mSegmentsLinked++;
+                mTail.next = segment; // the old tail is final from here on
+                mTail = segment;
+                return segment;
+        }
+
+        private void publish(int length, long now) {
+                recordArrival(mAddedBytes.get() + length, now);
+                mAddedBytes.set(mAddedBytes.get() + length); // full fence, pairs with the consumer's check in awaitData()
+                signalConsumer();
+                updateHighWaterMark(getBufferdLength());
+        }
+
+        // True when one more segment may be linked, after waiting with OVERFLOW_BLOCK.
+        private boolean reserveSegment() {
+                if(mSegmentsLinked - mSegmentsReleased.get() < mMaxSegments) {
+                        return true;
+                }
+                if(mOverflowPolicy != OVERFLOW_BLOCK) {
+                        return false;
+                }
+                long deadline = System.nanoTime() + mBlockTimeoutNanos;
+                beginProducerWait();
+                try {
+                        for(;;) {
+                                if(mSegmentsLinked - mSegmentsReleased.get() < mMaxSegments) {
+                                        return true;
+                                }
+                                if(!parkProducer(deadline)) {
+                                        return false;
+                                }
+                        }
+                } finally {
+                        endProducerWait();
+                }
+        }
+
+        // Gets the oldest segment with unread bytes, recycling drained ones on the way.
+        private Segment head() {
+                Segment head = mHead;
+                for(;;) {
+                        Segment next = head.next; // read before writePos, which is final once next is set
+                        if(head.readPos < head.writePos) {
+                                return head;
+                        }
+                        if(next == null) {
+                                return null;
+                        }
+                        mHead = next;
+                        mPool.recycle(head);
+                        mSegmentsReleased.set(mSegmentsReleased.get() + 1); // full fence, pairs with reserveSegment()
+                        signalProducer();
+                        head = next;
+                }
+        }
+
+        @Override
+        protected long readPosition() {
+                return mTakenBytes.get();
+        }
+
+        private void taken(int length) {
+                long taken = mTakenBytes.get() + length;
+                mTakenBytes.lazySet(taken);
+                passArrivals(taken);
+        }
+
+        @Override
+        public int get(byte[] buf, int off, int length) {
+                if(buf == null) {
+                        return 0;
+                }
+                int getLen = Math.min(length, buf.length - off);
+                int got = 0;
+                Segment head;
+                while(got < getLen && (head = head()) != null) {
+                        int end = head.writePos;
+                        int len = Math.min(end - head.readPos, getLen - got);
+                        head.view.limit(end);
+                        head.view.position(head.readPos);
+                        head.view.get(buf, off + got, len);
+                        head.readPos += len;
+                        got += len;
+                }
+                if(got > 0) {
+                        taken(got);
+                }
+                return got;
+        }
+
+        @Override
+        public ByteBuffer peekContiguous() {
+                Segment head = head();
+                if(head == null) {
+                        return null;
+                }
+                head.view.limit(head.writePos);
+                head.view.position(head.readPos);
+                return head.view;
+        }
+
+        @Override
+        public boolean release(int length) {
+                mHead.readPos += length;
+                taken(length);
+                return true;
+        }
+
+        /**
+         * Visits the unread part of each segment, oldest first.
+         */
+        @Override
+        public int forEachSegment(SegmentVisitor visitor) {
+                int visited = 0;
+                Segment segment = head();
+                while(segment != null) {
+                        Segment next = segment.next;
+                        int end = segment.writePos;
+                        if(segment.readPos < end) {
+                                segment.view.limit(end);
+                                segment.view.position(segment.readPos);
+                                visited += end - segment.readPos;
+                                if(!visitor.onSegment(segment.view)) {
+                                        break;
+                                }
+                        }
+                        segment = next;
+                }
+                return visited;
+        }
+
+        /**
+         * Clears buffer. Consumer thread only, or while the producer is stopped.
+         */
+        @Override
+        public void clear() {
+                ByteBuffer view;
+                while((view = peekContiguous()) != null) {
+                        release(view.remaining());
+                }
+        }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer read buffer that keeps up to its heap
+ * size in a RingBuffer and spills the rest into a memory-mapped file.
+ *
+ * Once a chunk does not fit in the heap ring, every following chunk goes to
+ * the file until the consumer has drained it, so bytes are always read back
+ * in arrival order. Disk usage is bounded by the spill limit; what does not
+ * fit there either is dropped, or waited for with OVERFLOW_BLOCK. close()
+ * deletes the file once the device is done with the buffer.
+ */
+public class SpillBuffer extends ReceiveBuffer {
+
+        private static final long NOT_SPILLING = Long.MAX_VALUE;
+
+        private final RingBuffer mMemory;
+        private final MappedRing mSpill;
+        private final File mFile;
+        private volatile long mSpillStart = NOT_SPILLING; // stream position of the first spilled byte
+        private long mProducerPos;      // stream position of the next added byte, producer only
+        private long mConsumerPos;      // stream position of the next read byte, consumer only
+        private ByteBuffer mAcquired;
+        private ReceiveBuffer mPeeked;  // which part peekContiguous() returned
+
+        /**
+         * Spill buffer
+         *
+         * @param memorySize     heap part, rounded up to a power of two
+         * @param spillFile      file to map, created or truncated
+         * @param spillLimit     most bytes on disk, the file is that rounded down to a power of two
+         * @param overflowPolicy e.g. ReceiveBuffer.OVERFLOW_DROP_NEWEST, DROP_OLDEST behaves as DROP_NEWEST
+         * @param blockTimeoutMs how long the producer waits for room in the file with OVERFLOW_BLOCK
+         *
+         * @throws IOException the file could not be mapped
+         * @throws IllegalArgumentException spillLimit is not positive
+         */
+        public SpillBuffer(int memorySize, File spillFile, int spillLimit, int overflowPolicy, long blockTimeoutMs) throws IOException {
+                super(overflowPolicy, blockTimeoutMs);
+                if(spillLimit <= 0) {
+                        throw new IllegalArgumentException("spill limit : " + spillLimit);
+                }
+                mMemory = new RingBuffer(memorySize);
+                mFile = spillFile;
+                // rounded down: up would nearly double the disk used, and pass 2^30
+                mSpill = new MappedRing(spillFile, Integer.highestOneBit(spillLimit));
+        }
+
+        /**
+         * Gets the mapped file
+         *
+         * @return spill file
+         */
+        public File getSpillFile() {
+                return mFile;
+        }
+
+        /**
+         * Gets bytes currently spilled to the file
+         *
+         * @return spilled length
+         */
+        public int getSpilledLength() {
+                return mSpill.buffered();
+        }
+
+        /**
+         * Deletes the spill file. Call once the producer has stopped; what is
+         * still buffered stays readable, the mapping lives on until the
+         * buffer is garbage collected.
+         */
+        @Override
+        public void close() {
+                if(mFile.exists() && !mFile.delete()) {
+                        mFile.deleteOnExit();
+                }
+        }
+
+        @Override
+        public int getRingBufferSize() {
+                return mMemory.getRingBufferSize() + mSpill.mSize;
+        }
+
+        @Override
+        public int getBufferdLength() {
+                return mMemory.getBufferdLength() + mSpill.buffered();
+        }
+
+        @Override
+        public int add(byte[] buf, int length, int off) {
+                if(buf == null) {
+                        return 0;
+                }
+                int addLen = Math.min(length, buf.length - off);
+                if(addLen <= 0) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                int added;
+                if(toMemory(addLen)) {
+                        added = mMemory.add(buf, addLen, off);
+                } else {
+                        int room = spillRoom(addLen);
+                        added = mSpill.put(buf, off, room);
+                }
+                return published(addLen, added, now);
+        }
+
+        /**
+         * Gets the heap ring's direct staging buffer. commit() copies it to
+         * the heap ring or to the file.
+         */
+        @Override
+        public ByteBuffer acquire(int maxLength) {
+                mAcquired = mMemory.acquire(maxLength);
+                return mAcquired;
+        }
+
+        @Override
+        public int commit(int offset, int length) {
+                if(length <= 0 || mAcquired == null) {
+                        return 0;
+                }
+                long now = arrivalTime();
+                int added;
+                if(toMemory(length)) {
+                        added = mMemory.commit(offset, length);
+                } else {
+                        int room = spillRoom(length);
+                        mAcquired.limit(offset + room);
+                        mAcquired.position(offset);
+                        added = mSpill.put(mAcquired);
+                }
+                return published(length, added, now);
+        }
+
+        // Decides where the next chunk goes, leaving or entering the spilling state.
+        private boolean toMemory(int length) {
+                if(mSpillStart != NOT_SPILLING) {
+                        if(mSpill.buffered() > 0) {
+                                return false;
+                        }
+                        mSpillStart = NOT_SPILLING; // the consumer caught up with the file
+                }
+                if(mMemory.getRingBufferSize() - mMemory.getBufferdLength() >= length) {
+                        return true;
+                }
+                mSpillStart = mProducerPos; // set before the first spilled byte is visible
+                return false;
+        }
+
+        private int spillRoom(int length) {
+                int free = mSpill.free();
+                if(free < length && mOverflowPolicy == OVERFLOW_BLOCK) {
+                        long deadline = System.nanoTime() + mBlockTimeoutNanos;
+                        beginProducerWait();
+                        try {
+                                while((free = mSpill.free()) < length && parkProducer(deadline)) {
+                                        // woken by the consumer reading from the file
+                                }
+                        } finally {
+                                endProducerWait();
+                        }
+                }
+                return Math.min(free, length);
+        }
+
+        private int published(int length, int added, long now) {
+                mDroppedBytes.addAndGet(length - added);
+                if(added > 0) {
+                        mProducerPos += added;
+                        recordArrival(mProducerPos, now);
+                        signalConsumer();
+                        updateHighWaterMark(getBufferdLength());
+                }
+                return added;
+        }
+
+        @Override
+        protected long readPosition() {
+                return mConsumerPos;
+        }
+
+        // The part the consumer reads next.
+        private ReceiveBuffer source() {
+                return (mConsumerPos >= mSpillStart) ? mSpill : mMemory;
+        }
+
+        @Override
+        public int get(byte[] buf, int off, int length) {
+                if(buf == null) {
+                        return 0;
+                }
+                int getLen = Math.min(length, buf.length - off);
+                int got = 0;
+                while(got < getLen) {
+                        ReceiveBuffer source = source();
+                        int len = source.get(buf, off + got, getLen - got);
+                        if(len <= 0) {
+                                break;
+                        }
+                        got += len;
+                        mConsumerPos += len;
+                        if(source == mSpill) {
+                                signalProducer();
+                        }
+                }
+                passArrivals(mConsumerPos);
+                return got;
+        }
+
+        @Override
+        public ByteBuffer peekContiguous() {
+                mPeeked = source();
+                return mPeeked.peekContiguous();
+        }
+
+        @Override
+        public boolean release(int length) {
+                if(mPeeked == null || !mPeeked.release(length)) {
+                        return false;
+                }
+                mConsumerPos += length;
+                if(mPeeked == mSpill) {
+                        signalProducer();
+                }
+                passArrivals(mConsumerPos);
+                return true;
+        }
+
+        @Override
+        public int forEachSegment(final SegmentVisitor visitor) {
+                if(source() == mSpill) {
+                        return mSpill.forEachSegment(visitor);
+                }
+                final boolean[] stopped = {false};
+                int visited = mMemory.forEachSegment(new SegmentVisitor() {
+                        @Override
+                        public boolean onSegment(ByteBuffer segment) {
+                                stopped[0] = !visitor.onSegment(segment);
+                                return !stopped[0];
+                        }
+                });
+                if(!stopped[0] && mConsumerPos + visited >= mSpillStart) {
+                        visited += mSpill.forEachSegment(visitor);
+                }
+                return visited;
+        }
+
+        @Override
+        public void clear() {
+                ByteBuffer view;
+                while((view = peekContiguous()) != null) {
+                        release(view.remaining());
+                }
+        }
+
+        /**
+         * Lock-free SPSC byte ring over a mapped file. The producer writes
+         * through one duplicate, the consumer reads through another.
+         */
+        private static final class MappedRing extends ReceiveBuffer {
+                final int mSize;
+                final int mMask;
+                final ByteBuffer mWriter;
+                final ByteBuffer mReader;
+                final ByteBuffer mWrapReader;
+                final AtomicLong mHead = new AtomicLong();
+                final AtomicLong mTail = new AtomicLong();
+
+                MappedRing(File file, int size) throws IOException {
+                        super(OVERFLOW_DROP_NEWEST, 0);
+                        mSize = size;
+                        mMask = size - 1;
+                        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                        try {
+                                raf.setLength(size);
+                                MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                                mWriter = mapped;
+                                mReader = mapped.asReadOnlyBuffer();
+                                mWrapReader = mapped.asReadOnlyBuffer();
+                        } finally {
+                                raf.close(); // the mapping stays valid
+                        }
+                }
+
+                int buffered() {
+                        long tail = mTail.get();
+                        return (int) (mHead.get() - tail);
+                }
+
+                int free() {
+                        return mSize - buffered();
+                }
+
+                int put(byte[] buf, int off, int length) {
+                        long head = mHead.get();
+                        int pos = (int) head & mMask;
+                        int copyLen = Math.min(length, mSize - pos);
+                        mWriter.clear();
+                        mWriter.position(pos);
+                        mWriter.put(buf, off, copyLen);
+                        if(copyLen < length) {
+                                mWriter.position(0);
+                                mWriter.put(buf, off + copyLen, length - copyLen);
+                        }
+                        mHead.set(head + length);
+                        return length;
+                }
+
+                // Puts src between position and limit, which must fit.
+                int put(ByteBuffer src) {
+                        int length = src.remaining();
+                        long head = mHead.get();
+                        int pos = (int) head & mMask;
+                        int copyLen = Math.min(length, mSize - pos);
+                        int end = src.limit();
+                        mWriter.clear();
+                        mWriter.position(pos);
+                        src.limit(src.position() + copyLen);
+                        mWriter.put(src);
+                        src.limit(end);
+                        if(copyLen < length) {
+                                mWriter.position(0);
+                                mWriter.put(src);
+                        }
+                        mHead.set(head + length);
+                        return length;
+                }
+
+                @Override
+                public int getRingBufferSize() {
+                        return mSize;
+                }
+
+                @Override
+                public int getBufferdLength() {
+                        return buffered();
+                }
+
+                @Override
+                public int add(byte[] buf, int length, int off) {
+                        return put(buf, off, Math.min(length, free()));
+                }
+
+                @Override
+                public ByteBuffer acquire(int maxLength) {
+                        throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int commit(int offset, int length) {
+                        throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int get(byte[] buf, int off, int length) {
+                        long tail = mTail.get();
+                        int len = Math.min(length, (int) (mHead.get() - tail));
+                        if(len <= 0) {
+                                return 0;
+                        }
+                        int pos = (int) tail & mMask;
+                        int copyLen = Math.min(len, mSize - pos);
+                        mReader.clear();
+                        mReader.position(pos);
+                        mReader.get(buf, off, copyLen);
+                        if(copyLen < len) {
+                                mReader.position(0);
+                                mReader.get(buf, off + copyLen, len - copyLen);
+                        }
+                        mTail.set(tail + len); // full fence, pairs with the producer's check in spillRoom()
+                        return len;
+                }
+
+                @Override
+                public ByteBuffer peekContiguous() {
+                        long tail = mTail.get();
+                        int buffered = (int) (mHead.get() - tail);
+                        if(buffered <= 0) {
+                                return null;
+                        }
+                        int pos = (int) tail & mMask;
+                        mReader.clear();
+                        mReader.limit(pos + Math.min(buffered, mSize - pos));
+                        mReader.position(pos);
+                        return mReader;
+                }
+
+                @Override
+                public boolean release(int length) {
+                        mTail.set(mTail.get() + length);
+                        return true;
+                }
+
+                @Override
+                public int forEachSegment(SegmentVisitor visitor) {
+                        long tail = mTail.get();
+                        int buffered = (int) (mHead.get() - tail);
+                        ByteBuffer first = peekContiguous();
+                        if(first == null) {
+                                return 0;
+                        }
+                        int firstLen = first.remaining();
+                        if(!visitor.onSegment(first) || firstLen >= buffered) {
+                                return firstLen;
+                        }
+                        mWrapReader.clear();
+                        mWrapReader.limit(buffered - firstLen);
+                        visitor.onSegment(mWrapReader);
+                        return buffered;
+                }
+
+                @Override
+                public void clear() {
+                        mTail.set(mHead.get());
+                }
+        }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class CobsCodecTest extends FrameCodecTestBase {
+
+        @Override
+        protected FrameCodec newCodec() {
+                return new CobsCodec(MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected FrameCodec newBigCodec() {
+                return new CobsCodec(4 * MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected List<byte[]> payloads() {
+                return Arrays.asList(
+                        new byte[0],
+                        bytes(0),
+                        bytes(0, 0),
+                        bytes(0x11, 0x22, 0x00, 0x33),
+                        random(5, 253, 0),
+                        random(6, 254, 0),
+                        random(7, 255, 0),
+                        random(8, MAX_FRAME_SIZE, -1));
+        }
+
+        @Test
+        public void encodesTheWikipediaExamples() {
+                FrameCodec codec = newCodec();
+                assertArrayEquals(bytes(0x01, 0x01, 0x00), encode(codec, bytes(0x00)));
+                assertArrayEquals(bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x00), encode(codec, bytes(0x11, 0x22, 0x00, 0x33)));
+                assertArrayEquals(bytes(0x02, 0x11, 0x01, 0x01, 0x01, 0x00), encode(codec, bytes(0x11, 0x00, 0x00, 0x00)));
+        }
+
+        @Test
+        public void frameCutShortIsDropped() {
+                FrameCodec codec = newCodec();
+                List<byte[]> frames = decode(codec, bytes(0x05, 0x11, 0x22, 0x00, 0x02, 0x33, 0x00), 1);
+                assertEquals(1, frames.size());
+                assertArrayEquals(bytes(0x33), frames.get(0));
+                assertEquals(1, codec.getDroppedFrames());
+        }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trips every codec has to pass: payloads are encoded back to back and
+ * decoded again in chunks of different sizes, so frames are split anywhere.
+ */
+public abstract class FrameCodecTestBase {
+
+        protected static final int MAX_FRAME_SIZE = 600;
+
+        private static final int[] CHUNK_SIZES = {1, 2, 3, 7, 64, Integer.MAX_VALUE};
+
+        protected abstract FrameCodec newCodec();
+
+        /**
+         * Gets payloads the codec can carry, e.g. without a line end for LineCodec
+         */
+        protected abstract List<byte[]> payloads();
+
+        protected static byte[] bytes(int... values) {
+                byte[] b = new byte[values.length];
+                for(int i = 0; i < values.length; i++) {
+                        b[i] = (byte) values[i];
+                }
+                return b;
+        }
+
+        protected static byte[] random(long seed, int length, int excluded) {
+                Random random = new Random(seed);
+                byte[] b = new byte[length];
+                for(int i = 0; i < length; i++) {
+                        do {
+                                b[i] = (byte) random.nextInt(256);
+                        } while(excluded >= 0 && b[i] == (byte) excluded);
+                }
+                return b;
+        }
+
+        protected static byte[] encode(FrameCodec codec, byte[] payload) {
+                byte[] dst = new byte[codec.maxEncodedLength(payload.length)];
+                int len = codec.encode(payload, 0, payload.length, dst, 0);
+                assertTrue("cannot encode " + payload.length + " bytes", len >= 0);
+                assertTrue(len <= dst.length);
+                return Arrays.copyOf(dst, len);
+        }
+
+        /**
+         * Decodes input in chunks of chunkSize, collecting a copy of each frame
+         */
+        protected static List<byte[]> decode(FrameCodec codec, byte[] input, int chunkSize) {
+                final List<byte[]> frames = new ArrayList<byte[]>();
+                codec.setFrameListener(new FrameListener() {
+                        @Override
+                        public void onFrame(Frame frame) {
+                                frames.add(Arrays.copyOf(frame.array(), frame.length()));
+                                frame.release();
+                        }
+                });
+                for(int off = 0; off < input.length; off += chunkSize) {
+                        int len = (int) Math.min((long) chunkSize, input.length - off);
+                        ByteBuffer in = ByteBuffer.wrap(input, off, len);
+                        codec.decode(in);
+                        assertEquals("decode() must consume everything", 0, in.remaining());
+                }
+                return frames;
+        }
+
+        @Test
+        public void roundTripInAnyChunking() {
+                List<byte[]> payloads = payloads();
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                FrameCodec encoder = newCodec();
+                for(byte[] payload : payloads) {
+                        byte[] encoded = encode(encoder, payload);
+                        stream.write(encoded, 0, encoded.length);
+                }
+                byte[] input = stream.toByteArray();
+                for(int chunkSize : CHUNK_SIZES) {
+                        FrameCodec codec = newCodec();
+                        List<byte[]> frames = decode(codec, input, chunkSize);
+                        assertEquals("chunk " + chunkSize, payloads.size(), frames.size());
+                        for(int i = 0; i < frames.size(); i++) {
+                                assertArrayEquals("chunk " + chunkSize + " frame " + i, payloads.get(i), frames.get(i));
+                        }
+                        assertEquals(0, codec.getDroppedFrames());
+                }
+        }
+
+        @Test
+        public void tooLongFrameIsDroppedAndTheNextOneStillDecodes() {
+                FrameCodec codec = newCodec();
+                FrameCodec big = newBigCodec();
+                byte[] tooLong = random(1, MAX_FRAME_SIZE + 1, excludedByte());
+                byte[] next = random(2, 10, excludedByte());
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                byte[] encoded = encode(big, tooLong);
+                stream.write(encoded, 0, encoded.length);
+                encoded = encode(codec, next);
+                stream.write(encoded, 0, encoded.length);
+                List<byte[]> frames = decode(codec, stream.toByteArray(), 5);
+                assertEquals(1, frames.size());
+                assertArrayEquals(next, frames.get(0));
+                assertEquals(1, codec.getDroppedFrames());
+        }
+
+        /**
+         * Gets a codec of the same framing that encodes payloads over MAX_FRAME_SIZE
+         */
+        protected abstract FrameCodec newBigCodec();
+
+        /**
+         * Gets the byte random payloads must not contain, -1 : none
+         */
+        protected int excludedByte() {
+                return -1;
+        }
+}
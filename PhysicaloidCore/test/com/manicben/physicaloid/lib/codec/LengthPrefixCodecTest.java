@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class LengthPrefixCodecTest extends FrameCodecTestBase {
+
+        @Override
+        protected FrameCodec newCodec() {
+                return new LengthPrefixCodec(2, ByteOrder.BIG_ENDIAN, MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected FrameCodec newBigCodec() {
+                return new LengthPrefixCodec(2, ByteOrder.BIG_ENDIAN, 4 * MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected List<byte[]> payloads() {
+                return Arrays.asList(
+                        new byte[0],
+                        bytes(0),
+                        bytes(1, 2, 3),
+                        random(9, 256, -1),
+                        random(10, MAX_FRAME_SIZE, -1));
+        }
+
+        @Test
+        public void headerSizesAndByteOrders() {
+                byte[] payload = random(11, 300, -1);
+                for(int headerSize : new int[] {2, 4}) {
+                        for(ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                                FrameCodec codec = new LengthPrefixCodec(headerSize, order, MAX_FRAME_SIZE);
+                                byte[] encoded = encode(codec, payload);
+                                assertEquals(headerSize + 300, encoded.length);
+                                int first = (order == ByteOrder.BIG_ENDIAN) ? headerSize - 2 : 0;
+                                int high = (order == ByteOrder.BIG_ENDIAN) ? first : first + 1;
+                                int low = (order == ByteOrder.BIG_ENDIAN) ? first + 1 : first;
+                                assertEquals(1, encoded[high]);
+                                assertEquals(44, encoded[low]);
+                                List<byte[]> frames = decode(new LengthPrefixCodec(headerSize, order, MAX_FRAME_SIZE), encoded, 3);
+                                assertEquals(1, frames.size());
+                                assertArrayEquals(payload, frames.get(0));
+                        }
+                }
+        }
+
+        @Test
+        public void payloadTooLongForTheHeaderIsRefused() {
+                FrameCodec codec = new LengthPrefixCodec(1, ByteOrder.BIG_ENDIAN, MAX_FRAME_SIZE);
+                assertEquals(-1, codec.encode(new byte[256], 0, 256, new byte[codec.maxEncodedLength(256)], 0));
+        }
+}
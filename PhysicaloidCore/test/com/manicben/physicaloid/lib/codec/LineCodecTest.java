@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class LineCodecTest extends FrameCodecTestBase {
+
+        @Override
+        protected FrameCodec newCodec() {
+                return new LineCodec(MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected FrameCodec newBigCodec() {
+                return new LineCodec(4 * MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected int excludedByte() {
+                return '\n';
+        }
+
+        @Override
+        protected List<byte[]> payloads() {
+                return Arrays.asList(
+                        "OK".getBytes(StandardCharsets.US_ASCII),
+                        new byte[0],
+                        "a\rb".getBytes(StandardCharsets.US_ASCII),
+                        random(3, MAX_FRAME_SIZE, '\n'),
+                        "cr\rinside".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Test
+        public void crLfEndsALine() {
+                List<byte[]> frames = decode(newCodec(), "one\r\ntwo\n\r\n".getBytes(StandardCharsets.US_ASCII), 1);
+                assertEquals(3, frames.size());
+                assertArrayEquals("one".getBytes(StandardCharsets.US_ASCII), frames.get(0));
+                assertArrayEquals("two".getBytes(StandardCharsets.US_ASCII), frames.get(1));
+                assertEquals(0, frames.get(2).length);
+        }
+}
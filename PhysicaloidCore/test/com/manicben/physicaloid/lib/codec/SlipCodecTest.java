@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class SlipCodecTest extends FrameCodecTestBase {
+
+        @Override
+        protected FrameCodec newCodec() {
+                return new SlipCodec(MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected FrameCodec newBigCodec() {
+                return new SlipCodec(4 * MAX_FRAME_SIZE);
+        }
+
+        @Override
+        protected List<byte[]> payloads() {
+                // SLIP has no empty frames, back to back END bytes are skipped
+                return Arrays.asList(
+                        bytes(1, 2, 3),
+                        bytes(0xC0),
+                        bytes(0xDB),
+                        bytes(0xDB, 0xDC, 0xC0, 0xDD, 0xDB),
+                        random(4, MAX_FRAME_SIZE, -1));
+        }
+
+        @Test
+        public void specialBytesAreEscaped() {
+                FrameCodec codec = newCodec();
+                assertArrayEquals(bytes(0xC0, 0xDB, 0xDC, 0xDB, 0xDD, 0x01, 0xC0), encode(codec, bytes(0xC0, 0xDB, 0x01)));
+        }
+
+        @Test
+        public void escapedEndIsDropped() {
+                FrameCodec codec = newCodec();
+                List<byte[]> frames = decode(codec, bytes(0xC0, 0x01, 0xDB, 0xC0, 0x02, 0xC0), 1);
+                assertEquals(1, frames.size());
+                assertArrayEquals(bytes(0x02), frames.get(0));
+                assertEquals(1, codec.getDroppedFrames());
+        }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class AhoCorasickTest {
+
+        // scans text from state, giving "index@end" for every match
+        private static List<String> scan(AhoCorasick automaton, String text) {
+                List<String> matches = new ArrayList<String>();
+                int state = AhoCorasick.START;
+                byte[] input = text.getBytes(StandardCharsets.US_ASCII);
+                for(int i = 0; i < input.length; i++) {
+                        state = automaton.next(state, input[i]);
+                        int match = automaton.match(state);
+                        if(match >= 0) {
+                                matches.add(match + "@" + (i + 1));
+                        }
+                }
+                return matches;
+        }
+
+        @Test
+        public void findsOverlappingPatterns() {
+                AhoCorasick automaton = AhoCorasick.of(StandardCharsets.US_ASCII, "he", "she", "his", "hers");
+                assertEquals(4, automaton.size());
+                // the longest pattern ending at a position is reported
+                assertEquals("[1@4, 3@6]", scan(automaton, "ushers").toString());
+                assertEquals("[0@2, 2@5]", scan(automaton, "hehis").toString());
+        }
+
+        @Test
+        public void matchesSpanChunks() {
+                AhoCorasick automaton = AhoCorasick.of(StandardCharsets.US_ASCII, "OK\r\n", "ERROR\r\n");
+                int state = AhoCorasick.START;
+                for(byte b : "noise ER".getBytes(StandardCharsets.US_ASCII)) {
+                        state = automaton.next(state, b);
+                }
+                assertEquals(-1, automaton.match(state));
+                assertEquals(2, automaton.depth(state));
+                for(byte b : "ROR\r\n".getBytes(StandardCharsets.US_ASCII)) {
+                        state = automaton.next(state, b);
+                }
+                assertEquals(1, automaton.match(state));
+        }
+
+        @Test
+        public void depthNeverExceedsTheLongestPattern() {
+                AhoCorasick automaton = AhoCorasick.of(StandardCharsets.US_ASCII, "abc", "bcd");
+                int state = AhoCorasick.START;
+                for(byte b : "aaaaabcabcdzz".getBytes(StandardCharsets.US_ASCII)) {
+                        state = automaton.next(state, b);
+                        assertEquals(true, automaton.depth(state) <= 3);
+                }
+                assertEquals(0, automaton.depth(state));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void emptyPatternIsRefused() {
+                new AhoCorasick(new byte[0]);
+        }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import static com.manicben.physicaloid.misc.BufferChecks.assertSequence;
+import static com.manicben.physicaloid.misc.BufferChecks.sequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class BroadcastRingTest {
+
+        @Test
+        public void everySubscriberSeesEveryByte() {
+                BroadcastRing ring = new BroadcastRing(16);
+                BroadcastRing.Subscriber a = ring.subscribe(BroadcastRing.SLOW_SUBSCRIBER_SKIP);
+                BroadcastRing.Subscriber b = ring.subscribe(BroadcastRing.SLOW_SUBSCRIBER_SKIP);
+                assertEquals(3, ring.getSubscriberCount());
+                byte[] buf = new byte[16];
+                long stream = 0;
+                for(int i = 0; i < 20; i++) {
+                        ring.add(sequence(stream, 7), 7);
+                        assertEquals(7, a.get(buf, 0, 16));
+                        assertSequence(stream, buf, 7);
+                        assertEquals(7, b.get(buf, 0, 16));
+                        assertSequence(stream, buf, 7);
+                        assertEquals(7, ring.get(buf, 16));
+                        assertSequence(stream, buf, 7);
+                        stream += 7;
+                }
+        }
+
+        @Test
+        public void slowSubscriberSkipsAheadOthersKeepUp() {
+                BroadcastRing ring = new BroadcastRing(16);
+                BroadcastRing.Subscriber slow = ring.subscribe(BroadcastRing.SLOW_SUBSCRIBER_SKIP);
+                BroadcastRing.Subscriber fast = ring.subscribe(BroadcastRing.SLOW_SUBSCRIBER_SKIP);
+                byte[] buf = new byte[16];
+                for(int i = 0; i < 4; i++) {
+                        ring.add(sequence(i * 10, 10), 10);
+                        assertEquals(10, fast.get(buf, 0, 16));
+                        assertSequence(i * 10, buf, 10);
+                }
+                assertEquals(24, slow.getSkippedBytes());
+                assertEquals(0, fast.getSkippedBytes());
+                assertEquals(16, slow.getLag());
+                assertEquals(16, slow.get(buf, 0, 16));
+                assertSequence(24, buf, 16);
+                assertEquals(24, ring.getDroppedBytes()); // the primary skips as well
+        }
+
+        @Test
+        public void slowSubscriberIsDetached() {
+                BroadcastRing ring = new BroadcastRing(16);
+                BroadcastRing.Subscriber slow = ring.subscribe(BroadcastRing.SLOW_SUBSCRIBER_DETACH);
+                ring.add(sequence(0, 10), 10);
+                assertFalse(slow.isDetached());
+                ring.add(sequence(10, 10), 10);
+                assertTrue(slow.isDetached());
+                assertEquals(0, slow.get(new byte[16], 0, 16));
+                assertEquals(1, ring.getSubscriberCount());
+        }
+
+        @Test
+        public void closedSubscriberIsForgotten() {
+                BroadcastRing ring = new BroadcastRing(16);
+                BroadcastRing.Subscriber subscriber = ring.subscribe(BroadcastRing.SLOW_SUBSCRIBER_DETACH);
+                subscriber.close();
+                assertEquals(1, ring.getSubscriberCount());
+                ring.add(sequence(0, 20), 20);
+                assertEquals(0, subscriber.getLag());
+        }
+
+        @Test
+        public void concurrentSubscribersReadInOrder() throws InterruptedException {
+                // big enough that the readers never fall a whole ring behind
+                final BroadcastRing ring = new BroadcastRing(1024 * 1024);
+                final int total = 512 * 1024;
+                final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+                Thread[] readers = new Thread[3];
+                for(int r = 0; r < readers.length; r++) {
+                        final BroadcastRing.Subscriber subscriber = ring.subscribe(BroadcastRing.SLOW_SUBSCRIBER_SKIP);
+                        readers[r] = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                byte[] buf = new byte[100];
+                                                long received = 0;
+                                                while(received < total) {
+                                                        int len = subscriber.get(buf, 0, buf.length, 1000);
+                                                        if(len == 0) {
+                                                                throw new AssertionError("stalled after " + received);
+                                                        }
+                                                        assertSequence(received, buf, len);
+                                                        received += len;
+                                                }
+                                        } catch(Throwable t) {
+                                                failure.compareAndSet(null, t);
+                                        }
+                                }
+                        });
+                        readers[r].start();
+                }
+                for(long sent = 0; sent < total; sent += 64) {
+                        ring.add(sequence(sent, 64), 64);
+                }
+                for(Thread reader : readers) {
+                        reader.join(30 * 1000);
+                }
+                if(failure.get() != null) {
+                        throw new AssertionError(failure.get());
+                }
+        }
+}
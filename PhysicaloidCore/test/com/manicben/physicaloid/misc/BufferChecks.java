@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared checks for the ReceiveBuffer tests. Bytes are numbered by their
+ * position in the stream, so every byte read can be checked for order.
+ */
+final class BufferChecks {
+
+        private static final long JOIN_TIMEOUT_MS = 30 * 1000;
+        private static final long READ_WAIT_MS = 10;
+
+        private BufferChecks() {
+        }
+
+        /**
+         * Gets the stream bytes [start, start+length)
+         */
+        static byte[] sequence(long start, int length) {
+                byte[] buf = new byte[length];
+                for(int i = 0; i < length; i++) {
+                        buf[i] = (byte) (start + i);
+                }
+                return buf;
+        }
+
+        /**
+         * Checks buf[0, length) holds the stream bytes from start
+         */
+        static void assertSequence(long start, byte[] buf, int length) {
+                for(int i = 0; i < length; i++) {
+                        if(buf[i] != (byte) (start + i)) {
+                                fail("byte " + (start + i) + " : " + buf[i]);
+                        }
+                }
+        }
+
+        /**
+         * Adds a chunk, with acquire()/commit() when inPlace
+         *
+         * @return added length
+         */
+        static int put(ReceiveBuffer buffer, byte[] chunk, int off, int length, boolean inPlace) {
+                if(!inPlace) {
+                        return buffer.add(chunk, length, off);
+                }
+                int added = 0;
+                while(added < length) {
+                        ByteBuffer slot = buffer.acquire(length - added);
+                        int len = Math.min(slot.remaining(), length - added);
+                        if(len <= 0) {
+                                break;
+                        }
+                        slot.put(chunk, off + added, len);
+                        int committed = buffer.commit(0, len);
+                        added += committed;
+                        if(committed < len) {
+                                break;
+                        }
+                }
+                return added;
+        }
+
+        /**
+         * Streams total bytes in packets from a producer thread while the
+         * calling thread reads them back, checking nothing is lost, repeated
+         * or out of order. The buffer must not drop, e.g. OVERFLOW_BLOCK.
+         */
+        static void pumpConcurrently(final ReceiveBuffer buffer, final long total, final int packet, final boolean inPlace) throws InterruptedException {
+                final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+                Thread producer = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                try {
+                                        long sent = 0;
+                                        while(sent < total) {
+                                                int len = (int) Math.min(packet, total - sent);
+                                                byte[] chunk = sequence(sent, len);
+                                                int off = 0;
+                                                while(off < len) {
+                                                        off += put(buffer, chunk, off, len - off, inPlace);
+                                                }
+                                                sent += len;
+                                        }
+                                } catch(Throwable t) {
+                                        failure.set(t);
+                                }
+                        }
+                }, "producer");
+                producer.start();
+
+                byte[] buf = new byte[packet * 3 + 1];
+                long received = 0;
+                long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MS;
+                while(received < total && failure.get() == null) {
+                        if(System.currentTimeMillis() > deadline) {
+                                fail("stalled after " + received + " of " + total + " bytes");
+                        }
+                        int len = buffer.get(buf, 0, buf.length, READ_WAIT_MS);
+                        assertSequence(received, buf, len);
+                        received += len;
+                }
+                producer.join(JOIN_TIMEOUT_MS);
+                if(failure.get() != null) {
+                        throw new AssertionError(failure.get());
+                }
+                assertEquals(total, received);
+                assertEquals(0, buffer.getBufferdLength());
+                assertEquals(0, buffer.getDroppedBytes());
+        }
+}
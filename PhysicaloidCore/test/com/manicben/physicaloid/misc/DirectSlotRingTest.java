@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import static com.manicben.physicaloid.misc.BufferChecks.assertSequence;
+import static com.manicben.physicaloid.misc.BufferChecks.sequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class DirectSlotRingTest {
+
+        // commits one packet of len stream bytes behind header status bytes
+        private static int commitPacket(DirectSlotRing ring, long stream, int header, int len) {
+                ByteBuffer slot = ring.acquire(header + len);
+                for(int i = 0; i < header; i++) {
+                        slot.put((byte) 0xEE);
+                }
+                slot.put(sequence(stream, len));
+                return ring.commit(header, len);
+        }
+
+        @Test
+        public void slotsWrapAroundInOrder() {
+                DirectSlotRing ring = new DirectSlotRing(4 * 8, 8, ReceiveBuffer.OVERFLOW_DROP_NEWEST, 0);
+                byte[] buf = new byte[32];
+                long stream = 0;
+                for(int i = 0; i < 50; i++) {
+                        assertEquals(5, commitPacket(ring, stream, 2, 5));
+                        assertEquals(3, commitPacket(ring, stream + 5, 2, 3));
+                        assertEquals(8, ring.getBufferdLength());
+                        assertEquals(8, ring.get(buf, 32));
+                        assertSequence(stream, buf, 8);
+                        stream += 8;
+                }
+        }
+
+        @Test
+        public void partialReadsStayInTheirSlot() {
+                DirectSlotRing ring = new DirectSlotRing(4 * 8, 8, ReceiveBuffer.OVERFLOW_DROP_NEWEST, 0);
+                commitPacket(ring, 0, 0, 8);
+                commitPacket(ring, 8, 0, 8);
+                byte[] buf = new byte[16];
+                assertEquals(3, ring.get(buf, 3));
+                assertSequence(0, buf, 3);
+                assertEquals(9, ring.peek(6));
+                assertEquals(10, ring.indexOf((byte) 13, 0));
+                assertEquals(13, ring.get(buf, 16));
+                assertSequence(3, buf, 13);
+        }
+
+        @Test
+        public void dropNewestReceivesIntoScratch() {
+                DirectSlotRing ring = new DirectSlotRing(2 * 8, 8, ReceiveBuffer.OVERFLOW_DROP_NEWEST, 0);
+                assertEquals(8, commitPacket(ring, 0, 0, 8));
+                assertEquals(8, commitPacket(ring, 8, 0, 8));
+                assertEquals(0, commitPacket(ring, 16, 0, 8));
+                assertEquals(8, ring.getDroppedBytes());
+                byte[] buf = new byte[16];
+                assertEquals(16, ring.get(buf, 16));
+                assertSequence(0, buf, 16);
+        }
+
+        @Test
+        public void dropOldestDiscardsWholeSlots() {
+                DirectSlotRing ring = new DirectSlotRing(2 * 8, 8, ReceiveBuffer.OVERFLOW_DROP_OLDEST, 0);
+                commitPacket(ring, 0, 0, 8);
+                commitPacket(ring, 8, 0, 8);
+                commitPacket(ring, 16, 0, 8);
+                assertEquals(8, ring.getDroppedBytes());
+                byte[] buf = new byte[16];
+                assertEquals(16, ring.get(buf, 16));
+                assertSequence(8, buf, 16);
+        }
+
+        @Test
+        public void blockDropsOnTimeout() {
+                DirectSlotRing ring = new DirectSlotRing(2 * 8, 8, ReceiveBuffer.OVERFLOW_BLOCK, 20);
+                commitPacket(ring, 0, 0, 8);
+                commitPacket(ring, 8, 0, 8);
+                long start = System.nanoTime();
+                assertEquals(0, commitPacket(ring, 16, 0, 8));
+                assertTrue(System.nanoTime() - start >= 15 * 1000 * 1000);
+                assertEquals(8, ring.getDroppedBytes());
+        }
+
+        @Test
+        public void concurrentProducerAndConsumer() throws InterruptedException {
+                BufferChecks.pumpConcurrently(new DirectSlotRing(16 * 64, 64, ReceiveBuffer.OVERFLOW_BLOCK, 10 * 1000), 4 * 1024 * 1024, 64, true);
+        }
+
+        @Test
+        public void concurrentProducerAndConsumerWithAdd() throws InterruptedException {
+                BufferChecks.pumpConcurrently(new DirectSlotRing(16 * 64, 64, ReceiveBuffer.OVERFLOW_BLOCK, 10 * 1000), 4 * 1024 * 1024, 100, false);
+        }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import static com.manicben.physicaloid.misc.BufferChecks.assertSequence;
+import static com.manicben.physicaloid.misc.BufferChecks.sequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class RingBufferTest {
+
+        @Test
+        public void sizeIsRoundedUpToPowerOfTwo() {
+                assertEquals(1024, new RingBuffer(1000).getRingBufferSize());
+                assertEquals(64, new RingBuffer(64).getRingBufferSize());
+        }
+
+        @Test
+        public void wrapsAroundTheEndInOrder() {
+                RingBuffer ring = new RingBuffer(16);
+                byte[] buf = new byte[16];
+                long stream = 0;
+                // 7 does not divide 16, so every lap straddles the end at a different place
+                for(int i = 0; i < 100; i++) {
+                        assertEquals(7, ring.add(sequence(stream, 7), 7));
+                        assertEquals(7, ring.getBufferdLength());
+                        assertEquals(7, ring.get(buf, 16));
+                        assertSequence(stream, buf, 7);
+                        stream += 7;
+                }
+                assertEquals(0, ring.getBufferdLength());
+        }
+
+        @Test
+        public void peekSkipAndIndexOfSeeAcrossTheEnd() {
+                RingBuffer ring = new RingBuffer(16);
+                byte[] buf = new byte[16];
+                ring.add(sequence(0, 12), 12);
+                ring.get(buf, 12);
+                ring.add(sequence(12, 10), 10);         // 4 bytes at the end, 6 at the start
+
+                assertEquals(12, ring.peek(0));
+                assertEquals(21, ring.peek(9));
+                assertEquals(-1, ring.peek(10));
+                assertEquals(5, ring.indexOf((byte) 17, 0));
+                assertEquals(-1, ring.indexOf((byte) 17, 6));
+                assertEquals(10, ring.peek(buf, 0, 16));
+                assertSequence(12, buf, 10);
+                assertEquals(10, ring.getBufferdLength());
+
+                assertEquals(6, ring.skip(6));
+                assertEquals(4, ring.get(buf, 16));
+                assertSequence(18, buf, 4);
+        }
+
+        @Test
+        public void forEachSegmentVisitsBothRegions() {
+                RingBuffer ring = new RingBuffer(16);
+                ring.add(sequence(0, 12), 12);
+                ring.skip(12);
+                ring.add(sequence(12, 10), 10);
+                final ByteBuffer seen = ByteBuffer.allocate(16);
+                final int[] segments = {0};
+                int visited = ring.forEachSegment(new ReceiveBuffer.SegmentVisitor() {
+                        @Override
+                        public boolean onSegment(ByteBuffer segment) {
+                                segments[0]++;
+                                seen.put(segment);
+                                return true;
+                        }
+                });
+                assertEquals(10, visited);
+                assertEquals(2, segments[0]);
+                assertSequence(12, seen.array(), 10);
+                assertEquals(10, ring.getBufferdLength());
+        }
+
+        @Test
+        public void dropNewestKeepsBufferedBytesAndCountsTheRest() {
+                RingBuffer ring = new RingBuffer(16, ReceiveBuffer.OVERFLOW_DROP_NEWEST, 0);
+                assertEquals(10, ring.add(sequence(0, 10), 10));
+                assertEquals(6, ring.add(sequence(10, 10), 10));
+                assertEquals(0, ring.add(sequence(20, 5), 5));
+                assertEquals(9, ring.getDroppedBytes());
+                assertEquals(16, ring.getHighWaterMark());
+                byte[] buf = new byte[16];
+                assertEquals(16, ring.get(buf, 16));
+                assertSequence(0, buf, 16);
+        }
+
+        @Test
+        public void dropOldestKeepsTheNewestBytes() {
+                RingBuffer ring = new RingBuffer(16, ReceiveBuffer.OVERFLOW_DROP_OLDEST, 0);
+                ring.add(sequence(0, 10), 10);
+                ring.add(sequence(10, 10), 10);
+                ring.add(sequence(20, 40), 40);         // longer than the ring, only its tail survives
+                assertEquals(44, ring.getDroppedBytes());
+                byte[] buf = new byte[16];
+                assertEquals(16, ring.get(buf, 16));
+                assertSequence(44, buf, 16);
+        }
+
+        @Test
+        public void blockDropsTheNewestOnTimeout() {
+                RingBuffer ring = new RingBuffer(16, ReceiveBuffer.OVERFLOW_BLOCK, 20);
+                ring.add(sequence(0, 16), 16);
+                long start = System.nanoTime();
+                assertEquals(0, ring.add(sequence(16, 4), 4));
+                assertTrue(System.nanoTime() - start >= 15 * 1000 * 1000);
+                assertEquals(4, ring.getDroppedBytes());
+        }
+
+        @Test
+        public void blockWaitsForTheConsumer() throws InterruptedException {
+                final RingBuffer ring = new RingBuffer(16, ReceiveBuffer.OVERFLOW_BLOCK, 10 * 1000);
+                ring.add(sequence(0, 16), 16);
+                Thread consumer = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                try {
+                                        Thread.sleep(20);
+                                } catch(InterruptedException e) {
+                                        return;
+                                }
+                                ring.skip(8);
+                        }
+                });
+                consumer.start();
+                assertEquals(8, ring.add(sequence(16, 8), 8));
+                consumer.join();
+                assertEquals(0, ring.getDroppedBytes());
+                byte[] buf = new byte[16];
+                assertEquals(16, ring.get(buf, 16));
+                assertSequence(8, buf, 16);
+        }
+
+        @Test
+        public void commitSkipsLeadingStatusBytes() {
+                RingBuffer ring = new RingBuffer(16);
+                ByteBuffer slot = ring.acquire(8);
+                slot.put(new byte[] {(byte) 0xEE, (byte) 0xEE});
+                slot.put(sequence(0, 6));
+                assertEquals(6, ring.commit(2, 6));
+                byte[] buf = new byte[8];
+                assertEquals(6, ring.get(buf, 8));
+                assertSequence(0, buf, 6);
+        }
+
+        @Test
+        public void plainReadsKeepArrivalTimesRecording() {
+                RingBuffer ring = new RingBuffer(64);
+                ring.setArrivalTimeCapacity(4);
+                byte[] buf = new byte[8];
+                long[] arrival = new long[2];
+                // far more chunks than the timeline holds, none read with arrival times
+                for(int i = 0; i < 20; i++) {
+                        ring.add(sequence(i * 4, 4), 4);
+                        assertEquals(4, ring.get(buf, 8));
+                }
+                ring.add(sequence(80, 4), 4);
+                assertEquals(4, ring.get(buf, 0, 8, arrival));
+                assertTrue(arrival[0] != -1);
+                assertEquals(arrival[0], arrival[1]);
+        }
+
+        @Test
+        public void getWithTimeoutReturnsZeroWhenNothingArrives() {
+                RingBuffer ring = new RingBuffer(16);
+                assertEquals(0, ring.get(new byte[4], 0, 4, 10));
+                assertFalse(ring.await(0));
+        }
+
+        @Test
+        public void concurrentProducerAndConsumer() throws InterruptedException {
+                BufferChecks.pumpConcurrently(new RingBuffer(256, ReceiveBuffer.OVERFLOW_BLOCK, 10 * 1000), 4 * 1024 * 1024, 61, false);
+        }
+
+        @Test
+        public void concurrentProducerAndConsumerInPlace() throws InterruptedException {
+                BufferChecks.pumpConcurrently(new RingBuffer(256, ReceiveBuffer.OVERFLOW_BLOCK, 10 * 1000), 4 * 1024 * 1024, 64, true);
+        }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import static com.manicben.physicaloid.misc.BufferChecks.assertSequence;
+import static com.manicben.physicaloid.misc.BufferChecks.sequence;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class SegmentQueueTest {
+
+        @Test
+        public void growsWhileBufferedAndShrinksWhenDrained() {
+                SegmentQueue queue = new SegmentQueue(16, 16 * 16, ReceiveBuffer.OVERFLOW_DROP_NEWEST, 0);
+                assertEquals(1, queue.getSegmentCount());
+                assertEquals(100, queue.add(sequence(0, 100), 100));
+                assertEquals(7, queue.getSegmentCount());
+                byte[] buf = new byte[128];
+                assertEquals(100, queue.get(buf, 128));
+                assertSequence(0, buf, 100);
+                assertEquals(1, queue.getSegmentCount());
+        }
+
+        @Test
+        public void committedSegmentsAreLinkedWithoutCopying() {
+                SegmentQueue queue = new SegmentQueue(16, 16 * 16, ReceiveBuffer.OVERFLOW_DROP_NEWEST, 0);
+                long stream = 0;
+                for(int i = 0; i < 4; i++) {
+                        ByteBuffer segment = queue.acquire(16);
+                        segment.put((byte) 0xEE);
+                        segment.put(sequence(stream, 10));
+                        assertEquals(10, queue.commit(1, 10));
+                        stream += 10;
+                }
+                assertEquals(11, queue.add(sequence(stream, 11), 11));
+                assertEquals(51, queue.getBufferdLength());
+                assertEquals(20, queue.peek(20));
+                assertEquals(45, queue.indexOf((byte) 45, 0));
+                byte[] buf = new byte[64];
+                assertEquals(51, queue.get(buf, 64));
+                assertSequence(0, buf, 51);
+        }
+
+        @Test
+        public void dropNewestAtTheLimit() {
+                SegmentQueue queue = new SegmentQueue(16, 2 * 16, ReceiveBuffer.OVERFLOW_DROP_NEWEST, 0);
+                assertEquals(32, queue.add(sequence(0, 40), 40));
+                assertEquals(8, queue.getDroppedBytes());
+                byte[] buf = new byte[64];
+                assertEquals(32, queue.get(buf, 64));
+                assertSequence(0, buf, 32);
+                // drained, so there is room again
+                assertEquals(16, queue.add(sequence(32, 16), 16));
+        }
+
+        @Test
+        public void concurrentProducerAndConsumer() throws InterruptedException {
+                BufferChecks.pumpConcurrently(new SegmentQueue(64, 16 * 64, ReceiveBuffer.OVERFLOW_BLOCK, 10 * 1000), 4 * 1024 * 1024, 64, true);
+        }
+
+        @Test
+        public void concurrentProducerAndConsumerWithAdd() throws InterruptedException {
+                BufferChecks.pumpConcurrently(new SegmentQueue(64, 16 * 64, ReceiveBuffer.OVERFLOW_BLOCK, 10 * 1000), 4 * 1024 * 1024, 77, false);
+        }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.misc;
+
+import static com.manicben.physicaloid.misc.BufferChecks.assertSequence;
+import static com.manicben.physicaloid.misc.BufferChecks.sequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillBufferTest {
+
+        @Rule
+        public TemporaryFolder mFolder = new TemporaryFolder();
+
+        private SpillBuffer newBuffer(int memorySize, int spillLimit, int overflowPolicy) throws IOException {
+                File file = new File(mFolder.getRoot(), "spill");
+                return new SpillBuffer(memorySize, file, spillLimit, overflowPolicy, 10 * 1000);
+        }
+
+        @Test
+        public void spillsWhatDoesNotFitAndReadsBackInOrder() throws IOException {
+                SpillBuffer buffer = newBuffer(16, 256, ReceiveBuffer.OVERFLOW_DROP_NEWEST);
+                long stream = 0;
+                for(int i = 0; i < 10; i++) {
+                        assertEquals(10, buffer.add(sequence(stream, 10), 10));
+                        stream += 10;
+                }
+                assertEquals(100, buffer.getBufferdLength());
+                assertEquals(90, buffer.getSpilledLength());
+                assertEquals(50, buffer.peek(50));
+                byte[] buf = new byte[128];
+                assertEquals(100, buffer.get(buf, 0, 128));
+                assertSequence(0, buf, 100);
+                assertEquals(0, buffer.getSpilledLength());
+
+                // caught up, back to the heap ring
+                assertEquals(10, buffer.add(sequence(stream, 10), 10));
+                assertEquals(0, buffer.getSpilledLength());
+        }
+
+        @Test
+        public void dropsWhatDoesNotFitInTheFile() throws IOException {
+                SpillBuffer buffer = newBuffer(16, 32, ReceiveBuffer.OVERFLOW_DROP_NEWEST);
+                buffer.add(sequence(0, 16), 16);
+                assertEquals(32, buffer.add(sequence(16, 40), 40));
+                assertEquals(8, buffer.getDroppedBytes());
+                byte[] buf = new byte[64];
+                assertEquals(48, buffer.get(buf, 0, 64));
+                assertSequence(0, buf, 48);
+        }
+
+        @Test
+        public void spillLimitIsRoundedDown() throws IOException {
+                SpillBuffer buffer = newBuffer(16, 1000, ReceiveBuffer.OVERFLOW_DROP_NEWEST);
+                assertEquals(16 + 512, buffer.getRingBufferSize());
+                assertEquals(512, buffer.getSpillFile().length());
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void rejectsNonPositiveSpillLimit() throws IOException {
+                newBuffer(16, 0, ReceiveBuffer.OVERFLOW_DROP_NEWEST);
+        }
+
+        @Test
+        public void closeDeletesTheFileAndKeepsWhatIsBuffered() throws IOException {
+                SpillBuffer buffer = newBuffer(16, 256, ReceiveBuffer.OVERFLOW_DROP_NEWEST);
+                buffer.add(sequence(0, 40), 40);
+                buffer.close();
+                assertFalse(buffer.getSpillFile().exists());
+                byte[] buf = new byte[64];
+                assertEquals(40, buffer.get(buf, 0, 64));
+                assertSequence(0, buf, 40);
+        }
+
+        @Test
+        public void concurrentProducerAndConsumer() throws IOException, InterruptedException {
+                BufferChecks.pumpConcurrently(newBuffer(256, 4096, ReceiveBuffer.OVERFLOW_BLOCK), 4 * 1024 * 1024, 64, false);
+        }
+
+        @Test
+        public void concurrentProducerAndConsumerInPlace() throws IOException, InterruptedException {
+                BufferChecks.pumpConcurrently(newBuffer(256, 4096, ReceiveBuffer.OVERFLOW_BLOCK), 4 * 1024 * 1024, 64, true);
+        }
+}
@@ -17,16 +17,37 @@ package com.manicben.physicaloid.lib;
 
 import android.content.Context;
 import android.util.Log;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.manicben.physicaloid.BuildConfig;
+import com.manicben.physicaloid.lib.codec.FrameCodec;
+import com.manicben.physicaloid.lib.codec.FrameListener;
+import com.manicben.physicaloid.lib.codec.FramePipeline;
 import com.manicben.physicaloid.lib.framework.AutoCommunicator;
+import com.manicben.physicaloid.lib.framework.ExpectMatch;
+import com.manicben.physicaloid.lib.framework.OpenOptions;
+import com.manicben.physicaloid.lib.framework.ReceivePublisher;
+import com.manicben.physicaloid.lib.framework.ResponseMatcher;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.lib.framework.SerialInputStream;
+import com.manicben.physicaloid.lib.framework.SerialOutputStream;
 import com.manicben.physicaloid.lib.framework.Uploader;
 import com.manicben.physicaloid.lib.programmer.avr.UploadErrors;
+import com.manicben.physicaloid.lib.usb.driver.uart.DataListener;
 import com.manicben.physicaloid.lib.usb.driver.uart.ReadListener;
 import com.manicben.physicaloid.lib.usb.driver.uart.UartConfig;
+import com.manicben.physicaloid.log.AndroidLogSink;
+import com.manicben.physicaloid.misc.AhoCorasick;
+import com.manicben.physicaloid.misc.BroadcastRing;
+import com.manicben.physicaloid.misc.ReceiveBuffer;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
 
 public class Physicaloid {
 
@@ -62,10 +83,15 @@ public class Physicaloid {
         private Uploader mUploader;
         private Thread mUploadThread;
         private UploadCallBack mCallBack;
+        private OpenOptions mOpenOptions = new OpenOptions();
         private InputStream mFileStream;
         private static final Object LOCK = new Object();
+        private long mCloseStartedAt;                   // guarded by LOCK, 0 : not closed since the last open
+        private volatile long mCloseLatencyNanos;
+        private volatile long mReopenLatencyNanos;
         protected static final Object LOCK_WRITE = new Object();
         protected static final Object LOCK_READ = new Object();
+        private final Object mReadLock = new Object();  // one consumer of the read buffer at a time
         private String mNetdest = null;
         private String mBlueName = null;
         private int mDport = 9001;
@@ -74,6 +100,10 @@ public class Physicaloid {
         private boolean USE_WIFI = false;
         private boolean USE_BLUETOOTH = false;
 
+        static {
+                AndroidLogSink.install();
+        }
+
         /**
          * Default, USB only
          *
@@ -184,15 +214,33 @@ public class Physicaloid {
          * @throws RuntimeException
          */
         public boolean open(UartConfig uart) throws RuntimeException {
+                return open(uart, mOpenOptions);
+        }
+
+        /**
+         * Opens a device and communicate USB UART
+         *
+         * @param uart UART configuration
+         * @param options read buffer size, overflow policy etc.
+         * @return true : successful , false : fail
+         * @throws RuntimeException
+         */
+        public boolean open(UartConfig uart, OpenOptions options) throws RuntimeException {
                 synchronized(LOCK) {
+                        mOpenOptions = (options == null) ? new OpenOptions() : options;
                         if(mSerial == null) {
                                 mSerial = new AutoCommunicator(USE_USB, USE_WIFI, USE_BLUETOOTH, mDport, mCport, mNetdest, mBlueName).getSerialCommunicator(mContext);
                                 if(mSerial == null) {
                                         return false;
                                 }
                         }
+                        mSerial.setOpenOptions(mOpenOptions);
                         if(mSerial.open()) {
                                 mSerial.setUartConfig(uart);
+                                if(mCloseStartedAt != 0) {
+                                        mReopenLatencyNanos = System.nanoTime() - mCloseStartedAt;
+                                        mCloseStartedAt = 0;
+                                }
                                 return true;
                         } else {
                                 return false;
@@ -211,8 +259,11 @@ public class Physicaloid {
                         if(mSerial == null) {
                                 return true;
                         }
+                        long start = System.nanoTime();
                         if(mSerial.close()) {
                                 mSerial = null;
+                                mCloseLatencyNanos = System.nanoTime() - start;
+                                mCloseStartedAt = start;
                                 return true;
                         } else {
                                 return false;
@@ -234,6 +285,16 @@ public class Physicaloid {
                 return read(buf, buf.length);
         }
 
+        // Reads take the device under LOCK_READ but consume under mReadLock:
+        // LOCK_READ is shared by every instance and the listener calls, and a
+        // timed wait inside it held all of them up, reads from
+        // ReadListener.onRead() too.
+        private SerialCommunicator getReadSerial() {
+                synchronized(LOCK_READ) {
+                        return mSerial;
+                }
+        }
+
         /**
          * Reads from a device
          *
@@ -243,11 +304,236 @@ public class Physicaloid {
          * @throws RuntimeException
          */
         public int read(byte[] buf, int size) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.read(buf, size);
+                }
+        }
+
+        /**
+         * Reads from a device, waiting for data while nothing has been received
+         *
+         * @param buf buffer to read into
+         * @param off offset in buf
+         * @param size size to read
+         * @param timeoutMs longest wait for the first byte, 0 does not wait
+         * @return read byte size, 0 on timeout
+         * @throws RuntimeException
+         */
+        public int read(byte[] buf, int off, int size, int timeoutMs) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.read(buf, off, size, timeoutMs);
+                }
+        }
+
+        /**
+         * Receives on the caller's thread, for a device opened with OpenOptions.pollingMode
+         *
+         * @param buf buffer to read into
+         * @param off offset in buf
+         * @param size size to read
+         * @param timeoutMicros longest wait for the first byte, 0 only takes what already arrived
+         * @return read byte size, 0 on timeout, -1 when not polling
+         * @throws RuntimeException
+         */
+        public int poll(byte[] buf, int off, int size, long timeoutMicros) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return -1;
+                }
+                synchronized(mReadLock) {
+                        return serial.poll(buf, off, size, timeoutMicros);
+                }
+        }
+
+        /**
+         * Reads from a device into a ByteBuffer
+         *
+         * @param dst filled from its position up to its limit
+         * @return read byte size
+         * @throws RuntimeException
+         */
+        public int read(ByteBuffer dst) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.read(dst);
+                }
+        }
+
+        /**
+         * Writes bytes received from a device to a channel, e.g. a FileChannel
+         *
+         * @param target channel
+         * @param timeoutMs longest wait for the first byte, 0 does not wait
+         * @return transferred byte size, 0 on timeout
+         * @throws IOException target failed
+         */
+        public long transferTo(WritableByteChannel target, int timeoutMs) throws IOException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.transferTo(target, timeoutMs);
+                }
+        }
+
+        /**
+         * Reads from a device together with when the bytes were received.
+         * Needs OpenOptions.arrivalTimeChunks set before open().
+         *
+         * @param buf buffer to read into
+         * @param off offset in buf
+         * @param size size to read
+         * @param timeoutMs longest wait for the first byte, 0 does not wait
+         * @param arrival System.nanoTime() of [0] : the first byte, [1] : the last byte, -1 : unknown
+         * @return read byte size, 0 on timeout
+         * @throws RuntimeException
+         */
+        public int read(byte[] buf, int off, int size, int timeoutMs, long[] arrival) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        arrival[0] = -1;
+                        arrival[1] = -1;
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.read(buf, off, size, timeoutMs, arrival);
+                }
+        }
+
+        /**
+         * Reads from a device until size bytes have been received or the timeout expires
+         *
+         * @param buf buffer to read into
+         * @param off offset in buf
+         * @param size size to read
+         * @param timeoutMs longest wait for all of size bytes
+         * @return read byte size, less than size on timeout
+         * @throws RuntimeException
+         */
+        public int readFully(byte[] buf, int off, int size, int timeoutMs) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.readFully(buf, off, size, timeoutMs);
+                }
+        }
+
+        /**
+         * Adds a reader with its own cursor into the received stream.
+         * Needs OpenOptions.READ_BUFFER_BROADCAST, subscribe again after reopening.
+         *
+         * @param slowPolicy e.g. BroadcastRing.SLOW_SUBSCRIBER_SKIP
+         * @return subscriber, null : not opened for broadcast
+         * @throws RuntimeException
+         */
+        public BroadcastRing.Subscriber subscribe(int slowPolicy) throws RuntimeException {
                 synchronized(LOCK_READ) {
                         if(mSerial == null) {
-                                return 0;
+                                return null;
                         }
-                        return mSerial.read(buf, size);
+                        return mSerial.subscribe(slowPolicy);
+                }
+        }
+
+        /**
+         * Gets a received byte without consuming it
+         *
+         * @param offset distance from the oldest received byte
+         * @return byte value 0-255, -1 : not received yet
+         * @throws RuntimeException
+         */
+        public int peek(int offset) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return -1;
+                }
+                synchronized(mReadLock) {
+                        return serial.peek(offset);
+                }
+        }
+
+        /**
+         * Copies received bytes without consuming them
+         *
+         * @param buf buffer to copy into
+         * @param off offset in buf
+         * @param size size to copy
+         * @return copied byte size
+         * @throws RuntimeException
+         */
+        public int peek(byte[] buf, int off, int size) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.peek(buf, off, size);
+                }
+        }
+
+        /**
+         * Consumes received bytes without copying them
+         *
+         * @param size size to skip
+         * @return skipped byte size
+         * @throws RuntimeException
+         */
+        public int skip(int size) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.skip(size);
+                }
+        }
+
+        /**
+         * Finds a byte in the received bytes without consuming them
+         *
+         * @param b byte to find
+         * @param from distance from the oldest received byte to start from
+         * @return distance from the oldest received byte, -1 : not found
+         * @throws RuntimeException
+         */
+        public int indexOf(byte b, int from) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return -1;
+                }
+                synchronized(mReadLock) {
+                        return serial.indexOf(b, from);
+                }
+        }
+
+        /**
+         * Visits the received bytes in place without consuming them
+         *
+         * @param visitor called with read-only views until it returns false
+         * @return visited byte size
+         * @throws RuntimeException
+         */
+        public int forEachSegment(ReceiveBuffer.SegmentVisitor visitor) throws RuntimeException {
+                SerialCommunicator serial = getReadSerial();
+                if(serial == null) {
+                        return 0;
+                }
+                synchronized(mReadLock) {
+                        return serial.forEachSegment(visitor);
                 }
         }
 
@@ -285,6 +571,122 @@ public class Physicaloid {
                 }
         }
 
+        /**
+         * Adds a listener given the received bytes, see DataListener for how long they are valid
+         *
+         * @param listener DataListener
+         * @return true : successful , false : fail
+         * @throws RuntimeException
+         */
+        public boolean addDataListener(DataListener listener) throws RuntimeException {
+                synchronized(LOCK_READ) {
+                        if(mSerial == null) {
+                                return false;
+                        }
+                        if(listener == null) {
+                                return false;
+                        }
+                        mSerial.addDataListener(listener);
+                        return true;
+                }
+        }
+
+        /**
+         * Removes a data listener
+         *
+         * @param listener DataListener
+         * @throws RuntimeException
+         */
+        public void removeDataListener(DataListener listener) throws RuntimeException {
+                synchronized(LOCK_READ) {
+                        if(mSerial == null) {
+                                return;
+                        }
+                        mSerial.removeDataListener(listener);
+                }
+        }
+
+        /**
+         * Clears data listener
+         *
+         * @throws RuntimeException
+         */
+        public void clearDataListener() throws RuntimeException {
+                synchronized(LOCK_READ) {
+                        if(mSerial == null) {
+                                return;
+                        }
+                        mSerial.clearDataListener();
+                }
+        }
+
+        /**
+         * Gets an InputStream of received bytes. read() blocks until something
+         * arrives, see SerialInputStream.setReadTimeout().
+         *
+         * @return new stream, null if not opened yet
+         * @throws RuntimeException
+         */
+        public SerialInputStream getInputStream() throws RuntimeException {
+                synchronized(LOCK_READ) {
+                        if(mSerial == null) {
+                                return null;
+                        }
+                        return mSerial.getInputStream();
+                }
+        }
+
+        /**
+         * Gets an OutputStream writing to a device
+         *
+         * @return new stream, null if not opened yet
+         * @throws RuntimeException
+         */
+        public SerialOutputStream getOutputStream() throws RuntimeException {
+                synchronized(LOCK_WRITE) {
+                        if(mSerial == null) {
+                                return null;
+                        }
+                        return mSerial.getOutputStream();
+                }
+        }
+
+        /**
+         * Gets the publisher of received bytes. While its subscriber has requested
+         * nothing the device is not read, see ReceivePublisher. Needs API 30.
+         *
+         * @return publisher, null if not opened yet
+         * @throws RuntimeException
+         */
+        public ReceivePublisher publisher() throws RuntimeException {
+                synchronized(LOCK_READ) {
+                        if(mSerial == null) {
+                                return null;
+                        }
+                        return mSerial.publisher();
+                }
+        }
+
+        /**
+         * Starts decoding received bytes into frames, e.g. with a CobsCodec.
+         * The pipeline consumes the read buffer until detached, read() gets nothing.
+         *
+         * @param codec    framing, one instance per device
+         * @param listener gets decoded frames
+         * @return attached pipeline, also used to send frames, null if not opened yet
+         * @throws RuntimeException
+         */
+        public FramePipeline attachCodec(FrameCodec codec, FrameListener listener) throws RuntimeException {
+                synchronized(LOCK_READ) {
+                        if(mSerial == null || codec == null) {
+                                return null;
+                        }
+                        FramePipeline pipeline = new FramePipeline(mSerial, codec, listener);
+                        pipeline.attach();
+                        return pipeline;
+                }
+        }
+
         /**
          * Writes to a device.
          *
@@ -316,6 +718,126 @@ public class Physicaloid {
                 }
         }
 
+        /**
+         * Writes part of a buffer to a device without copying it first.
+         *
+         * @param buf buffer to write
+         * @param off offset in buf
+         * @param size size to write
+         * @return written byte size
+         * @throws RuntimeException
+         */
+        public int write(byte[] buf, int off, int size) throws RuntimeException {
+                synchronized(LOCK_WRITE) {
+                        if(mSerial == null) {
+                                return 0;
+                        }
+                        return mSerial.write(buf, off, size);
+                }
+        }
+
+        /**
+         * Writes a ByteBuffer to a device.
+         *
+         * @param src bytes between position and limit, advanced by the written size
+         * @return written byte size, -1 on error
+         * @throws RuntimeException
+         */
+        public int write(ByteBuffer src) throws RuntimeException {
+                synchronized(LOCK_WRITE) {
+                        if(mSerial == null) {
+                                return 0;
+                        }
+                        return mSerial.write(src);
+                }
+        }
+
+        /**
+         * Writes several ByteBuffers to a device in order.
+         *
+         * @param srcs buffers, each advanced by its written size
+         * @return written byte size, -1 on error
+         * @throws RuntimeException
+         */
+        public long write(ByteBuffer... srcs) throws RuntimeException {
+                synchronized(LOCK_WRITE) {
+                        if(mSerial == null) {
+                                return 0;
+                        }
+                        return mSerial.write(srcs);
+                }
+        }
+
+        /**
+         * Writes what a channel provides to a device, e.g. from a FileChannel
+         *
+         * @param src channel
+         * @param count most bytes to transfer
+         * @return transferred byte size, -1 on error
+         * @throws IOException src failed
+         */
+        public long transferFrom(ReadableByteChannel src, long count) throws IOException {
+                synchronized(LOCK_WRITE) {
+                        if(mSerial == null) {
+                                return 0;
+                        }
+                        return mSerial.transferFrom(src, count);
+                }
+        }
+
+        /**
+         * Queues a write to a device and returns without waiting for it.
+         * Small writes from any thread are coalesced into one transfer.
+         * Sizes are set by OpenOptions.writeQueueSize, writeTransferSize and writeCoalesceUs.
+         *
+         * @param buf buffer to write, may be reused once this returns
+         * @param off offset in buf
+         * @param size size to write
+         * @return completes with size once transmitted, 0 if not opened
+         * @throws RuntimeException
+         */
+        public ListenableFuture<Integer> writeAsync(byte[] buf, int off, int size) throws RuntimeException {
+                SerialCommunicator serial = mSerial;
+                if(serial == null) {
+                        return Futures.immediateFuture(0);
+                }
+                return serial.writeAsync(buf, off, size);
+        }
+
+        /**
+         * Writes a request and returns without waiting for the response. Several
+         * requests may be outstanding, their responses are matched in order.
+         *
+         * @param request request bytes
+         * @param matcher finds the end of the response, e.g. ResponseMatcher.endsWith((byte) '\n')
+         * @param timeoutMs longest wait for the response
+         * @return completes with the response, fails with TimeoutException, or IOException if not opened
+         * @throws RuntimeException
+         */
+        public ListenableFuture<byte[]> transact(byte[] request, ResponseMatcher matcher, int timeoutMs) throws RuntimeException {
+                SerialCommunicator serial = mSerial;
+                if(serial == null) {
+                        return Futures.immediateFailedFuture(new IOException("not opened"));
+                }
+                return serial.transact(request, matcher, timeoutMs);
+        }
+
+        /**
+         * Waits for any of several patterns in the received bytes, e.g. a prompt
+         *
+         * @param patterns compiled patterns, e.g. AhoCorasick.of(StandardCharsets.US_ASCII, "OK\r\n", "ERROR\r\n")
+         * @param timeoutMs longest wait
+         * @return completes with the match, fails with ExpectTimeoutException, or IOException if not opened
+         * @throws RuntimeException
+         */
+        public ListenableFuture<ExpectMatch> expect(AhoCorasick patterns, int timeoutMs) throws RuntimeException {
+                SerialCommunicator serial = mSerial;
+                if(serial == null) {
+                        return Futures.immediateFailedFuture(new IOException("not opened"));
+                }
+                return serial.expect(patterns, timeoutMs);
+        }
+
         /**
          * Uploads a binary file to a device on background process. No need to
          * open().
@@ -400,6 +922,9 @@ public class Physicaloid {
                                 Log.d(TAG, "upload : mSerial is null");
                         }
                         mSerial = new AutoCommunicator(USE_USB, USE_WIFI, USE_BLUETOOTH, mDport, mCport, mNetdest, mBlueName).getSerialCommunicator(mContext);   // need to run on non-thread
+                        if(mSerial != null) {
+                                mSerial.setOpenOptions(mOpenOptions);
+                        }
                         serialIsNull = true;
                 }
 
@@ -411,28 +936,13 @@ public class Physicaloid {
                                 synchronized(LOCK) {
                                         synchronized(LOCK_WRITE) {
                                                 synchronized(LOCK_READ) {
-                                                        UartConfig tmpUartConfig = new UartConfig();
+                                                        synchronized(mReadLock) {
+                                                                UartConfig tmpUartConfig = new UartConfig();
 
 
-                                                        if(mSerial == null) { // fail
-                                                                if(DEBUG_SHOW) {
-                                                                        Log.d(TAG, "upload : mSerial is null");
-                                                                }
-                                                                if(mCallBack != null) {
-                                                                        mCallBack.onError(UploadErrors.OPEN_DEVICE);
-                                                                }
-                                                                mBoard = null;
-                                                                mFileStream = null;
-                                                                mCallBack = null;
-                                                                mUploader = null;
-                                                                mSerial = null;
-                                                                return;
-                                                        }
-
-                                                        if(!mSerial.isOpened()) {
-                                                                if(!mSerial.open()) {
+                                                                if(mSerial == null) { // fail
                                                                         if(DEBUG_SHOW) {
-                                                                                Log.d(TAG, "upload : cannot mSerial.open");
+                                                                                Log.d(TAG, "upload : mSerial is null");
                                                                         }
                                                                         if(mCallBack != null) {
                                                                                 mCallBack.onError(UploadErrors.OPEN_DEVICE);
@@ -444,39 +954,56 @@ public class Physicaloid {
                                                                         mSerial = null;
                                                                         return;
                                                                 }
-                                                                if(DEBUG_SHOW) {
-                                                                        Log.d(TAG, "upload : open successful");
-                                                                }
-                                                        } else { // if already open
-                                                                UartConfig origUartConfig = mSerial.getUartConfig();
-                                                                tmpUartConfig.baudrate = origUartConfig.baudrate;
-                                                                tmpUartConfig.dataBits = origUartConfig.dataBits;
-                                                                tmpUartConfig.stopBits = origUartConfig.stopBits;
-                                                                tmpUartConfig.parity = origUartConfig.parity;
-                                                                tmpUartConfig.dtrOn = origUartConfig.dtrOn;
-                                                                tmpUartConfig.rtsOn = origUartConfig.rtsOn;
-                                                                if(DEBUG_SHOW) {
-                                                                        Log.d(TAG, "upload : already open");
+
+                                                                if(!mSerial.isOpened()) {
+                                                                        if(!mSerial.open()) {
+                                                                                if(DEBUG_SHOW) {
+                                                                                        Log.d(TAG, "upload : cannot mSerial.open");
+                                                                                }
+                                                                                if(mCallBack != null) {
+                                                                                        mCallBack.onError(UploadErrors.OPEN_DEVICE);
+                                                                                }
+                                                                                mBoard = null;
+                                                                                mFileStream = null;
+                                                                                mCallBack = null;
+                                                                                mUploader = null;
+                                                                                mSerial = null;
+                                                                                return;
+                                                                        }
+                                                                        if(DEBUG_SHOW) {
+                                                                                Log.d(TAG, "upload : open successful");
+                                                                        }
+                                                                } else { // if already open
+                                                                        UartConfig origUartConfig = mSerial.getUartConfig();
+                                                                        tmpUartConfig.baudrate = origUartConfig.baudrate;
+                                                                        tmpUartConfig.dataBits = origUartConfig.dataBits;
+                                                                        tmpUartConfig.stopBits = origUartConfig.stopBits;
+                                                                        tmpUartConfig.parity = origUartConfig.parity;
+                                                                        tmpUartConfig.dtrOn = origUartConfig.dtrOn;
+                                                                        tmpUartConfig.rtsOn = origUartConfig.rtsOn;
+                                                                        if(DEBUG_SHOW) {
+                                                                                Log.d(TAG, "upload : already open");
+                                                                        }
                                                                 }
-                                                        }
 
-                                                        mSerial.stopReadListener();
-                                                        mSerial.clearBuffer();
+                                                                mSerial.stopReadListener();
+                                                                mSerial.clearBuffer();
 
-                                                        mUploader.upload(mFileStream, mBoard, mSerial, mCallBack);
+                                                                mUploader.upload(mFileStream, mBoard, mSerial, mCallBack);
 
-                                                        mSerial.setUartConfig(tmpUartConfig); // recover if already
-                                                        // open
-                                                        mSerial.clearBuffer();
-                                                        mSerial.startReadListener();
-                                                        if(serialIsNull) {
-                                                                mSerial.close();
-                                                        }
+                                                                mSerial.setUartConfig(tmpUartConfig); // recover if already
+                                                                // open
+                                                                mSerial.clearBuffer();
+                                                                mSerial.startReadListener();
+                                                                if(serialIsNull) {
+                                                                        mSerial.close();
+                                                                }
 
-                                                        mBoard = null;
-                                                        mFileStream = null;
-                                                        mCallBack = null;
-                                                        mUploader = null;
+                                                                mBoard = null;
+                                                                mFileStream = null;
+                                                                mCallBack = null;
+                                                                mUploader = null;
+                                                        }
                                                 }
                                         }
                                 }
@@ -503,20 +1030,7 @@ public class Physicaloid {
          * @author keisuke
          *
          */
-        public interface UploadCallBack {
-                /*
-                 * Callback methods
-                 */
-
-                void onPreUpload();
-
-                void onUploading(int value);
-
-                void onPostUpload(boolean success);
-
-                void onCancel();
-
-                void onError(UploadErrors err);
+        public interface UploadCallBack extends com.manicben.physicaloid.lib.framework.UploadCallBack {
         }
 
         /**
@@ -638,6 +1152,84 @@ public class Physicaloid {
                 }
         }
 
+        /**
+         * Gets bytes dropped because the read buffer was full since open
+         *
+         * @return dropped byte count
+         */
+        public long getDroppedBytes() {
+                if(mSerial == null) {
+                        return 0;
+                }
+                return mSerial.getDroppedBytes();
+        }
+
+        /**
+         * Gets the largest read buffer fill level since open
+         *
+         * @return high-water mark in bytes
+         */
+        public int getReadBufferHighWaterMark() {
+                if(mSerial == null) {
+                        return 0;
+                }
+                return mSerial.getReadBufferHighWaterMark();
+        }
+
+        /**
+         * Gets listener calls waiting for OpenOptions.listenerDispatch's thread
+         *
+         * @return queued events
+         */
+        public int getListenerQueueDepth() {
+                if(mSerial == null) {
+                        return 0;
+                }
+                return mSerial.getListenerQueueDepth();
+        }
+
+        /**
+         * Gets the longest wait between arrival and a listener call since open
+         *
+         * @return latency in microseconds
+         */
+        public long getListenerMaxLatencyUs() {
+                if(mSerial == null) {
+                        return 0;
+                }
+                return mSerial.getListenerMaxLatencyUs();
+        }
+
+        /**
+         * Gets received bytes data listeners missed because they fell behind since open
+         *
+         * @return dropped byte count
+         */
+        public long getListenerDroppedBytes() {
+                if(mSerial == null) {
+                        return 0;
+                }
+                return mSerial.getListenerDroppedBytes();
+        }
+
+        /**
+         * Gets how long the last close() took, read threads stopped included
+         *
+         * @return latency in microseconds, 0 before the first close
+         */
+        public long getCloseLatencyUs() {
+                return TimeUnit.NANOSECONDS.toMicros(mCloseLatencyNanos);
+        }
+
+        /**
+         * Gets the time from the last close() being called to the next open() succeeding
+         *
+         * @return latency in microseconds, 0 before the first reopen
+         */
+        public long getReopenLatencyUs() {
+                return TimeUnit.NANOSECONDS.toMicros(mReopenLatencyNanos);
+        }
+
         public String getDriverName() {
                 if(mSerial == null) {
                         return "None";
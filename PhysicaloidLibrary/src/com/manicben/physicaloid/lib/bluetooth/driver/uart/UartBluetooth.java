@@ -12,16 +12,14 @@ import android.util.Log;
 import com.manicben.physicaloid.BuildConfig;
 import com.manicben.physicaloid.lib.Physicaloid;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
-import com.manicben.physicaloid.lib.usb.driver.uart.ReadListener;
 import com.manicben.physicaloid.lib.usb.driver.uart.UartConfig;
-import com.manicben.physicaloid.misc.RingBuffer;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -33,11 +31,13 @@ public class UartBluetooth extends SerialCommunicator {
         private boolean DEBUG_SHOW = BuildConfig.DEBUG;
         private static final int DEFAULT_BAUDRATE = 9600;
         private UartConfig mUartConfig;
-        private static final int RING_BUFFER_SIZE = 1024;
         private static final int READ_BUFFER_SIZE = 256;
         private static final int WRITE_BUFFER_SIZE = 256;
-        private RingBuffer mBuffer;
-        private boolean mReadThreadStop = true;
+        private volatile boolean mReadThreadStop = true;
+        private volatile Thread mReadThread;
+        private volatile boolean mPolling;
+        private final byte[] mPollBuf = new byte[READ_BUFFER_SIZE];     // pollingMode only
+        private static final long POLL_INTERVAL_MICROS = 1000;
         private boolean isOpened;
         private String mBlueName;
         private static final UUID uu = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
@@ -50,9 +50,8 @@ public class UartBluetooth extends SerialCommunicator {
         private BluetoothServerSocket serverSocket;
 
         public UartBluetooth(Context context, String BlueName) {
-                super(context);
+                super();
                 mUartConfig = new UartConfig();
-                mBuffer = new RingBuffer(RING_BUFFER_SIZE);
                 mBlueName = BlueName;
                 isOpened = false;
                 DATA_socket = null;
@@ -68,7 +67,7 @@ public class UartBluetooth extends SerialCommunicator {
                 if(!setBaudrate(DEFAULT_BAUDRATE)) {
                         return false;
                 }
-                mBuffer.clear();
+                mBuffer = newReadBuffer();
                 startRead();
                 isOpened = true;
                 return true;
@@ -147,6 +146,9 @@ public class UartBluetooth extends SerialCommunicator {
         @SuppressWarnings({"SleepWhileInLoop", "CallToThreadDumpStack"})
         public boolean close() {
                 stopRead();
+                stopWriteQueue();
+                closeReadBuffer();
+                completePublisher();
                 isOpened = false;
                 if(DATA_OUT != null) {
                         try {
@@ -179,7 +181,7 @@ public class UartBluetooth extends SerialCommunicator {
                         } catch(InterruptedException ex) {
                         }
                 }
-
+                joinReadThread();
                 return true;
         }
 
@@ -191,8 +193,13 @@ public class UartBluetooth extends SerialCommunicator {
         @Override
         @SuppressWarnings("CallToThreadDumpStack")
         public int write(byte[] buf, int size) {
+                return write(buf, 0, size);
+        }
+
+        @Override
+        public int write(byte[] buf, int off, int size) {
                 try {
-                        DATA_OUT.write(buf, 0, size);
+                        DATA_OUT.write(buf, off, size);
                         DATA_OUT.flush();
                 } catch(Exception ex) {
                         Log.d(TAG, ex.toString());
@@ -330,52 +337,86 @@ public class UartBluetooth extends SerialCommunicator {
         public void clearBuffer() {
                 mBuffer.clear();
         }
-        //////////////////////////////////////////////////////////
-        // Listener for reading uart
-        //////////////////////////////////////////////////////////
-        private List<ReadListener> uartReadListenerList = new ArrayList<ReadListener>();
-        private boolean mStopReadListener = false;
-
-        @Override
-        public void addReadListener(ReadListener listener) {
-                uartReadListenerList.add(listener);
-        }
-
-        @Override
-        public void clearReadListener() {
-                uartReadListenerList.clear();
-        }
-
-        @Override
-        public void startReadListener() {
-                mStopReadListener = false;
+        private void stopRead() {
+                mReadThreadStop = true;
+                mPolling = false;
         }
 
-        @Override
-        public void stopReadListener() {
-                mStopReadListener = true;
+        private void startRead() {
+                if(mOpenOptions.pollingMode) {
+                        mPolling = true;
+                        return;
+                }
+                if(mReadThreadStop) {
+                        mReadThreadStop = false;
+                        // a thread of an earlier open() that is still stuck sees it was replaced and ends
+                        Thread thread = new Thread(mLoop);
+                        mReadThread = thread;
+                        thread.start();
+                }
         }
 
-        private void onRead(int size) {
-                if(mStopReadListener) {
+        // Waits up to READ_STOP_TIMEOUT_MS for the read thread to end, unless close() runs on it.
+        private void joinReadThread() {
+                Thread thread = mReadThread;
+                if(thread == null || thread == Thread.currentThread()) {
                         return;
                 }
-                for(ReadListener listener : uartReadListenerList) {
-                        listener.onRead(size);
+                try {
+                        thread.join(READ_STOP_TIMEOUT_MS);
+                } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                }
+                if(thread.isAlive()) {
+                        Log.e(TAG, "read thread still running " + READ_STOP_TIMEOUT_MS + "ms after close");
                 }
         }
-        //////////////////////////////////////////////////////////
 
-        private void stopRead() {
-                mReadThreadStop = true;
+        // true : this read thread was stopped or replaced
+        private boolean isReadStopped() {
+                return mReadThreadStop || mReadThread != Thread.currentThread();
         }
 
-        private void startRead() {
-                if(mReadThreadStop) {
-                        mReadThreadStop = false;
-                        new Thread(mLoop).start();
+        /**
+         * Reads what the socket already holds. RFCOMM streams have no read
+         * timeout and no selector, so this cannot wait for data: with nothing
+         * available it sleeps up to POLL_INTERVAL_MICROS of timeoutMicros and
+         * returns 0, so poll() sees new bytes up to that much later.
+         */
+        @Override
+        protected int serviceRead(long timeoutMicros) {
+                DataInputStream in = DATA_IN;
+                if(!mPolling || in == null) {
+                        return -1;
+                }
+                try {
+                        int available = in.available();
+                        if(available <= 0) {
+                                if(timeoutMicros > 0) {
+                                        TimeUnit.MICROSECONDS.sleep(Math.min(timeoutMicros, POLL_INTERVAL_MICROS));
+                                }
+                                return 0;
+                        }
+                        int len = in.read(mPollBuf, 0, Math.min(available, mPollBuf.length));
+                        if(len < 0) {
+                                throw new IOException("connection closed by peer");
+                        }
+                        if(len > 0) {
+                                mBuffer.add(mPollBuf, len);
+                                onData(ByteBuffer.wrap(mPollBuf), 0, len);
+                                onRead(len);
+                        }
+                        return len;
+                } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return 0;
+                } catch(IOException ex) {
+                        Log.d(TAG, "Bluetooth disconnected: " + ex);
+                        close();
+                        return -1;
                 }
         }
+
         private Runnable mLoop = new Runnable() {
 
                 @Override
@@ -383,8 +424,14 @@ public class UartBluetooth extends SerialCommunicator {
                         int len;
                         byte[] rbuf = new byte[READ_BUFFER_SIZE];
                         android.os.Process.setThreadPriority(-20);
-                        //ByteBuffer buf = ByteBuffer.wrap(rbuf);
+                        ByteBuffer buf = ByteBuffer.wrap(rbuf);
                         for(;;) {
+                                if(isReadStopped()) {
+                                        return;
+                                }
+                                if(!awaitReadDemand(READ_DEMAND_WAIT_MS)) {
+                                        continue; // nothing read, the peer is held back by RFCOMM flow control
+                                }
                                 try {
                                         // this is the main loop for transferring
                                         len = 0;
@@ -400,11 +447,9 @@ public class UartBluetooth extends SerialCommunicator {
                                         }
                                         if(len > 0) {
                                                 mBuffer.add(rbuf, len);
+                                                onData(buf, 0, len);
                                                 onRead(len);
                                         }
-                                        if(mReadThreadStop) {
-                                                return;
-                                        }
                                 } catch(IOException ex) {
                                         // TO-DO: Needs to broadcast that it has been disconnected....
                                 }
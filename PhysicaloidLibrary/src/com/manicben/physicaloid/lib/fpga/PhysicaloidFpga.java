@@ -27,6 +27,7 @@ public class PhysicaloidFpga extends Physicaloid {
         return this.write(buf, 0, size);
     }
 
+    @Override
     public int write(byte[] buf, int offset, int size) throws RuntimeException {
         synchronized (LOCK_WRITE){
             if(mSerial == null) return 0;
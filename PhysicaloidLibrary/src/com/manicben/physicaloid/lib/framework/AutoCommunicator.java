@@ -29,6 +29,7 @@ import com.manicben.physicaloid.lib.usb.driver.uart.UartCp210x;
 import com.manicben.physicaloid.lib.usb.driver.uart.UartFtdi;
 import com.manicben.physicaloid.lib.usb.driver.uart.UartWinCH34x;
 import com.manicben.physicaloid.lib.wifi.driver.uart.UartWifi;
+import com.manicben.physicaloid.log.AndroidLogSink;
 
 public class AutoCommunicator {
 
@@ -42,6 +43,10 @@ public class AutoCommunicator {
         private int mDport = 9001;
         private int mCport = 9002;
 
+        static {
+                AndroidLogSink.install();
+        }
+
         public AutoCommunicator(boolean u, boolean w, boolean b, int Dport, int Cport, String Netdest, String BlueName) {
                 USE_USB = u;
                 USE_WIFI = w;
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.usb;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.os.Build;
+
+/**
+ * Sends byte arrays to a bulk OUT endpoint in transfers of a whole number
+ * of packets, straight from the caller's array where the platform allows.
+ */
+public class UsbBulkWriter {
+
+        // headroom on top of the time the bytes take on the wire
+        private static final int WRITE_TIMEOUT_MS = 100;
+        // start, 8 data, parity and stop bits rounded up
+        private static final int BITS_PER_BYTE = 12;
+        private static final int DEFAULT_BAUDRATE = 9600;
+        // bulkTransfer() with an offset appeared in API 18
+        private static final boolean HAS_OFFSET_TRANSFER = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+        private final UsbDeviceConnection mConnection;
+        private final UsbEndpoint mEndpoint;
+        private final int mTransferSize;
+        private byte[] mScratch;        // before API 18 only
+        private volatile int mBaudrate = DEFAULT_BAUDRATE;
+
+        /**
+         * Bulk writer
+         *
+         * @param connection   opened connection
+         * @param endpoint     bulk OUT endpoint
+         * @param transferSize most bytes per bulkTransfer(), e.g. SerialCommunicator.getWriteTransferSize()
+         */
+        public UsbBulkWriter(UsbDeviceConnection connection, UsbEndpoint endpoint, int transferSize) {
+                mConnection = connection;
+                mEndpoint = endpoint;
+                mTransferSize = Math.max(1, transferSize);
+        }
+
+        /**
+         * Gets the largest single transfer
+         *
+         * @return transfer size in bytes
+         */
+        public int getTransferSize() {
+                return mTransferSize;
+        }
+
+        /**
+         * Sets the baudrate the device sends at, so a transfer gets as long as
+         * its bytes take to drain from the chip before it times out
+         *
+         * @param baudrate baudrate e.g. 9600
+         */
+        public void setBaudrate(int baudrate) {
+                if(baudrate > 0) {
+                        mBaudrate = baudrate;
+                }
+        }
+
+        /**
+         * Gets the timeout of one transfer of length bytes at the current baudrate
+         *
+         * @param length transfer length in bytes
+         *
+         * @return timeout in milliseconds
+         */
+        protected int getTimeoutMs(int length) {
+                long wireMs = (long) length * BITS_PER_BYTE * 1000 / mBaudrate;
+                return (int) Math.min(Integer.MAX_VALUE, WRITE_TIMEOUT_MS + wireMs);
+        }
+
+        /**
+         * Writes buf[off, off+size). Concurrent writes go out one after another.
+         *
+         * @param buf  byte array
+         * @param off  offset in buf
+         * @param size write size
+         *
+         * @return written size, -1 on error before anything was written
+         */
+        public synchronized int write(byte[] buf, int off, int size) {
+                if(buf == null) {
+                        return 0;
+                }
+                int offset = off;
+                int end = off + size;
+                while(offset < end) {
+                        int len = Math.min(mTransferSize, end - offset);
+                        int timeout = getTimeoutMs(len);
+                        int written;
+                        if(HAS_OFFSET_TRANSFER) {
+                                written = mConnection.bulkTransfer(mEndpoint, buf, offset, len, timeout);
+                        } else if(offset == 0) {
+                                written = mConnection.bulkTransfer(mEndpoint, buf, len, timeout);
+                        } else {
+                                if(mScratch == null) {
+                                        mScratch = new byte[mTransferSize];
+                                }
+                                System.arraycopy(buf, offset, mScratch, 0, len);
+                                written = mConnection.bulkTransfer(mEndpoint, mScratch, len, timeout);
+                        }
+                        if(written <= 0) {
+                                // the device stopped taking bytes, keep what it did take
+                                break;
+                        }
+                        offset += written;
+                }
+                if(offset == off && size > 0) {
+                        return -1;
+                }
+                return offset - off;
+        }
+}
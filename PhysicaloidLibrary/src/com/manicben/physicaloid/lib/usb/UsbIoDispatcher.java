@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.usb;
+
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A few threads servicing the UsbReadEngines of many devices, instead of a
+ * thread per device.
+ *
+ * requestWait() only waits on one connection, so each thread goes round
+ * its devices handling whatever already completed, without waiting. Only
+ * when none had anything does it wait, on one device in turn, for a time
+ * that doubles from MIN_WAIT_MS while all stay quiet. A thread without
+ * devices sleeps.
+ *
+ * While it waits on one device the others are not looked at, they only have
+ * their queued IN requests to receive into, usbReadRequests times the max
+ * packet size. So with several devices the wait is capped at half the time
+ * the quickest of them takes to fill those at its baudrate, see
+ * UsbReadEngine.getFillTimeMs(), and at MAX_WAIT_MS. A lone device ends the
+ * wait itself as soon as anything completes, so it gets the whole
+ * MAX_WAIT_MS. The tradeoff is wakeups: a thread with fast devices wakes up
+ * every MIN_WAIT_MS when idle, instead of backing off, rather than let a
+ * device's FIFO overflow. Fewer wakeups take more usbReadRequests.
+ */
+public class UsbIoDispatcher {
+
+        private static final long MIN_WAIT_MS = 1;
+        private static final long MAX_WAIT_MS = 16;
+        // completions handled for one device before the next one's turn
+        private static final int MAX_BATCH = 16;
+
+        private static UsbIoDispatcher sShared;
+
+        private final Worker[] mWorkers;
+
+        /**
+         * Dispatcher
+         *
+         * @param threads threads the devices are spread over, started when the first device is added
+         */
+        public UsbIoDispatcher(int threads) {
+                mWorkers = new Worker[Math.max(1, threads)];
+                for(int i = 0; i < mWorkers.length; i++) {
+                        mWorkers[i] = new Worker("Physicaloid-usb-" + i);
+                }
+        }
+
+        /**
+         * Gets the dispatcher shared by every device, one thread per two cores
+         *
+         * @return shared dispatcher, null before API 26 which has no requestWait() with a timeout
+         */
+        public static synchronized UsbIoDispatcher getShared() {
+                if(Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                        return null;
+                }
+                if(sShared == null) {
+                        sShared = new UsbIoDispatcher(Runtime.getRuntime().availableProcessors() / 2);
+                }
+                return sShared;
+        }
+
+        /**
+         * Gets the number of threads
+         *
+         * @return thread count
+         */
+        public int getThreadCount() {
+                return mWorkers.length;
+        }
+
+        /**
+         * Gets the number of devices serviced
+         *
+         * @return engine count
+         */
+        public int getEngineCount() {
+                int count = 0;
+                for(Worker worker : mWorkers) {
+                        count += worker.count.get();
+                }
+                return count;
+        }
+
+        /**
+         * Services a started engine on the thread with the fewest devices
+         * until the engine is stopped
+         *
+         * @param engine started engine
+         */
+        void add(UsbReadEngine engine) {
+                Worker least = mWorkers[0];
+                for(Worker worker : mWorkers) {
+                        if(worker.count.get() < least.count.get()) {
+                                least = worker;
+                        }
+                }
+                least.add(engine);
+        }
+
+        // longest idle wait on one of devices, the quickest filling its queued IN requests in fillMs
+        static long getMaxWaitMs(int devices, long fillMs) {
+                if(devices <= 1) {
+                        return MAX_WAIT_MS;
+                }
+                return Math.max(MIN_WAIT_MS, Math.min(MAX_WAIT_MS, fillMs / 2));
+        }
+
+        private static final class Worker implements Runnable {
+                final String name;
+                final AtomicInteger count = new AtomicInteger();
+                final ArrayList<UsbReadEngine> engines = new ArrayList<UsbReadEngine>();     // worker thread only
+                final ArrayList<UsbReadEngine> added = new ArrayList<UsbReadEngine>();       // guarded by this
+                Thread thread;                                                              // guarded by this
+
+                Worker(String name) {
+                        this.name = name;
+                }
+
+                synchronized void add(UsbReadEngine engine) {
+                        count.incrementAndGet();
+                        added.add(engine);
+                        if(thread == null) {
+                                thread = new Thread(this, name);
+                                thread.setDaemon(true);
+                                thread.start();
+                        }
+                        notifyAll();
+                }
+
+                @Override
+                public void run() {
+                        try {
+                                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_FOREGROUND);
+                        } catch(Exception e) {
+                        }
+                        long waitMs = MIN_WAIT_MS;
+                        int turn = 0;
+                        for(;;) {
+                                synchronized(this) {
+                                        while(engines.isEmpty() && added.isEmpty()) {
+                                                try {
+                                                        wait();
+                                                } catch(InterruptedException e) {
+                                                        thread = null;
+                                                        return;
+                                                }
+                                        }
+                                        engines.addAll(added);
+                                        added.clear();
+                                }
+                                boolean busy = false;
+                                long fillMs = Long.MAX_VALUE;
+                                for(Iterator<UsbReadEngine> it = engines.iterator(); it.hasNext();) {
+                                        UsbReadEngine engine = it.next();
+                                        if(!engine.isRunning()) {
+                                                engine.finish();
+                                                it.remove();
+                                                count.decrementAndGet();
+                                                continue;
+                                        }
+                                        for(int i = 0; i < MAX_BATCH && engine.service(0); i++) {
+                                                busy = true;
+                                        }
+                                        fillMs = Math.min(fillMs, engine.getFillTimeMs());
+                                }
+                                if(engines.isEmpty()) {
+                                        continue;
+                                }
+                                if(busy) {
+                                        waitMs = MIN_WAIT_MS;
+                                        continue;
+                                }
+                                // nothing completed anywhere: wait on one device, the others are looked at right after
+                                long maxWaitMs = getMaxWaitMs(engines.size(), fillMs);
+                                waitMs = Math.min(waitMs, maxWaitMs);
+                                UsbReadEngine engine = engines.get(turn++ % engines.size());
+                                if(engine.isRunning() && engine.service(waitMs)) {
+                                        waitMs = MIN_WAIT_MS;
+                                } else {
+                                        waitMs = Math.min(waitMs * 2, maxWaitMs);
+                                }
+                        }
+                }
+        }
+}
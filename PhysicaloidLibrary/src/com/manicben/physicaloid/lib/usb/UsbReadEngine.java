@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.usb;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.util.Log;
+
+import com.manicben.physicaloid.lib.framework.ReceiveSink;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Receives from a bulk IN endpoint with several UsbRequests queued at once,
+ * so the endpoint has a buffer to fill while a completed one is handed on.
+ *
+ * The requests rotate in a fixed order. Each carries its slot as client
+ * data, so completions are matched whatever order requestWait() returns
+ * them in, and are handed to the sink in the order they were queued. A
+ * request is only queued again once it was handed on and a publisher()
+ * subscriber, if any, wants more.
+ *
+ * The same loop reaps the OUT requests of the writer made by newWriter().
+ * While a publisher() subscriber holds receiving back, the writer wakes the
+ * loop through ReceiveSink.wake() as soon as it queues a request.
+ *
+ * An engine is serviced either by a thread of its own or, started shared,
+ * by one of the few threads of UsbIoDispatcher together with other devices,
+ * or, started polled, only by the application's calls to poll().
+ */
+public class UsbReadEngine {
+
+        private static final String TAG = UsbReadEngine.class.getSimpleName();
+        private static final long READ_DEMAND_WAIT_MS = 100;
+        // how often stop() cancels again, in case a request was queued right after the last cancel
+        private static final long CANCEL_RETRY_MS = 10;
+        // start, 8 data and stop bits, the fastest a UART fills the queued requests
+        private static final int BITS_PER_BYTE = 10;
+        private static final int DEFAULT_BAUDRATE = 115200;
+
+        private final UsbDeviceConnection mConnection;
+        private final UsbEndpoint mEndpoint;
+        private final int mHeaderSize;
+        private final ReceiveSink mSink;
+        private final Slot[] mSlots;
+        private final int mPacketSize;
+        private final boolean mInPlace;
+        private int mNext;              // oldest queued slot, handed on next
+        private int mTail;              // slot queued next
+        private int mQueued;
+        private volatile boolean mStopped = true;
+        private volatile boolean mStarted;
+        private final Object mRequestLock = new Object();
+        private boolean mFinished;      // guarded by mRequestLock
+        private boolean mDebug;
+        private volatile UsbRequestWriter mWriter;
+        private boolean mPolled;
+        private int mHandedOn;          // bytes handed on by the current poll()
+        private volatile int mBaudrate = DEFAULT_BAUDRATE;
+        private volatile Thread mServiceThread;  // the thread in service() last
+
+        /**
+         * Read engine
+         *
+         * @param connection   opened connection
+         * @param endpoint     bulk IN endpoint
+         * @param requestCount requests kept queued, e.g. OpenOptions.usbReadRequests, 1 : received in place
+         * @param headerSize   status bytes the device puts in front of every packet, 0 : none
+         * @param sink         SerialCommunicator.getReceiveSink()
+         */
+        public UsbReadEngine(UsbDeviceConnection connection, UsbEndpoint endpoint, int requestCount, int headerSize, ReceiveSink sink) {
+                mConnection = connection;
+                mEndpoint = endpoint;
+                mHeaderSize = Math.max(0, headerSize);
+                mSink = sink;
+                mSlots = new Slot[Math.max(1, requestCount)];
+                mPacketSize = endpoint.getMaxPacketSize();
+                // the read buffer hands out one acquire() at a time, so a lone request can use it
+                mInPlace = (mSlots.length == 1);
+        }
+
+        /**
+         * Starts receiving
+         *
+         * @param priority android.os.Process thread priority of an own thread, e.g. THREAD_PRIORITY_FOREGROUND
+         * @param shared   true : serviced by UsbIoDispatcher.getShared() where the platform allows, false : own thread
+         */
+        public void start(final int priority, boolean shared) {
+                if(mStarted) {
+                        return;
+                }
+                mStarted = true;
+                mStopped = false;
+                prepare();
+                UsbIoDispatcher dispatcher = shared ? UsbIoDispatcher.getShared() : null;
+                if(dispatcher != null) {
+                        dispatcher.add(this);
+                        return;
+                }
+                Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                try {
+                                        android.os.Process.setThreadPriority(priority);
+                                } catch(Exception e) {
+                                }
+                                while(!mStopped) {
+                                        service(-1);
+                                }
+                                finish();
+                        }
+                }, "Physicaloid-reader");
+                thread.start();
+        }
+
+        /**
+         * Starts receiving without any thread, the caller drives the engine with poll()
+         *
+         * @return true : polled, false : before API 26, which cannot wait with a timeout
+         */
+        public boolean startPolled() {
+                if(Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                        Log.e(TAG, "polling needs requestWait() with a timeout, API 26");
+                        return false;
+                }
+                if(mStarted) {
+                        return false;
+                }
+                prepare();
+                mPolled = true;
+                mStarted = true;
+                mStopped = false;
+                return true;
+        }
+
+        private void prepare() {
+                for(int i = 0; i < mSlots.length; i++) {
+                        mSlots[i] = new Slot(mConnection, mEndpoint, mInPlace ? null : ByteBuffer.allocateDirect(mPacketSize));
+                }
+                mNext = 0;
+                mTail = 0;
+                mQueued = 0;
+        }
+
+        /**
+         * Handles what completed on the caller's thread, once started with startPolled()
+         *
+         * @param timeoutMicros longest wait for a completion, rounded up to milliseconds, 0 does not wait
+         *
+         * @return bytes handed to the sink, -1 when not polled or stopped
+         */
+        public synchronized int poll(long timeoutMicros) {
+                if(!mPolled || mStopped) {
+                        return -1;
+                }
+                mHandedOn = 0;
+                service(TimeUnit.MICROSECONDS.toMillis(Math.max(0, timeoutMicros) + 999));
+                return mHandedOn;
+        }
+
+        /**
+         * Stops receiving and waits until the engine's requests are released.
+         * Queued IN requests are cancelled, so a requestWait() on a silent
+         * device returns at once. An engine is not started again.
+         *
+         * @param timeoutMs longest wait
+         *
+         * @return true : released, false : still serviced after timeoutMs
+         */
+        public boolean stop(long timeoutMs) {
+                mStopped = true;
+                if(!mStarted) {
+                        // opening failed before receiving, only the writer holds requests
+                        UsbRequestWriter writer = mWriter;
+                        if(writer != null) {
+                                writer.close();
+                        }
+                        return true;
+                }
+                long deadline = System.currentTimeMillis() + timeoutMs;
+                synchronized(mRequestLock) {
+                        while(!mFinished) {
+                                for(Slot slot : mSlots) {
+                                        slot.request.cancel();
+                                }
+                                if(mPolled) {
+                                        break;
+                                }
+                                long remaining = deadline - System.currentTimeMillis();
+                                if(remaining <= 0) {
+                                        return false;
+                                }
+                                try {
+                                        mRequestLock.wait(Math.min(remaining, CANCEL_RETRY_MS));
+                                } catch(InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                        return mFinished;
+                                }
+                        }
+                }
+                if(mPolled) {
+                        synchronized(this) {
+                                // nobody else services a polled engine, a poll() in progress returns first
+                                finish();
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * Sets the baudrate the device receives at, see getFillTimeMs()
+         *
+         * @param baudrate baudrate e.g. 9600
+         */
+        public void setBaudrate(int baudrate) {
+                if(baudrate > 0) {
+                        mBaudrate = baudrate;
+                }
+        }
+
+        /**
+         * Gets how long the device takes to fill every queued IN request at
+         * its baudrate, after which its own FIFO starts filling
+         *
+         * @return fill time in milliseconds
+         */
+        long getFillTimeMs() {
+                return (long) mSlots.length * mPacketSize * BITS_PER_BYTE * 1000 / mBaudrate;
+        }
+
+        /**
+         * Checks the engine receives
+         *
+         * @return true : running, false : stopped
+         */
+        public boolean isRunning() {
+                return !mStopped;
+        }
+
+        /**
+         * Makes the writer for the device's bulk OUT endpoint
+         *
+         * @param endpoint     bulk OUT endpoint
+         * @param transferSize most bytes per transfer, e.g. SerialCommunicator.getWriteTransferSize()
+         * @param depth        OUT requests queued at once, e.g. OpenOptions.usbWriteRequests, 1 : blocking bulkTransfer()
+         *
+         * @return UsbRequestWriter reaped by this engine, or a plain UsbBulkWriter for depth 1
+         */
+        public UsbBulkWriter newWriter(UsbEndpoint endpoint, int transferSize, int depth) {
+                if(depth <= 1) {
+                        return new UsbBulkWriter(mConnection, endpoint, transferSize);
+                }
+                UsbRequestWriter writer = new UsbRequestWriter(mConnection, endpoint, transferSize, depth, this);
+                mWriter = writer;
+                return writer;
+        }
+
+        public void setDebug(boolean flag) {
+                mDebug = flag;
+        }
+
+        /**
+         * Handles one completed request, queueing more first. Called by the
+         * one thread servicing this engine.
+         *
+         * @param timeoutMs longest wait for a completion, 0 : do not wait, -1 : until one completes
+         *
+         * @return true : a request was handled, false : nothing completed in time
+         */
+        boolean service(long timeoutMs) {
+                mServiceThread = Thread.currentThread();
+                if(mQueued == 0) {
+                        queueMore();
+                }
+                if(mQueued == 0 && !isWriting()) {
+                        if(!mSink.awaitDemand((timeoutMs < 0) ? READ_DEMAND_WAIT_MS : timeoutMs)) {
+                                // a publisher() subscriber wants nothing yet, the device holds the data back
+                                return false;
+                        }
+                        queueMore();
+                        if(mQueued == 0) {
+                                mSink.idle();
+                                return false;
+                        }
+                }
+                UsbRequest response;
+                if(timeoutMs < 0) {
+                        response = mConnection.requestWait();
+                } else {
+                        try {
+                                response = mConnection.requestWait(timeoutMs);
+                        } catch(TimeoutException e) {
+                                return false;
+                        }
+                }
+                Object data = (response == null) ? null : response.getClientData();
+                if(data instanceof UsbRequestWriter.Transfer) {
+                        UsbRequestWriter.Transfer transfer = (UsbRequestWriter.Transfer) data;
+                        transfer.writer.onCompleted(transfer);
+                        return true;
+                }
+                if(!(data instanceof Slot)) {
+                        mSink.idle();
+                        return false;
+                }
+                Slot slot = (Slot) data;
+                slot.length = slot.buffer.position();
+                slot.done = true;
+                handOn();
+                queueMore();
+                return true;
+        }
+
+        // Releases the requests once stopped, on the thread that serviced the engine.
+        void finish() {
+                UsbRequestWriter writer = mWriter;
+                if(writer != null) {
+                        writer.close();
+                }
+                synchronized(mRequestLock) {
+                        if(mFinished) {
+                                return;
+                        }
+                        for(Slot slot : mSlots) {
+                                slot.close();
+                        }
+                        mFinished = true;
+                        mRequestLock.notifyAll();
+                }
+        }
+
+        // true : called on the thread reaping this engine's completions, which must not wait for them
+        boolean isServiceThread() {
+                return mServiceThread == Thread.currentThread();
+        }
+
+        // Ends a wait for read demand, so the writer's first request gets reaped.
+        void wake() {
+                mSink.wake();
+        }
+
+        private boolean isWriting() {
+                UsbRequestWriter writer = mWriter;
+                return writer != null && writer.isBusy();
+        }
+
+        // Queues the idle slots in rotation order for as long as there is demand.
+        private void queueMore() {
+                while(!mStopped && mQueued < mSlots.length && mSink.awaitDemand(0)) {
+                        Slot slot = mSlots[mTail];
+                        if(mInPlace) {
+                                slot.buffer = mSink.acquire(mPacketSize);
+                        } else {
+                                slot.buffer.clear();
+                        }
+                        if(!slot.request.queue(slot.buffer, slot.buffer.limit())) {
+                                return;
+                        }
+                        mTail = (mTail + 1) % mSlots.length;
+                        mQueued++;
+                }
+        }
+
+        // Hands completed slots on, oldest first, stopping at the first one still queued.
+        private void handOn() {
+                while(mQueued > 0 && mSlots[mNext].done) {
+                        Slot slot = mSlots[mNext];
+                        slot.done = false;
+                        mNext = (mNext + 1) % mSlots.length;
+                        mQueued--;
+                        int len = slot.length - mHeaderSize;
+                        if(len <= 0) {
+                                mSink.idle();
+                                continue;
+                        }
+                        if(mDebug) {
+                                Log.e(TAG, "read(" + len + "): " + toHexStr(slot.buffer, mHeaderSize, len));
+                        }
+                        mHandedOn += len;
+                        if(mInPlace) {
+                                mSink.commit(slot.buffer, mHeaderSize, len);
+                        } else {
+                                mSink.receive(slot.buffer, mHeaderSize, len);
+                        }
+                }
+        }
+
+        private static String toHexStr(ByteBuffer b, int off, int length) {
+                StringBuilder str = new StringBuilder();
+                for(int i = 0; i < length; i++) {
+                        str.append(String.format("%02x ", b.get(off + i)));
+                }
+                return str.toString();
+        }
+
+        private static final class Slot {
+                final UsbRequest request = new UsbRequest();
+                ByteBuffer buffer;
+                int length;
+                boolean done;
+
+                Slot(UsbDeviceConnection connection, UsbEndpoint endpoint, ByteBuffer buffer) {
+                        this.buffer = buffer;
+                        request.initialize(connection, endpoint);
+                        request.setClientData(this);
+                }
+
+                void close() {
+                        request.cancel();
+                        request.close();
+                }
+        }
+}
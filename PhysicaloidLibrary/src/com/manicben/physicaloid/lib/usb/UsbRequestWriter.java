@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.lib.usb;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends to a bulk OUT endpoint with several UsbRequests queued at once, so
+ * the host controller goes on to the next transfer without waiting for the
+ * caller. Completions are reaped by the UsbReadEngine that made the writer,
+ * in the same requestWait() loop as the IN requests. The first transfer
+ * queued wakes that loop if it is waiting for read demand, so completions
+ * are reaped while a publisher() subscriber holds receiving back too.
+ *
+ * A write on the thread servicing that engine, e.g. from an inline listener,
+ * could never see its completions, so it goes out with blocking
+ * bulkTransfer() instead, possibly between the transfers of a write in
+ * progress on another thread.
+ */
+public class UsbRequestWriter extends UsbBulkWriter {
+
+        private final UsbReadEngine mEngine;
+        private final Transfer[] mTransfers;
+        private final ReentrantLock mWriteLock = new ReentrantLock();
+        private int mInFlight;          // guarded by this
+        private boolean mClosed;        // guarded by this
+        private boolean mReleased;      // guarded by mWriteLock
+
+        /**
+         * Pipelined writer, see UsbReadEngine.newWriter()
+         *
+         * @param connection   opened connection
+         * @param endpoint     bulk OUT endpoint
+         * @param transferSize most bytes per request
+         * @param depth        requests queued at once
+         * @param engine       reaps the completions, woken when requests are queued
+         */
+        UsbRequestWriter(UsbDeviceConnection connection, UsbEndpoint endpoint, int transferSize, int depth, UsbReadEngine engine) {
+                super(connection, endpoint, transferSize);
+                mEngine = engine;
+                mTransfers = new Transfer[Math.max(1, depth)];
+                for(int i = 0; i < mTransfers.length; i++) {
+                        mTransfers[i] = new Transfer(this, connection, endpoint, ByteBuffer.allocateDirect(getTransferSize()));
+                }
+        }
+
+        /**
+         * Gets how many requests are queued at once
+         *
+         * @return depth
+         */
+        public int getDepth() {
+                return mTransfers.length;
+        }
+
+        /**
+         * Writes buf[off, off+size) in transfers of up to getTransferSize(),
+         * keeping up to getDepth() of them queued. Concurrent writes go out one
+         * after another.
+         *
+         * Once a transfer comes back short, failed or late, nothing more is
+         * queued and the ones already queued are waited for, so the result
+         * counts every byte up to the first one the device did not take.
+         * Each transfer gets getTimeoutMs() of its length to come back. One
+         * still out after being cancelled is waited for by the next write,
+         * which fails if it has not come back by then. close() ends the
+         * write at once.
+         *
+         * @param buf  byte array
+         * @param off  offset in buf
+         * @param size write size
+         *
+         * @return written size, -1 on error before anything was written
+         */
+        @Override
+        public int write(byte[] buf, int off, int size) {
+                if(buf == null) {
+                        return 0;
+                }
+                if(mEngine.isServiceThread()) {
+                        return super.write(buf, off, size);
+                }
+                mWriteLock.lock();
+                try {
+                        if(isClosed()) {
+                                return -1;
+                        }
+                        for(Transfer transfer : mTransfers) {
+                                if(!awaitCompletion(transfer)) {
+                                        return -1;      // still in the host controller's hands
+                                }
+                        }
+                        int depth = mTransfers.length;
+                        int offset = off;
+                        int end = off + size;
+                        int head = 0;           // transfer queued next
+                        int tail = 0;           // oldest queued transfer
+                        int queued = 0;
+                        int written = 0;
+                        boolean failed = false;
+                        while((offset < end && !failed) || queued > 0) {
+                                if(offset < end && !failed && queued < depth) {
+                                        Transfer transfer = mTransfers[head];
+                                        int len = Math.min(getTransferSize(), end - offset);
+                                        transfer.buffer.clear();
+                                        transfer.buffer.put(buf, offset, len);
+                                        transfer.buffer.flip();
+                                        transfer.length = len;
+                                        synchronized(this) {
+                                                if(mClosed) {
+                                                        failed = true;
+                                                        continue;
+                                                }
+                                                transfer.done = false;
+                                        }
+                                        if(!transfer.request.queue(transfer.buffer, len)) {
+                                                synchronized(this) {
+                                                        transfer.done = true;
+                                                }
+                                                failed = true;
+                                                continue;
+                                        }
+                                        boolean first;
+                                        synchronized(this) {
+                                                first = (mInFlight++ == 0);
+                                        }
+                                        if(first) {
+                                                mEngine.wake();
+                                        }
+                                        head = (head + 1) % depth;
+                                        queued++;
+                                        offset += len;
+                                        continue;
+                                }
+                                Transfer transfer = mTransfers[tail];
+                                if(!awaitCompletion(transfer)) {
+                                        // stalled: cancel what is queued and take back what comes back
+                                        for(int i = 0, n = tail; i < queued; i++, n = (n + 1) % depth) {
+                                                mTransfers[n].request.cancel();
+                                        }
+                                        failed = true;
+                                        if(!awaitCompletion(transfer)) {
+                                                // the next write waits for what is still out
+                                                break;
+                                        }
+                                }
+                                tail = (tail + 1) % depth;
+                                queued--;
+                                if(!failed) {
+                                        written += transfer.written;
+                                        failed = (transfer.written < transfer.length);
+                                }
+                        }
+                        return (written == 0 && failed) ? -1 : written;
+                } finally {
+                        mWriteLock.unlock();
+                        if(isClosed()) {
+                                release();
+                        }
+                }
+        }
+
+        private synchronized boolean isClosed() {
+                return mClosed;
+        }
+
+        // Returns at once, false, when closed: the stopped engine reaps nothing more.
+        private synchronized boolean awaitCompletion(Transfer transfer) {
+                if(transfer.done) {
+                        return true;
+                }
+                long deadline = System.currentTimeMillis() + getTimeoutMs(transfer.length);
+                long remaining;
+                while(!transfer.done && !mClosed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                                wait(remaining);
+                        } catch(InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return transfer.done;
+                        }
+                }
+                return transfer.done;
+        }
+
+        /**
+         * Checks requests are queued, so their completions must be reaped
+         *
+         * @return true : some queued, false : none
+         */
+        public synchronized boolean isBusy() {
+                return mInFlight > 0;
+        }
+
+        // Called by the engine for each of our requests requestWait() returns.
+        synchronized void onCompleted(Transfer transfer) {
+                if(transfer.done) {
+                        return;
+                }
+                transfer.written = transfer.buffer.position();
+                transfer.done = true;
+                mInFlight--;
+                notifyAll();
+        }
+
+        /**
+         * Cancels queued transfers and ends a write in progress without
+         * waiting for it. The requests are released here, or by that write
+         * as it returns. Later writes fail.
+         */
+        public void close() {
+                synchronized(this) {
+                        if(mClosed) {
+                                return;
+                        }
+                        mClosed = true;
+                        notifyAll();
+                }
+                for(Transfer transfer : mTransfers) {
+                        transfer.request.cancel();
+                }
+                release();
+        }
+
+        // Closes the requests unless a write still uses them, see close().
+        private void release() {
+                if(!mWriteLock.tryLock()) {
+                        return;
+                }
+                try {
+                        if(mReleased) {
+                                return;
+                        }
+                        mReleased = true;
+                        for(Transfer transfer : mTransfers) {
+                                transfer.request.close();
+                        }
+                } finally {
+                        mWriteLock.unlock();
+                }
+        }
+
+        static final class Transfer {
+                final UsbRequestWriter writer;
+                final UsbRequest request = new UsbRequest();
+                final ByteBuffer buffer;
+                int length;
+                int written;    // guarded by writer
+                boolean done = true;    // guarded by writer, false while queued
+
+                Transfer(UsbRequestWriter writer, UsbDeviceConnection connection, UsbEndpoint endpoint, ByteBuffer buffer) {
+                        this.writer = writer;
+                        this.buffer = buffer;
+                        request.initialize(connection, endpoint);
+                        request.setClientData(this);
+                }
+        }
+}
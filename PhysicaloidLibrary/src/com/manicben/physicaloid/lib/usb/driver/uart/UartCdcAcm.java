@@ -18,19 +18,16 @@ package com.manicben.physicaloid.lib.usb.driver.uart;
 import android.content.Context;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
 import com.manicben.physicaloid.lib.Physicaloid;
 import com.manicben.physicaloid.lib.UsbSerialDevice;
 import com.manicben.physicaloid.lib.UsbVid;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.lib.usb.UsbBulkWriter;
 import com.manicben.physicaloid.lib.usb.UsbCdcConnection;
+import com.manicben.physicaloid.lib.usb.UsbReadEngine;
 import com.manicben.physicaloid.lib.usb.UsbVidPid;
-import com.manicben.physicaloid.misc.RingBuffer;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 public class UartCdcAcm extends SerialCommunicator {
 
@@ -39,24 +36,18 @@ public class UartCdcAcm extends SerialCommunicator {
         private static final int DEFAULT_BAUDRATE = 9600;
         private UsbCdcConnection mUsbConnectionManager;
         private UartConfig mUartConfig;
-        private static final int RING_BUFFER_SIZE = 1024;
-        private static final int USB_READ_BUFFER_SIZE = 256;
-        private static final int USB_WRITE_BUFFER_SIZE = 256;
-        private RingBuffer mBuffer;
-        private boolean mReadThreadStop = true;
+        private volatile UsbReadEngine mReadEngine;
         private UsbDeviceConnection mConnection;
         private UsbEndpoint mEndpointIn;
         private UsbEndpoint mEndpointOut;
+        private volatile UsbBulkWriter mBulkOut;
         private int mInterfaceNum;
         private boolean isOpened;
-        private byte[] wbuf = new byte[USB_WRITE_BUFFER_SIZE];
-        private final Object DevLock = new Object();
 
         public UartCdcAcm(Context context) {
-                super(context);
+                super();
                 mUsbConnectionManager = new UsbCdcConnection(context);
                 mUartConfig = new UartConfig();
-                mBuffer = new RingBuffer(RING_BUFFER_SIZE);
                 isOpened = false;
         }
 
@@ -76,6 +67,9 @@ public class UartCdcAcm extends SerialCommunicator {
                         mConnection = mUsbConnectionManager.getConnection();
                         mEndpointIn = mUsbConnectionManager.getEndpointIn();
                         mEndpointOut = mUsbConnectionManager.getEndpointOut();
+                        stopRead();     // a read engine left by an open() that failed half way
+                        mReadEngine = new UsbReadEngine(mConnection, mEndpointIn, mOpenOptions.usbReadRequests, 0, getReceiveSink());
+                        mBulkOut = mReadEngine.newWriter(mEndpointOut, getWriteTransferSize(mEndpointOut.getMaxPacketSize()), getUsbWriteRequests());
                         mInterfaceNum = mUsbConnectionManager.getCdcAcmInterfaceNum();
                         if(!init()) {
                                 return false;
@@ -83,7 +77,7 @@ public class UartCdcAcm extends SerialCommunicator {
                         if(!setBaudrate(DEFAULT_BAUDRATE)) {
                                 return false;
                         }
-                        mBuffer.clear();
+                        mBuffer = newReadBuffer(mEndpointIn.getMaxPacketSize());
                         startRead();
                         isOpened = true;
                         return true;
@@ -94,6 +88,9 @@ public class UartCdcAcm extends SerialCommunicator {
         @Override
         public boolean close() {
                 stopRead();
+                stopWriteQueue();
+                closeReadBuffer();
+                completePublisher();
                 isOpened = false;
                 return mUsbConnectionManager.close();
         }
@@ -105,102 +102,42 @@ public class UartCdcAcm extends SerialCommunicator {
 
         @Override
         public int write(byte[] buf, int size) {
-                if(buf == null) {
-                        return 0;
-                }
-                int offset = 0;
-                int write_size;
-                int written_size;
-
-
-                while(offset < size) {
-                        write_size = USB_WRITE_BUFFER_SIZE;
+                return write(buf, 0, size);
+        }
 
-                        if(offset + write_size > size) {
-                                write_size = size - offset;
-                        }
-                        // optimization!
-                        if(offset == 0) {
-                                synchronized(DevLock) {
-                                        written_size = mConnection.bulkTransfer(mEndpointOut, buf, write_size, 100);
-
-                                }
-                        } else {
-                                System.arraycopy(buf, offset, wbuf, 0, write_size);
-                                synchronized(DevLock) {
-                                        written_size = mConnection.bulkTransfer(mEndpointOut, wbuf, write_size, 100);
-                                }
-                        }
-                        if(written_size < 0) {
-                                return -1;
-                        }
-                        offset += written_size;
+        @Override
+        public int write(byte[] buf, int off, int size) {
+                UsbBulkWriter out = mBulkOut;
+                if(out == null) {
+                        return -1;
                 }
-
-                return offset;
+                return out.write(buf, off, size);
         }
 
         private void stopRead() {
-                mReadThreadStop = true;
+                UsbReadEngine engine = mReadEngine;
+                mReadEngine = null;
+                if(engine != null && !engine.stop(READ_STOP_TIMEOUT_MS)) {
+                        Log.e(TAG, "read engine still busy " + READ_STOP_TIMEOUT_MS + "ms after close");
+                }
         }
 
         private void startRead() {
-                if(mReadThreadStop) {
-                        mReadThreadStop = false;
-                        new Thread(mLoop).start();
+                mReadEngine.setDebug(DEBUG_SHOW);
+                if(mOpenOptions.pollingMode && mReadEngine.startPolled()) {
+                        return;
                 }
+                mReadEngine.start(android.os.Process.THREAD_PRIORITY_FOREGROUND, mOpenOptions.usbSharedDispatcher);
         }
 
-        private String toHexStr(byte[] b, int length) {
-                String str = "";
-                for(int i = 0; i < length; i++) {
-                        str += String.format("%02x ", b[i]);
+        @Override
+        protected int serviceRead(long timeoutMicros) {
+                UsbReadEngine engine = mReadEngine;
+                if(engine == null) {
+                        return -1;
                 }
-                return str;
+                return engine.poll(timeoutMicros);
         }
-        private Runnable mLoop = new Runnable() {
-
-                @Override
-                @SuppressWarnings("CallToThreadYield")
-                public void run() {
-                        try {
-                                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_FOREGROUND);
-                        } catch(Exception e) {
-                        }
-                        int len;
-                        byte[] rbuf = new byte[mEndpointIn.getMaxPacketSize()];
-                        UsbRequest response;
-                        UsbRequest request = new UsbRequest();
-                        request.initialize(mConnection, mEndpointIn);
-                        ByteBuffer buf = ByteBuffer.wrap(rbuf);
-                        for(;;) {// this is the main loop for transferring
-                                len = 0;
-                                if(request.queue(buf, rbuf.length)) {
-                                        response = mConnection.requestWait();
-                                        if(response != null) {
-                                                len = buf.position();
-                                        }
-                                        if(len > 0) {
-                                                if(DEBUG_SHOW) {
-                                                        Log.e(TAG, "read(" + len + "): " + toHexStr(rbuf, len));
-                                                }
-
-                                                mBuffer.add(rbuf, len);
-                                                onRead(len);
-                                        } else if(mBuffer.getBufferdLength() > 0) {
-                                                onRead(mBuffer.getBufferdLength());
-                                        }
-
-                                } else if(mBuffer.getBufferdLength() > 0) {
-                                        onRead(mBuffer.getBufferdLength());
-                                }
-
-                                if(mReadThreadStop) {
-                                        return;
-                                }
-                        }
-                } // end of run()
-        }; // end of runnable
 
         /**
          * Sets Uart configurations
@@ -275,6 +212,14 @@ public class UartCdcAcm extends SerialCommunicator {
                         return false;
                 }
                 mUartConfig.baudrate = baudrate;
+                UsbBulkWriter out = mBulkOut;
+                if(out != null) {
+                        out.setBaudrate(baudrate);
+                }
+                UsbReadEngine engine = mReadEngine;
+                if(engine != null) {
+                        engine.setBaudrate(baudrate);
+                }
                 return true;
         }
 
@@ -396,42 +341,6 @@ public class UartCdcAcm extends SerialCommunicator {
         public void clearBuffer() {
                 mBuffer.clear();
         }
-        //////////////////////////////////////////////////////////
-        // Listener for reading uart
-        //////////////////////////////////////////////////////////
-        private List<ReadListener> uartReadListenerList = new ArrayList<ReadListener>();
-        private boolean mStopReadListener = false;
-
-        @Override
-        public void addReadListener(ReadListener listener) {
-                uartReadListenerList.add(listener);
-        }
-
-        @Override
-        public void clearReadListener() {
-                uartReadListenerList.clear();
-        }
-
-        @Override
-        public void startReadListener() {
-                mStopReadListener = false;
-        }
-
-        @Override
-        public void stopReadListener() {
-                mStopReadListener = true;
-        }
-
-        private void onRead(int size) {
-                if(mStopReadListener) {
-                        return;
-                }
-                for(ReadListener listener : uartReadListenerList) {
-                        listener.onRead(size);
-                }
-        }
-        //////////////////////////////////////////////////////////
-
         @Override
         public String getPhysicalConnectionName() {
                 return Physicaloid.USB_STRING;
@@ -445,6 +354,9 @@ public class UartCdcAcm extends SerialCommunicator {
         @Override
         public void setDebug(boolean flag) {
                 DEBUG_SHOW = flag;
+                if(mReadEngine != null) {
+                        mReadEngine.setDebug(flag);
+                }
         }
 
         @Override
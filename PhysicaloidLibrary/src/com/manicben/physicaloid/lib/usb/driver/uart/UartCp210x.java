@@ -3,19 +3,16 @@ package com.manicben.physicaloid.lib.usb.driver.uart;
 import android.content.Context;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
 import com.manicben.physicaloid.lib.Physicaloid;
 import com.manicben.physicaloid.lib.UsbSerialDevice;
 import com.manicben.physicaloid.lib.UsbVid;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.lib.usb.UsbBulkWriter;
 import com.manicben.physicaloid.lib.usb.UsbCdcConnection;
+import com.manicben.physicaloid.lib.usb.UsbReadEngine;
 import com.manicben.physicaloid.lib.usb.UsbVidPid;
-import com.manicben.physicaloid.misc.RingBuffer;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 public class UartCp210x extends SerialCommunicator {
 
@@ -24,14 +21,11 @@ public class UartCp210x extends SerialCommunicator {
         private static final int DEFAULT_BAUDRATE = 9600;
         private UsbCdcConnection mUsbConnectionManager;
         private UartConfig mUartConfig;
-        private static final int RING_BUFFER_SIZE = 1024;
-        private static final int USB_READ_BUFFER_SIZE = 256;
-        private static final int USB_WRITE_BUFFER_SIZE = 256;
-        private RingBuffer mBuffer;
-        private boolean mReadThreadStop = true;
+        private volatile UsbReadEngine mReadEngine;
         private UsbDeviceConnection mConnection;
         private UsbEndpoint mEndpointIn;
         private UsbEndpoint mEndpointOut;
+        private volatile UsbBulkWriter mBulkOut;
         private boolean isOpened;
 
         /*
@@ -157,10 +151,9 @@ public class UartCp210x extends SerialCommunicator {
         private static final int CONTROL_WRITE_RTS = 0x0200;
 
         public UartCp210x(Context context) {
-                super(context);
+                super();
                 mUsbConnectionManager = new UsbCdcConnection(context);
                 mUartConfig = new UartConfig();
-                mBuffer = new RingBuffer(RING_BUFFER_SIZE);
                 isOpened = false;
         }
 
@@ -181,13 +174,16 @@ public class UartCp210x extends SerialCommunicator {
                         mConnection = mUsbConnectionManager.getConnection();
                         mEndpointIn = mUsbConnectionManager.getEndpointIn();
                         mEndpointOut = mUsbConnectionManager.getEndpointOut();
+                        stopRead();     // a read engine left by an open() that failed half way
+                        mReadEngine = new UsbReadEngine(mConnection, mEndpointIn, mOpenOptions.usbReadRequests, 0, getReceiveSink());
+                        mBulkOut = mReadEngine.newWriter(mEndpointOut, getWriteTransferSize(mEndpointOut.getMaxPacketSize()), getUsbWriteRequests());
                         if(!init()) {
                                 return false;
                         }
                         if(!setBaudrate(DEFAULT_BAUDRATE)) {
                                 return false;
                         }
-                        mBuffer.clear();
+                        mBuffer = newReadBuffer(mEndpointIn.getMaxPacketSize());
                         startRead();
                         isOpened = true;
                         return true;
@@ -198,6 +194,9 @@ public class UartCp210x extends SerialCommunicator {
         @Override
         public boolean close() {
                 stopRead();
+                stopWriteQueue();
+                closeReadBuffer();
+                completePublisher();
                 isOpened = false;
                 cp210xUsbDisable();
                 return mUsbConnectionManager.close();
@@ -210,86 +209,42 @@ public class UartCp210x extends SerialCommunicator {
 
         @Override
         public int write(byte[] buf, int size) {
-                if(buf == null) {
-                        return 0;
-                }
-                int offset = 0;
-                int write_size;
-                int written_size;
-                byte[] wbuf = new byte[USB_WRITE_BUFFER_SIZE];
-
-                while(offset < size) {
-                        write_size = USB_WRITE_BUFFER_SIZE;
-
-                        if(offset + write_size > size) {
-                                write_size = size - offset;
-                        }
-                        System.arraycopy(buf, offset, wbuf, 0, write_size);
-
-                        written_size = mConnection.bulkTransfer(mEndpointOut, wbuf, write_size, 100);
+                return write(buf, 0, size);
+        }
 
-                        if(written_size < 0) {
-                                return -1;
-                        }
-                        offset += written_size;
+        @Override
+        public int write(byte[] buf, int off, int size) {
+                UsbBulkWriter out = mBulkOut;
+                if(out == null) {
+                        return -1;
                 }
-
-                return offset;
+                return out.write(buf, off, size);
         }
 
         private void stopRead() {
-                mReadThreadStop = true;
+                UsbReadEngine engine = mReadEngine;
+                mReadEngine = null;
+                if(engine != null && !engine.stop(READ_STOP_TIMEOUT_MS)) {
+                        Log.e(TAG, "read engine still busy " + READ_STOP_TIMEOUT_MS + "ms after close");
+                }
         }
 
         private void startRead() {
-                if(mReadThreadStop) {
-                        mReadThreadStop = false;
-                        new Thread(mLoop).start();
+                mReadEngine.setDebug(DEBUG_SHOW);
+                if(mOpenOptions.pollingMode && mReadEngine.startPolled()) {
+                        return;
                 }
+                mReadEngine.start(-20, mOpenOptions.usbSharedDispatcher);
         }
-        private Runnable mLoop = new Runnable() {
-
-                @Override
-                public void run() {
-                        int len;
-                        // byte[] rbuf = new byte[USB_READ_BUFFER_SIZE];
-                        byte[] rbuf = new byte[mEndpointIn.getMaxPacketSize()];
-                        android.os.Process.setThreadPriority(-20);
-                        UsbRequest response;
-                        UsbRequest request = new UsbRequest();
-                        request.initialize(mConnection, mEndpointIn);
-                        ByteBuffer buf = ByteBuffer.wrap(rbuf);
-                        for(;;) {// this is the main loop for transferring
-                                len = 0;
-                                if(request.queue(buf, rbuf.length)) {
-                                        response = mConnection.requestWait();
-                                        if(response != null) {
-                                                len = buf.position();
-                                        }
-                                        if(len > 0) {
-                                                mBuffer.add(rbuf, len);
-                                                onRead(len);
-                                        } else if(mBuffer.getBufferdLength() > 0) {
-                                                onRead(mBuffer.getBufferdLength());
-                                        } else if(mBuffer.getBufferdLength() > 0) {
-                                                onRead(mBuffer.getBufferdLength());
-                                        }
-
-
-                                }
-
-                                if(mReadThreadStop) {
-                                        return;
-                                }
-
-                                try {
-                                        Thread.sleep(1);
-                                } catch(InterruptedException e) {
-                                }
 
-                        }
-                } // end of run()
-        }; // end of runnable
+        @Override
+        protected int serviceRead(long timeoutMicros) {
+                UsbReadEngine engine = mReadEngine;
+                if(engine == null) {
+                        return -1;
+                }
+                return engine.poll(timeoutMicros);
+        }
 
         @Override
         public boolean setUartConfig(UartConfig config) {
@@ -490,6 +445,14 @@ public class UartCp210x extends SerialCommunicator {
                         return false;
                 }
                 mUartConfig.baudrate = baudrate;
+                UsbBulkWriter out = mBulkOut;
+                if(out != null) {
+                        out.setBaudrate(baudrate);
+                }
+                UsbReadEngine engine = mReadEngine;
+                if(engine != null) {
+                        engine.setBaudrate(baudrate);
+                }
                 return true;
         }
 
@@ -705,42 +668,6 @@ public class UartCp210x extends SerialCommunicator {
         public void clearBuffer() {
                 mBuffer.clear();
         }
-        //////////////////////////////////////////////////////////
-        // Listener for reading uart
-        //////////////////////////////////////////////////////////
-        private List<ReadListener> uartReadListenerList = new ArrayList<ReadListener>();
-        private boolean mStopReadListener = false;
-
-        @Override
-        public void addReadListener(ReadListener listener) {
-                uartReadListenerList.add(listener);
-        }
-
-        @Override
-        public void clearReadListener() {
-                uartReadListenerList.clear();
-        }
-
-        @Override
-        public void startReadListener() {
-                mStopReadListener = false;
-        }
-
-        @Override
-        public void stopReadListener() {
-                mStopReadListener = true;
-        }
-
-        private void onRead(int size) {
-                if(mStopReadListener) {
-                        return;
-                }
-                for(ReadListener listener : uartReadListenerList) {
-                        listener.onRead(size);
-                }
-        }
-        //////////////////////////////////////////////////////////
-
         /**
          * Transfers int to little endian byte array
          *
@@ -792,6 +719,9 @@ public class UartCp210x extends SerialCommunicator {
         @Override
         public void setDebug(boolean flag) {
                 DEBUG_SHOW = flag;
+                if(mReadEngine != null) {
+                        mReadEngine.setDebug(flag);
+                }
         }
 
         @Override
@@ -25,19 +25,17 @@ package com.manicben.physicaloid.lib.usb.driver.uart;
 import android.content.Context;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
 import com.manicben.physicaloid.lib.Physicaloid;
 import com.manicben.physicaloid.lib.UsbSerialDevice;
 import com.manicben.physicaloid.lib.UsbVid;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.lib.usb.UsbBulkWriter;
 import com.manicben.physicaloid.lib.usb.UsbCdcConnection;
+import com.manicben.physicaloid.lib.usb.UsbReadEngine;
 import com.manicben.physicaloid.lib.usb.UsbVidPid;
-import com.manicben.physicaloid.misc.RingBuffer;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 public class UartFtdi extends SerialCommunicator {
 
@@ -46,15 +44,15 @@ public class UartFtdi extends SerialCommunicator {
         private static final int DEFAULT_BAUDRATE = 9600;
         private UsbCdcConnection mUsbConnectionManager;
         private UartConfig mUartConfig;
-        private static final int RING_BUFFER_SIZE = 1024;
-        private static final int USB_WRITE_BUFFER_SIZE = 2;
-        private RingBuffer mBuffer;
-        private boolean mReadThreadStop = true;
+        // FTDI stuffs status in the first 2 bytes of every IN packet
+        private static final int FTDI_STATUS_SIZE = 2;
+        private volatile UsbReadEngine mReadEngine;
         private UsbDeviceConnection mConnection;
         private UsbEndpoint mEndpointIn;
         private UsbEndpoint mEndpointOut;
+        private volatile UsbBulkWriter mBulkOut;       // one byte per transfer, see write()
         private boolean isOpened;
-        private byte[] wbuf = new byte[USB_WRITE_BUFFER_SIZE];
+        private final byte[] mModemStatus = new byte[FTDI_STATUS_SIZE];
         //private final Object DevLock = new Object();
         // USB_TYPE_VENDOR | USB_RECIP_DEVICE | USB_DIR_OUT
         private static final byte REQTYPE_HOST_TO_INTERFACE = (byte) 0x41;
@@ -141,11 +139,9 @@ public class UartFtdi extends SerialCommunicator {
         private static final int FTDI_RS_TEMT = (1 << 6);
 
         public UartFtdi(Context context) {
-                super(context);
+                super();
                 mUsbConnectionManager = new UsbCdcConnection(context);
-                mReadThreadStop = true;
                 mUartConfig = new UartConfig();
-                mBuffer = new RingBuffer(RING_BUFFER_SIZE);
                 isOpened = false;
         }
 
@@ -154,6 +150,10 @@ public class UartFtdi extends SerialCommunicator {
                         mConnection = mUsbConnectionManager.getConnection();
                         mEndpointIn = mUsbConnectionManager.getEndpointIn();
                         mEndpointOut = mUsbConnectionManager.getEndpointOut();
+                        stopRead();     // a read engine left by an open() that failed half way
+                        mReadEngine = new UsbReadEngine(mConnection, mEndpointIn, mOpenOptions.usbReadRequests, FTDI_STATUS_SIZE, getReceiveSink());
+                        // one byte at a time with the transmitter polled in between, nothing to pipeline
+                        mBulkOut = new UsbBulkWriter(mConnection, mEndpointOut, 1);
                         //pid = mUsbConnetionManager.getPID();
                         if(!init()) {
                                 return false;
@@ -161,7 +161,7 @@ public class UartFtdi extends SerialCommunicator {
                         if(!setBaudrate(DEFAULT_BAUDRATE)) {
                                 return false;
                         }
-                        mBuffer.clear();
+                        mBuffer = newReadBuffer(mEndpointIn.getMaxPacketSize());
                         startRead();
                         isOpened = true;
                         return true;
@@ -207,6 +207,9 @@ public class UartFtdi extends SerialCommunicator {
         public boolean close() {
                 if(mUsbConnectionManager != null) {
                         stopRead();
+                        stopWriteQueue();
+                        closeReadBuffer();
+                        completePublisher();
                         isOpened = false;
                         return mUsbConnectionManager.close();
                 }
@@ -240,126 +243,84 @@ public class UartFtdi extends SerialCommunicator {
 
         @Override
         public int write(byte[] buf, int size) {
+                return write(buf, 0, size);
+        }
+
+        @Override
+        public int write(byte[] buf, int off, int size) {
                 if(buf == null) {
                         return 0;
                 }
-                int offset = 0;
+                UsbBulkWriter out = mBulkOut;
+                if(out == null) {
+                        return -1;
+                }
+                int offset = off;
+                int end = off + size;
                 int write_size;
                 int written_size;
                 int len;
 
                 if(DEBUG_SHOW) {
-                        Log.e(TAG, "write(" + size + "): " + toHexStr(buf, size));
+                        Log.e(TAG, "write(" + size + "): " + toHexStr(ByteBuffer.wrap(buf), off, size));
                 }
 
                 // FTDI is crap, makes us work hard.
                 // We have to treat the chip as if it is an 8250 on the outbound
                 // otherwise it seems that characters don't always seem to make it.
-                while(offset < size) {
+                while(offset < end) {
                         // check empty
                         while(true) {
                                 len = 2;
-                                written_size = control_in(FTDI_SIO_GET_MODEM_STATUS, 0, 0, wbuf, len);
+                                written_size = control_in(FTDI_SIO_GET_MODEM_STATUS, 0, 0, mModemStatus, len);
                                 if(written_size < 1) {
                                         return -1;
                                 }
                                 if(written_size == 1) {
-                                        wbuf[1] = 0;
+                                        mModemStatus[1] = 0;
                                 }
-                                if((wbuf[1] & FTDI_RS_TEMT) == FTDI_RS_TEMT) {
+                                if((mModemStatus[1] & FTDI_RS_TEMT) == FTDI_RS_TEMT) {
                                         break;
                                 }
                         }
                         write_size = 1;
-                        if(offset + write_size > size) {
-                                write_size = size - offset;
-                        }
-                        // optimization!
-                        if(offset == 0) {
-                                //synchronized(DevLock) {
-                                written_size = mConnection.bulkTransfer(mEndpointOut, buf, write_size, 100);
-
-                                //}
-                        } else {
-                                System.arraycopy(buf, offset, wbuf, 0, write_size);
-                                //synchronized(DevLock) {
-                                written_size = mConnection.bulkTransfer(mEndpointOut, wbuf, write_size, 100);
-                                //}
+                        if(offset + write_size > end) {
+                                write_size = end - offset;
                         }
+                        written_size = out.write(buf, offset, write_size);
                         if(written_size < 0) {
                                 return -1;
                         }
                         offset += written_size;
                 }
 
-                return offset;
+                return offset - off;
         }
 
         private void stopRead() {
-                mReadThreadStop = true;
+                UsbReadEngine engine = mReadEngine;
+                mReadEngine = null;
+                if(engine != null && !engine.stop(READ_STOP_TIMEOUT_MS)) {
+                        Log.e(TAG, "read engine still busy " + READ_STOP_TIMEOUT_MS + "ms after close");
+                }
         }
 
         private void startRead() {
-                if(mReadThreadStop) {
-                        mReadThreadStop = false;
-                        new Thread(mLoop).start();
+                mReadEngine.setDebug(DEBUG_SHOW);
+                if(mOpenOptions.pollingMode && mReadEngine.startPolled()) {
+                        return;
                 }
+                mReadEngine.start(android.os.Process.THREAD_PRIORITY_FOREGROUND, mOpenOptions.usbSharedDispatcher);
         }
-        private Runnable mLoop = new Runnable() {
-
-                @Override
-                @SuppressWarnings("CallToThreadYield")
-                public void run() {
-                        try {
-                                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_FOREGROUND);
-                        } catch(Exception e) {
-                        }
-                        int len;
-                        //byte[] rbuf = new byte[USB_READ_BUFFER_SIZE];
-                        byte[] rbuf = new byte[mEndpointIn.getMaxPacketSize()];
-                        byte[] cbuf = new byte[mEndpointIn.getMaxPacketSize()];
-                        //android.os.Process.setThreadPriority(-20);
-                        UsbRequest response;
-                        UsbRequest request = new UsbRequest();
-                        request.initialize(mConnection, mEndpointIn);
-                        ByteBuffer buf = ByteBuffer.wrap(rbuf);
-                        for(;;) {// this is the main loop for transferring
-                                len = 0;
-                                //synchronized(DevLock) {
-                                if(request.queue(buf, rbuf.length)) {
-                                        response = mConnection.requestWait();
-                                        if(response != null) {
-                                                len = buf.position();
-                                        }
-                                }
-                                //}
-                                if(len > 1) {
-                                        if(len > 2) {
-                                                //if(DEBUG_SHOW) {
-                                                //        Log.e(TAG, "read(" + len + "): " + toHexStr(rbuf, len));
-                                                //}
-                                                // FTDI stuffs status in the first 2 bytes.
-                                                len -= 2;
-                                                System.arraycopy(rbuf, 2, cbuf, 0, len);
-                                                if(DEBUG_SHOW) {
-                                                        Log.e(TAG, "read(" + len + "): " + toHexStr(cbuf, len));
-                                                }
-                                                mBuffer.add(cbuf, len);
-                                                onRead(mBuffer.getBufferdLength());
-                                        } else if(mBuffer.getBufferdLength() > 0) {
-                                                onRead(mBuffer.getBufferdLength());
-                                        }
-
-                                } else if(mBuffer.getBufferdLength() > 0) {
-                                        onRead(mBuffer.getBufferdLength());
-                                }
 
-                                if(mReadThreadStop) {
-                                        return;
-                                }
-                        }
-                } // end of run()
-        }; // end of runnable
+        @Override
+        protected int serviceRead(long timeoutMicros) {
+                UsbReadEngine engine = mReadEngine;
+                if(engine == null) {
+                        return -1;
+                }
+                return engine.poll(timeoutMicros);
+        }
 
         @Override
         public boolean setUartConfig(UartConfig config) {
@@ -443,6 +404,14 @@ public class UartFtdi extends SerialCommunicator {
                         return false;
                 }
                 mUartConfig.baudrate = baudrate;
+                UsbBulkWriter out = mBulkOut;
+                if(out != null) {
+                        out.setBaudrate(baudrate);
+                }
+                UsbReadEngine engine = mReadEngine;
+                if(engine != null) {
+                        engine.setBaudrate(baudrate);
+                }
                 return true;
         }
 
@@ -586,46 +555,10 @@ public class UartFtdi extends SerialCommunicator {
 
                 mBuffer.clear();
         }
-        //////////////////////////////////////////////////////////
-        // Listener for reading uart
-        //////////////////////////////////////////////////////////
-        private List<ReadListener> uartReadListenerList = new ArrayList<ReadListener>();
-        private boolean mStopReadListener = false;
-
-        @Override
-        public void addReadListener(ReadListener listener) {
-                uartReadListenerList.add(listener);
-        }
-
-        @Override
-        public void clearReadListener() {
-                uartReadListenerList.clear();
-        }
-
-        @Override
-        public void startReadListener() {
-                mStopReadListener = false;
-        }
-
-        @Override
-        public void stopReadListener() {
-                mStopReadListener = true;
-        }
-
-        private void onRead(int size) {
-                if(mStopReadListener) {
-                        return;
-                }
-                for(ReadListener listener : uartReadListenerList) {
-                        listener.onRead(size);
-                }
-        }
-        //////////////////////////////////////////////////////////
-
-        private String toHexStr(byte[] b, int length) {
+        private String toHexStr(ByteBuffer b, int off, int length) {
                 String str = "";
                 for(int i = 0; i < length; i++) {
-                        str += String.format("%02x ", b[i]);
+                        str += String.format("%02x ", b.get(off + i));
                 }
                 return str;
         }
@@ -643,6 +576,9 @@ public class UartFtdi extends SerialCommunicator {
         @Override
         public void setDebug(boolean flag) {
                 DEBUG_SHOW = flag;
+                if(mReadEngine != null) {
+                        mReadEngine.setDebug(flag);
+                }
         }
 
         @Override
@@ -8,19 +8,16 @@ import android.content.Context;
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
 import com.manicben.physicaloid.lib.Physicaloid;
 import com.manicben.physicaloid.lib.UsbSerialDevice;
 import com.manicben.physicaloid.lib.UsbVid;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
+import com.manicben.physicaloid.lib.usb.UsbBulkWriter;
 import com.manicben.physicaloid.lib.usb.UsbCdcConnection;
+import com.manicben.physicaloid.lib.usb.UsbReadEngine;
 import com.manicben.physicaloid.lib.usb.UsbVidPid;
-import com.manicben.physicaloid.misc.RingBuffer;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 public class UartWinCH34x extends SerialCommunicator {
         /* supported VID,PID
@@ -34,14 +31,11 @@ public class UartWinCH34x extends SerialCommunicator {
         private static final int DEFAULT_BAUDRATE = 9600;
         private UsbCdcConnection mUsbConnectionManager;
         private UartConfig mUartConfig;
-        private static final int RING_BUFFER_SIZE = 1024;
-        private static final int USB_READ_BUFFER_SIZE = 256;
-        private static final int USB_WRITE_BUFFER_SIZE = 256;
-        private RingBuffer mBuffer;
-        private boolean mReadThreadStop = true;
+        private volatile UsbReadEngine mReadEngine;
         private UsbDeviceConnection mConnection;
         private UsbEndpoint mEndpointIn;
         private UsbEndpoint mEndpointOut;
+        private volatile UsbBulkWriter mBulkOut;
         private boolean isOpened;
         private static final int CH341_BIT_RTS = (1 << 6);
         private static final int CH341_BIT_DTR = (1 << 5);
@@ -89,13 +83,12 @@ public class UartWinCH34x extends SerialCommunicator {
         private static final byte REQTYPE_DEVICE_TO_HOST = (byte) 0xc0;
 
         public UartWinCH34x(Context context) {
-                super(context);
+                super();
                 // default to n81
                 lcr = CH341_LCR_ENABLE_RX | CH341_LCR_ENABLE_TX | CH341_LCR_CS8;
                 mUsbConnectionManager = new UsbCdcConnection(context);
                 mUartConfig = new UartConfig();
                 mUartConfig.baudrate = DEFAULT_BAUDRATE;
-                mBuffer = new RingBuffer(RING_BUFFER_SIZE);
                 isOpened = false;
         }
 
@@ -117,11 +110,14 @@ public class UartWinCH34x extends SerialCommunicator {
                         mConnection = mUsbConnectionManager.getConnection();
                         mEndpointIn = mUsbConnectionManager.getEndpointIn();
                         mEndpointOut = mUsbConnectionManager.getEndpointOut();
+                        stopRead();     // a read engine left by an open() that failed half way
+                        mReadEngine = new UsbReadEngine(mConnection, mEndpointIn, mOpenOptions.usbReadRequests, 0, getReceiveSink());
+                        mBulkOut = mReadEngine.newWriter(mEndpointOut, getWriteTransferSize(mEndpointOut.getMaxPacketSize()), getUsbWriteRequests());
                         if(!init()) {
                                 return false;
                         }
 
-                        mBuffer.clear();
+                        mBuffer = newReadBuffer(mEndpointIn.getMaxPacketSize());
                         startRead();
                         isOpened = true;
                         return true;
@@ -133,6 +129,9 @@ public class UartWinCH34x extends SerialCommunicator {
         @Override
         public boolean close() {
                 stopRead();
+                stopWriteQueue();
+                closeReadBuffer();
+                completePublisher();
                 isOpened = false;
                 return mUsbConnectionManager.close();
         }
@@ -144,80 +143,42 @@ public class UartWinCH34x extends SerialCommunicator {
 
         @Override
         public int write(byte[] buf, int size) {
-                if(buf == null) {
-                        return 0;
-                }
-                int offset = 0;
-                int write_size;
-                int written_size;
-                byte[] wbuf = new byte[USB_WRITE_BUFFER_SIZE];
-
-                while(offset < size) {
-                        write_size = USB_WRITE_BUFFER_SIZE;
-
-                        if(offset + write_size > size) {
-                                write_size = size - offset;
-                        }
-                        System.arraycopy(buf, offset, wbuf, 0, write_size);
-
-                        written_size = mConnection.bulkTransfer(mEndpointOut, wbuf, write_size, 100);
+                return write(buf, 0, size);
+        }
 
-                        if(written_size < 0) {
-                                return -1;
-                        }
-                        offset += written_size;
+        @Override
+        public int write(byte[] buf, int off, int size) {
+                UsbBulkWriter out = mBulkOut;
+                if(out == null) {
+                        return -1;
                 }
-
-                return offset;
+                return out.write(buf, off, size);
         }
 
         private void stopRead() {
-                mReadThreadStop = true;
+                UsbReadEngine engine = mReadEngine;
+                mReadEngine = null;
+                if(engine != null && !engine.stop(READ_STOP_TIMEOUT_MS)) {
+                        Log.e(TAG, "read engine still busy " + READ_STOP_TIMEOUT_MS + "ms after close");
+                }
         }
 
         private void startRead() {
-                if(mReadThreadStop) {
-                        mReadThreadStop = false;
-                        new Thread(mLoop).start();
-                }
-        }
-        private Runnable mLoop = new Runnable() {
-
-                @Override
-                public void run() {
-                        int len;
-                        byte[] rbuf = new byte[mEndpointIn.getMaxPacketSize()];
-                        android.os.Process.setThreadPriority(-20);
-                        UsbRequest response;
-                        UsbRequest request = new UsbRequest();
-                        request.initialize(mConnection, mEndpointIn);
-                        ByteBuffer buf = ByteBuffer.wrap(rbuf);
-                        for(;;) {// this is the main loop for transferring
-                                len = 0;
-                                if(request.queue(buf, rbuf.length)) {
-                                        response = mConnection.requestWait();
-                                        if(response != null) {
-                                                len = buf.position();
-                                        }
-                                        if(len > 0) {
-                                                mBuffer.add(rbuf, len);
-                                                onRead(len);
-                                        } else if(mBuffer.getBufferdLength() > 0) {
-                                                onRead(mBuffer.getBufferdLength());
-                                        } else if(mBuffer.getBufferdLength() > 0) {
-                                                onRead(mBuffer.getBufferdLength());
-                                        }
-
-
-                                }
-
-                                if(mReadThreadStop) {
-                                        return;
-                                }
+                mReadEngine.setDebug(DEBUG_SHOW);
+                if(mOpenOptions.pollingMode && mReadEngine.startPolled()) {
+                        return;
+                }
+                mReadEngine.start(-20, mOpenOptions.usbSharedDispatcher);
+        }
 
-                        }
-                } // end of run()
-        }; // end of runnable
+        @Override
+        protected int serviceRead(long timeoutMicros) {
+                UsbReadEngine engine = mReadEngine;
+                if(engine == null) {
+                        return -1;
+                }
+                return engine.poll(timeoutMicros);
+        }
 
         @Override
         public boolean setUartConfig(UartConfig config) {
@@ -395,6 +356,14 @@ public class UartWinCH34x extends SerialCommunicator {
                         return false;
                 }
                 mUartConfig.baudrate = baudrate;
+                UsbBulkWriter out = mBulkOut;
+                if(out != null) {
+                        out.setBaudrate(baudrate);
+                }
+                UsbReadEngine engine = mReadEngine;
+                if(engine != null) {
+                        engine.setBaudrate(baudrate);
+                }
                 return true;
         }
 
@@ -562,42 +531,6 @@ public class UartWinCH34x extends SerialCommunicator {
         public void clearBuffer() {
                 mBuffer.clear();
         }
-        //////////////////////////////////////////////////////////
-        // Listener for reading uart
-        //////////////////////////////////////////////////////////
-        private List<ReadListener> uartReadListenerList = new ArrayList<ReadListener>();
-        private boolean mStopReadListener = false;
-
-        @Override
-        public void addReadListener(ReadListener listener) {
-                uartReadListenerList.add(listener);
-        }
-
-        @Override
-        public void clearReadListener() {
-                uartReadListenerList.clear();
-        }
-
-        @Override
-        public void startReadListener() {
-                mStopReadListener = false;
-        }
-
-        @Override
-        public void stopReadListener() {
-                mStopReadListener = true;
-        }
-
-        private void onRead(int size) {
-                if(mStopReadListener) {
-                        return;
-                }
-                for(ReadListener listener : uartReadListenerList) {
-                        listener.onRead(size);
-                }
-        }
-        //////////////////////////////////////////////////////////
-
         @Override
         public String getPhysicalConnectionName() {
                 return Physicaloid.USB_STRING;
@@ -611,6 +544,9 @@ public class UartWinCH34x extends SerialCommunicator {
         @Override
         public void setDebug(boolean flag) {
                 DEBUG_SHOW = flag;
+                if(mReadEngine != null) {
+                        mReadEngine.setDebug(flag);
+                }
         }
 
         @Override
@@ -11,16 +11,19 @@ import android.util.Log;
 import com.manicben.physicaloid.BuildConfig;
 import com.manicben.physicaloid.lib.Physicaloid;
 import com.manicben.physicaloid.lib.framework.SerialCommunicator;
-import com.manicben.physicaloid.lib.usb.driver.uart.ReadListener;
 import com.manicben.physicaloid.lib.usb.driver.uart.UartConfig;
-import com.manicben.physicaloid.misc.RingBuffer;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -32,16 +35,21 @@ public class UartWifi extends SerialCommunicator {
         private boolean DEBUG_SHOW = BuildConfig.DEBUG;
         private static final int DEFAULT_BAUDRATE = 9600;
         private UartConfig mUartConfig;
-        private static final int RING_BUFFER_SIZE = 1024;
         private static final int READ_BUFFER_SIZE = 256;
         private static final int WRITE_BUFFER_SIZE = 256;
-        private RingBuffer mBuffer;
-        private boolean mReadThreadStop = true;
+        private volatile boolean mReadThreadStop = true;
+        private volatile Thread mReadThread;
+        private volatile boolean mPolling;
+        // pollingMode only: the channel is non-blocking and these wait for it
+        private volatile Selector mReadSelector;
+        private volatile Selector mWriteSelector;
+        private static final long WRITE_WAIT_MS = 100;
         private boolean isOpened;
         private String SERVER_IP = null;
         private int DATA_PORT = 0;
         private int CTRL_PORT = 0;
         private Socket DATA_socket;
+        private volatile SocketChannel DATA_channel;
         private Socket CTRL_socket;
         private DataOutputStream CTRL_OUT;
         private DataOutputStream DATA_OUT;
@@ -64,12 +72,11 @@ public class UartWifi extends SerialCommunicator {
         }
 
         public UartWifi(Context context, String host, int Dport, int Cport) {
-                super(context);
+                super();
                 SERVER_IP = host;
                 DATA_PORT = Dport;
                 CTRL_PORT = Cport;
                 mUartConfig = new UartConfig();
-                mBuffer = new RingBuffer(RING_BUFFER_SIZE);
                 isOpened = false;
                 CTRL_socket = null;
                 DATA_socket = null;
@@ -90,7 +97,7 @@ public class UartWifi extends SerialCommunicator {
                                 close();
                                 return false;
                         }
-                        mBuffer.clear();
+                        mBuffer = newReadBuffer();
                         startRead();
                         isOpened = true;
                 }
@@ -131,7 +138,9 @@ public class UartWifi extends SerialCommunicator {
                         while(DATA_keep_going && isNetworkConnected(me)) {
                                 try {
                                         serverAddr = InetAddress.getByName(SERVER_IP);
-                                        DATA_socket = new Socket(serverAddr, DATA_PORT);
+                                        // opened as a channel so ByteBuffers are sent and received without a heap copy
+                                        DATA_channel = SocketChannel.open(new InetSocketAddress(serverAddr, DATA_PORT));
+                                        DATA_socket = DATA_channel.socket();
                                         DATA_socket.setKeepAlive(true);
                                         DATA_socket.setTcpNoDelay(true);
                                         DATA_keep_going = false;
@@ -200,6 +209,9 @@ public class UartWifi extends SerialCommunicator {
         @SuppressWarnings({"CallToThreadDumpStack", "SleepWhileInLoop"})
         public boolean close() {
                 stopRead();
+                stopWriteQueue();
+                closeReadBuffer();
+                completePublisher();
                 isOpened = false;
                 CTRL_keep_going = false;
                 DATA_keep_going = false;
@@ -209,6 +221,7 @@ public class UartWifi extends SerialCommunicator {
                         } catch(InterruptedException ex) {
                         }
                 }
+                closeSelectors();
                 if(CTRL_OUT != null) {
                         try {
                                 CTRL_OUT.close();
@@ -254,7 +267,9 @@ public class UartWifi extends SerialCommunicator {
                                 ex.printStackTrace();
                         }
                         DATA_socket = null;
+                        DATA_channel = null;
                 }
+                joinReadThread();
                 return true;
         }
 
@@ -266,11 +281,20 @@ public class UartWifi extends SerialCommunicator {
         @Override
         @SuppressWarnings("CallToThreadDumpStack")
         public int write(byte[] buf, int size) {
+                return write(buf, 0, size);
+        }
+
+        @Override
+        public int write(byte[] buf, int off, int size) {
                 if(buf == null) {
                         return 0;
                 }
+                if(mPolling) {
+                        // a non-blocking channel cannot be written through its stream
+                        return write(ByteBuffer.wrap(buf, off, size));
+                }
                 try {
-                        DATA_OUT.write(buf, 0, size);
+                        DATA_OUT.write(buf, off, size);
                         DATA_OUT.flush();
                 } catch(Exception ex) {
                         close();
@@ -281,6 +305,76 @@ public class UartWifi extends SerialCommunicator {
                 return size;
         }
 
+        @Override
+        public int write(ByteBuffer src) {
+                SocketChannel channel = DATA_channel;
+                if(channel == null) {
+                        return -1;
+                }
+                try {
+                        int written = 0;
+                        while(src.hasRemaining()) {
+                                int len = channel.write(src);
+                                if(len == 0) {
+                                        awaitWritable();
+                                }
+                                written += len;
+                        }
+                        return written;
+                } catch(Exception ex) {
+                        close();
+                        Log.d(TAG, ex.toString());
+                        return -1;
+                }
+        }
+
+        @Override
+        public long write(ByteBuffer... srcs) {
+                SocketChannel channel = DATA_channel;
+                if(channel == null) {
+                        return -1;
+                }
+                try {
+                        long written = 0;
+                        while(hasRemaining(srcs)) {
+                                long len = channel.write(srcs); // one gathering write per TCP segment
+                                if(len == 0) {
+                                        awaitWritable();
+                                }
+                                written += len;
+                        }
+                        return written;
+                } catch(Exception ex) {
+                        close();
+                        Log.d(TAG, ex.toString());
+                        return -1;
+                }
+        }
+
+        // Waits for room in the socket's send buffer, only a non-blocking channel of pollingMode writes 0.
+        private void awaitWritable() throws IOException {
+                Selector selector = mWriteSelector;
+                if(selector == null) {
+                        return;
+                }
+                try {
+                        selector.select(WRITE_WAIT_MS);
+                        selector.selectedKeys().clear();
+                } catch(ClosedSelectorException ex) {
+                        throw new IOException("closed while writing");
+                }
+        }
+
+        // true while any buffer has bytes left, the last one may be empty, e.g. an empty payload
+        private static boolean hasRemaining(ByteBuffer[] srcs) {
+                for(ByteBuffer src : srcs) {
+                        if(src.hasRemaining()) {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
         @Override
         @SuppressWarnings("CallToThreadDumpStack")
         public boolean setBaudrate(int baudrate) {
@@ -436,50 +530,120 @@ public class UartWifi extends SerialCommunicator {
         public void clearBuffer() {
                 mBuffer.clear();
         }
-        //////////////////////////////////////////////////////////
-        // Listener for reading uart
-        //////////////////////////////////////////////////////////
-        private List<ReadListener> uartReadListenerList = new ArrayList<ReadListener>();
-        private boolean mStopReadListener = false;
-
-        @Override
-        public void addReadListener(ReadListener listener) {
-                uartReadListenerList.add(listener);
+        private void stopRead() {
+                mReadThreadStop = true;
+                mPolling = false;
+                Selector selector = mReadSelector;
+                if(selector != null) {
+                        selector.wakeup();
+                }
         }
 
-        @Override
-        public void clearReadListener() {
-                uartReadListenerList.clear();
+        private void startRead() {
+                if(mOpenOptions.pollingMode) {
+                        try {
+                                openSelectors();
+                                mPolling = true;
+                                return;
+                        } catch(IOException ex) {
+                                Log.e(TAG, "no selector, receiving on a read thread: " + ex);
+                                closeSelectors();
+                                try {
+                                        DATA_channel.configureBlocking(true);
+                                } catch(Exception e) {
+                                        Log.d(TAG, e.toString());
+                                }
+                        }
+                }
+                if(mReadThreadStop) {
+                        mReadThreadStop = false;
+                        // a thread of an earlier open() that is still stuck sees it was replaced and ends
+                        Thread thread = new Thread(mLoop);
+                        mReadThread = thread;
+                        thread.start();
+                }
         }
 
-        @Override
-        public void startReadListener() {
-                mStopReadListener = false;
+        // Waits up to READ_STOP_TIMEOUT_MS for the read thread to end, unless close() runs on it.
+        private void joinReadThread() {
+                Thread thread = mReadThread;
+                if(thread == null || thread == Thread.currentThread()) {
+                        return;
+                }
+                try {
+                        thread.join(READ_STOP_TIMEOUT_MS);
+                } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                }
+                if(thread.isAlive()) {
+                        Log.e(TAG, "read thread still running " + READ_STOP_TIMEOUT_MS + "ms after close");
+                }
         }
 
-        @Override
-        public void stopReadListener() {
-                mStopReadListener = true;
+        // true : this read thread was stopped or replaced
+        private boolean isReadStopped() {
+                return mReadThreadStop || mReadThread != Thread.currentThread();
         }
 
-        private void onRead(int size) {
-                if(mStopReadListener) {
-                        return;
+        // Makes the data channel non-blocking and registers it for pollingMode's waits.
+        private void openSelectors() throws IOException {
+                SocketChannel channel = DATA_channel;
+                if(channel == null) {
+                        throw new IOException("not connected");
                 }
-                for(ReadListener listener : uartReadListenerList) {
-                        listener.onRead(size);
+                mReadSelector = Selector.open();
+                mWriteSelector = Selector.open();
+                channel.configureBlocking(false);
+                channel.register(mReadSelector, SelectionKey.OP_READ);
+                channel.register(mWriteSelector, SelectionKey.OP_WRITE);
+        }
+
+        private void closeSelectors() {
+                Selector[] selectors = {mReadSelector, mWriteSelector};
+                mReadSelector = null;
+                mWriteSelector = null;
+                for(Selector selector : selectors) {
+                        if(selector == null) {
+                                continue;
+                        }
+                        try {
+                                selector.close();
+                        } catch(IOException ex) {
+                                Log.d(TAG, ex.toString());
+                        }
                 }
         }
-        //////////////////////////////////////////////////////////
 
-        private void stopRead() {
-                mReadThreadStop = true;
-        }
-
-        private void startRead() {
-                if(mReadThreadStop) {
-                        mReadThreadStop = false;
-                        new Thread(mLoop).start();
+        @Override
+        protected int serviceRead(long timeoutMicros) {
+                SocketChannel channel = DATA_channel;
+                Selector selector = mReadSelector;
+                if(!mPolling || channel == null || selector == null) {
+                        return -1;
+                }
+                try {
+                        // select(0) would wait forever, so a timeout below 1 ms still waits 1 ms
+                        int ready = (timeoutMicros > 0) ? selector.select(Math.max(1, TimeUnit.MICROSECONDS.toMillis(timeoutMicros))) : selector.selectNow();
+                        if(ready <= 0) {
+                                return 0;
+                        }
+                        selector.selectedKeys().clear();
+                        ByteBuffer buf = mBuffer.acquire(READ_BUFFER_SIZE);
+                        int len = channel.read(buf);
+                        if(len < 0) {
+                                throw new IOException("connection closed by peer");
+                        }
+                        if(len > 0) {
+                                mBuffer.commit(0, len);
+                                onData(buf, 0, len);
+                                onRead(len);
+                        }
+                        return len;
+                } catch(IOException ex) {
+                        close();
+                        return -1;
+                } catch(ClosedSelectorException ex) {
+                        return -1;      // closed meanwhile
                 }
         }
         private Runnable mLoop = new Runnable() {
@@ -488,12 +652,16 @@ public class UartWifi extends SerialCommunicator {
                 @SuppressWarnings("SleepWhileInLoop")
                 public void run() {
                         int len;
-                        byte[] rbuf = new byte[READ_BUFFER_SIZE];
+                        ByteBuffer buf;
+                        SocketChannel channel = DATA_channel;
                         android.os.Process.setThreadPriority(-20);
                         for(;;) {
-                                if(mReadThreadStop) {
+                                if(isReadStopped()) {
                                         return;
                                 }
+                                if(!awaitReadDemand(READ_DEMAND_WAIT_MS)) {
+                                        continue; // nothing read, the peer is held back by TCP flow control
+                                }
                                 if(CTRL_socket.isClosed() || DATA_socket.isClosed()) {
                                         close();
                                         try {
@@ -503,18 +671,22 @@ public class UartWifi extends SerialCommunicator {
                                 } else {
                                         try {
                                                 // this is the main loop for transferring
-                                                len = 0;
-
-                                                while(DATA_IN.available() > 0 && len < READ_BUFFER_SIZE) {
-                                                        DATA_IN.read(rbuf, len, 1);
-                                                        len++;
+                                                // received straight into the read buffer, blocks until data or close()
+                                                buf = mBuffer.acquire(READ_BUFFER_SIZE);
+                                                len = channel.read(buf);
+                                                if(len < 0) {
+                                                        throw new IOException("connection closed by peer");
                                                 }
                                                 if(len > 0) {
-                                                        mBuffer.add(rbuf, len);
+                                                        mBuffer.commit(0, len);
+                                                        onData(buf, 0, len);
                                                         onRead(len);
                                                 }
 
                                         } catch(IOException ex) {
+                                                if(isReadStopped()) {
+                                                        return; // close() closed the channel under the blocked read
+                                                }
                                                 close();
                                                 // TO-DO: Needs to broadcast that it has died
                                                 try {
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Keisuke SUZUKI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * Distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manicben.physicaloid.log;
+
+import com.manicben.physicaloid.BuildConfig;
+
+/**
+ * Sends the core library's Log messages to logcat
+ */
+public class AndroidLogSink implements LogSink {
+
+        private static volatile boolean sInstalled;
+
+        /**
+         * Installs the logcat sink once per process, with debug dumps in debug builds
+         */
+        public static void install() {
+                if(!sInstalled) {
+                        sInstalled = true;
+                        Log.setDebug(BuildConfig.DEBUG);
+                        Log.setSink(new AndroidLogSink());
+                }
+        }
+
+        @Override
+        public void println(int priority, String tag, String msg) {
+                android.util.Log.println(priority, tag, msg);
+        }
+}